@@ -0,0 +1,114 @@
+package main.java.backup;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ * Naming of the archives in a backup directory: backup.zip is the last full
+ * backup, backup_diff_<timestamp>.zip the differentials against it and
+ * backup_incr_<timestamp>.zip the incrementals. Timestamps sort lexically,
+ * so comparing them gives chain order across both kinds.
+ */
+public class BackupChain {
+  public static final String FULL_ARCHIVE = "backup.zip";
+  public static final String INDEX_FILE = "backup.index";
+  public static final String FULL_INDEX_FILE = "full.index";
+  private static final String INCREMENTAL_PREFIX = "backup_incr_";
+  private static final String DIFFERENTIAL_PREFIX = "backup_diff_";
+  private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmssSSS");
+
+  public static Path fullArchive(Path backupDir) {
+    return backupDir.resolve(FULL_ARCHIVE);
+  }
+
+  // State of every file after the latest run of any kind
+  public static Path indexFile(Path backupDir) {
+    return backupDir.resolve(INDEX_FILE);
+  }
+
+  // State of every file as of the last full backup
+  public static Path fullIndexFile(Path backupDir) {
+    return backupDir.resolve(FULL_INDEX_FILE);
+  }
+
+  public static Path newIncrementalArchive(Path backupDir) {
+    return backupDir.resolve(INCREMENTAL_PREFIX + LocalDateTime.now().format(TIMESTAMP) + ".zip");
+  }
+
+  public static Path newDifferentialArchive(Path backupDir) {
+    return backupDir.resolve(DIFFERENTIAL_PREFIX + LocalDateTime.now().format(TIMESTAMP) + ".zip");
+  }
+
+  public static List<Path> incrementalArchives(Path backupDir) throws IOException {
+    return archives(backupDir, INCREMENTAL_PREFIX);
+  }
+
+  public static List<Path> differentialArchives(Path backupDir) throws IOException {
+    return archives(backupDir, DIFFERENTIAL_PREFIX);
+  }
+
+  private static List<Path> archives(Path backupDir, String prefix) throws IOException {
+    List<Path> archives = new ArrayList<>();
+    if (!Files.isDirectory(backupDir)) {
+      return archives;
+    }
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(backupDir, prefix + "*.zip")) {
+      for (Path entry : stream) {
+        archives.add(entry);
+      }
+    }
+    archives.sort(Comparator.comparing(BackupChain::timestamp));
+    return archives;
+  }
+
+  private static String timestamp(Path archive) {
+    String name = archive.getFileName().toString();
+    if (name.equals(FULL_ARCHIVE)) {
+      return "";
+    }
+    return name.substring(name.lastIndexOf('_') + 1);
+  }
+
+  // Archives needed to restore the latest state, oldest first: the full backup,
+  // the latest differential and the incrementals taken after it
+  public static List<Path> restoreChain(Path backupDir) throws IOException {
+    List<Path> chain = new ArrayList<>();
+    chain.add(fullArchive(backupDir));
+    List<Path> differentials = differentialArchives(backupDir);
+    String since = "";
+    if (!differentials.isEmpty()) {
+      Path latest = differentials.get(differentials.size() - 1);
+      chain.add(latest);
+      since = timestamp(latest);
+    }
+    for (Path incremental : incrementalArchives(backupDir)) {
+      if (timestamp(incremental).compareTo(since) > 0) {
+        chain.add(incremental);
+      }
+    }
+    return chain;
+  }
+
+  // A full backup makes every other archive useless, a differential every
+  // archive except the full one; an incremental supersedes nothing
+  public static void removeSupersededArchives(Path backupDir, Path newArchive) throws IOException {
+    String name = newArchive.getFileName().toString();
+    if (name.startsWith(INCREMENTAL_PREFIX)) {
+      return;
+    }
+    List<Path> superseded = new ArrayList<>(incrementalArchives(backupDir));
+    superseded.addAll(differentialArchives(backupDir));
+    for (Path archive : superseded) {
+      if (!archive.equals(newArchive)) {
+        Files.deleteIfExists(archive);
+      }
+    }
+  }
+}
@@ -0,0 +1,7 @@
+package main.java.backup;
+
+import java.nio.file.Path;
+
+// Size, mtime and file key (inode) come from the scan, so the backup stage does not stat the file again
+public record BackupFile(Path path, long size, long lastModified, String fileKey) {
+}
@@ -0,0 +1,269 @@
+package main.java.backup;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import main.java.util.ZipArchiveReader;
+
+/*
+ * Checkpoint log of a running backup, kept in the backup directory until the
+ * run completes. Each finished partition is appended as one record: the temp
+ * archives it wrote and the state and hash of every file in it. The archives
+ * are synced before their record, and every record carries a CRC, so after a
+ * crash the log holds exactly the partitions that are safe to reuse; a torn
+ * last record is ignored. Before reuse, every entry of a partition's archives
+ * is read back and checked against its CRC. A log written with other settings (run id) is
+ * discarded. Temp archives no record refers to are removed.
+ */
+public class BackupJournal {
+  public static final String FILE_NAME = "backup.journal";
+  private static final String TEMP_ARCHIVE_GLOB = "temp_*.zip";
+  private static final int MAGIC = 0x42524a4c; // "BRJL"
+  private static final int VERSION = 1;
+  private static final int MAX_RECORD_SIZE = 256 * 1024 * 1024;
+
+  public record Partition(List<Path> archives, Map<String, FileStateIndex.FileState> files) {
+  }
+
+  private final Path journalFile;
+  private final List<Partition> partitions;
+  private final Map<String, FileStateIndex.FileState> completedFiles = new LinkedHashMap<>();
+  private FileChannel channel;
+
+  private BackupJournal(Path journalFile, List<Partition> partitions) {
+    this.journalFile = journalFile;
+    this.partitions = partitions;
+    for (Partition partition : partitions) {
+      completedFiles.putAll(partition.files());
+    }
+  }
+
+  // Loads the partitions a previous run of the same kind completed, keeping
+  // those whose archives are still intact, and starts a fresh log otherwise
+  public static BackupJournal open(Path backupDir, String runId) throws IOException {
+    Path journalFile = backupDir.resolve(FILE_NAME);
+    List<RecordedPartition> partitions = new ArrayList<>();
+    if (Files.exists(journalFile)) {
+      partitions = read(journalFile, backupDir, runId);
+    }
+    Set<Path> referenced = new HashSet<>();
+    List<Partition> intact = new ArrayList<>();
+    for (RecordedPartition recorded : partitions) {
+      if (recorded.isIntact()) {
+        intact.add(recorded.partition());
+        referenced.addAll(recorded.partition().archives());
+      }
+    }
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(backupDir, TEMP_ARCHIVE_GLOB)) {
+      for (Path archive : stream) {
+        if (!referenced.contains(archive)) {
+          Files.deleteIfExists(archive);
+        }
+      }
+    }
+    BackupJournal journal = new BackupJournal(journalFile, intact);
+    journal.rewrite(runId);
+    return journal;
+  }
+
+  private static List<RecordedPartition> read(Path journalFile, Path backupDir, String runId) throws IOException {
+    List<RecordedPartition> partitions = new ArrayList<>();
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(journalFile))) {
+      DataInputStream header = readRecord(in);
+      if (header == null || header.readInt() != MAGIC || header.readInt() != VERSION
+          || !header.readUTF().equals(runId)) {
+        return partitions;
+      }
+      DataInputStream record;
+      while ((record = readRecord(in)) != null) {
+        partitions.add(readPartition(record, backupDir));
+      }
+    }
+    return partitions;
+  }
+
+  // Returns null at the end of the log or at a record that was not fully written
+  private static DataInputStream readRecord(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(in);
+    try {
+      int length = data.readInt();
+      if (length < 0 || length > MAX_RECORD_SIZE) {
+        return null;
+      }
+      byte[] payload = in.readNBytes(length);
+      long crc = data.readLong();
+      CRC32 check = new CRC32();
+      check.update(payload);
+      if (payload.length != length || check.getValue() != crc) {
+        return null;
+      }
+      return new DataInputStream(new ByteArrayInputStream(payload));
+    } catch (EOFException e) {
+      return null;
+    }
+  }
+
+  private static RecordedPartition readPartition(DataInputStream in, Path backupDir) throws IOException {
+    int archiveCount = in.readInt();
+    List<Path> archives = new ArrayList<>();
+    List<Long> sizes = new ArrayList<>();
+    for (int i = 0; i < archiveCount; i++) {
+      archives.add(backupDir.resolve(in.readUTF()));
+      sizes.add(in.readLong());
+    }
+    int fileCount = in.readInt();
+    Map<String, FileStateIndex.FileState> files = new LinkedHashMap<>();
+    for (int i = 0; i < fileCount; i++) {
+      String name = in.readUTF();
+      long size = in.readLong();
+      long lastModified = in.readLong();
+      String fileKey = in.readUTF();
+      String hash = in.readUTF();
+      files.put(name, new FileStateIndex.FileState(size, lastModified, fileKey.isEmpty() ? null : fileKey,
+          hash.isEmpty() ? null : hash));
+    }
+    return new RecordedPartition(new Partition(archives, files), sizes);
+  }
+
+  private record RecordedPartition(Partition partition, List<Long> archiveSizes) {
+
+    // The archives must still exist with their recorded size, and every entry
+    // must read back with the CRC in its central directory
+    boolean isIntact() {
+      for (int i = 0; i < archiveSizes.size(); i++) {
+        Path archive = partition.archives().get(i);
+        try {
+          if (Files.size(archive) != archiveSizes.get(i)) {
+            return false;
+          }
+          try (ZipArchiveReader reader = new ZipArchiveReader(archive)) {
+            for (ZipArchiveReader.Entry entry : reader.entries()) {
+              if (!reader.checkCrc(entry)) {
+                return false;
+              }
+            }
+          }
+        } catch (IOException e) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private void rewrite(String runId) throws IOException {
+    Path tempFile = journalFile.resolveSibling(FILE_NAME + ".tmp");
+    try (FileChannel out = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      writeRecord(out, header(runId));
+      for (Partition partition : partitions) {
+        writeRecord(out, payload(partition));
+      }
+      out.force(true);
+    }
+    Files.move(tempFile, journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    channel = FileChannel.open(journalFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+  }
+
+  public List<Partition> completedPartitions() {
+    return partitions;
+  }
+
+  // Whether the file is part of a completed partition and has not changed since
+  public synchronized boolean isCompleted(String name, BackupFile file) {
+    FileStateIndex.FileState state = completedFiles.get(name);
+    return state != null && state.matches(file);
+  }
+
+  // Partitions all of whose files were found unchanged; the archives of the
+  // others are deleted, and their unchanged files have to be backed up again
+  public synchronized List<Partition> reusablePartitions(Set<String> unchangedFiles) throws IOException {
+    List<Partition> reusable = new ArrayList<>();
+    for (Partition partition : partitions) {
+      if (unchangedFiles.containsAll(partition.files().keySet())) {
+        reusable.add(partition);
+        continue;
+      }
+      for (Path archive : partition.archives()) {
+        Files.deleteIfExists(archive);
+      }
+    }
+    return reusable;
+  }
+
+  public synchronized void record(List<Path> archives, Map<String, FileStateIndex.FileState> files)
+      throws IOException {
+    for (Path archive : archives) {
+      try (FileChannel written = FileChannel.open(archive, StandardOpenOption.WRITE)) {
+        written.force(true);
+      }
+    }
+    writeRecord(channel, payload(new Partition(archives, files)));
+    channel.force(false);
+  }
+
+  // Called once the backup is complete and its archive is in place
+  public synchronized void delete() throws IOException {
+    channel.close();
+    Files.deleteIfExists(journalFile);
+  }
+
+  private static byte[] header(String runId) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeUTF(runId);
+    return bytes.toByteArray();
+  }
+
+  private static byte[] payload(Partition partition) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(partition.archives().size());
+    for (Path archive : partition.archives()) {
+      out.writeUTF(archive.getFileName().toString());
+      out.writeLong(Files.size(archive));
+    }
+    out.writeInt(partition.files().size());
+    for (Map.Entry<String, FileStateIndex.FileState> entry : partition.files().entrySet()) {
+      FileStateIndex.FileState state = entry.getValue();
+      out.writeUTF(entry.getKey());
+      out.writeLong(state.size());
+      out.writeLong(state.lastModified());
+      out.writeUTF(state.fileKey() != null ? state.fileKey() : "");
+      out.writeUTF(state.hash() != null ? state.hash() : "");
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void writeRecord(FileChannel out, byte[] payload) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    ByteBuffer record = ByteBuffer.allocate(4 + payload.length + 8);
+    record.putInt(payload.length).put(payload).putLong(crc.getValue()).flip();
+    while (record.hasRemaining()) {
+      out.write(record);
+    }
+  }
+}
@@ -1,90 +1,497 @@
 package main.java.backup;
 
 import main.java.config.Configuration;
+import main.java.dedup.ChunkStore;
+import main.java.util.BufferPool;
+import main.java.util.CompressionAdvisor;
 import main.java.util.FileOperationsUtil;
+import main.java.util.IoThrottle;
 import main.java.util.KeyManagementUtil;
+import main.java.util.MemoryBudget;
 
 import java.io.IOException;
-import java.nio.file.DirectoryStream;
-import java.nio.file.FileVisitOption;
-import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
-import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 import java.util.Timer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 import javax.crypto.SecretKey;
 
 public class BackupManager {
 
   private final Configuration config;
+  private final CompressionAdvisor compressionAdvisor;
+  private final MemoryBudget memoryBudget;
+  private final DeviceScheduler deviceScheduler;
   private String encryptionPassword = null;
-  private final int CHUNK_SIZE = 20; // Change this & check performance!
+  private BackupJournal journal;
+  private Queue<Path> partitionArchives;
+  private Queue<String> failedEntries;
+  private ConcurrentHashMap<String, ResumedFile> resumedFiles;
+  private static final String MODE_INCREMENTAL = "incremental";
+  private static final String MODE_DIFFERENTIAL = "differential";
+  private static final long PIPELINE_TARGET_BYTES = 64L * 1024 * 1024;
+  private static final int PIPELINE_QUEUE_PARTITIONS_PER_WORKER = 2;
+  private static final long SPACE_CHECK_INTERVAL_BYTES = 256L * 1024 * 1024;
+  private static final SourcePartition END_OF_SCAN = new SourcePartition(null,
+      new BackupPartitioner.Partition(List.of(), 0));
 
   public BackupManager(Configuration config) {
     this.config = config;
+    this.compressionAdvisor = CompressionAdvisor.forConfig(config);
+    this.memoryBudget = MemoryBudget.forConfig(config);
+    this.deviceScheduler = DeviceScheduler.forMaxConcurrency(config.getMaxDeviceConcurrency());
+  }
+
+  // A source directory and the device it lives on. Entry names are relative to
+  // base: the directory itself when there is one source, its parent when there
+  // are several, so each file is stored under its source directory's name.
+  private record SourceRoot(Path dir, Path base, DeviceScheduler.Device device) {
+
+    String entryName(BackupFile file) {
+      return base.relativize(file.path()).toString();
+    }
+  }
+
+  // A file a previous, interrupted run already backed up
+  private record ResumedFile(SourceRoot root, BackupFile file) {
+  }
+
+  // Partitions never mix source directories, so each is written relative to one base
+  private record SourcePartition(SourceRoot root, BackupPartitioner.Partition partition) {
+  }
+
+  private List<SourceRoot> resolveSourceRoots() throws IOException {
+    List<String> dirs = config.getSourceDirs() != null && !config.getSourceDirs().isEmpty() ? config.getSourceDirs()
+        : List.of(config.getDefaultSourceDir());
+    List<SourceRoot> roots = new ArrayList<>();
+    Set<String> names = new HashSet<>();
+    for (String dir : dirs) {
+      Path path = Path.of(dir);
+      Path base = path;
+      if (dirs.size() > 1) {
+        if (path.getFileName() == null || !names.add(path.getFileName().toString())) {
+          throw new IllegalArgumentException("Source directories need distinct names: " + dir);
+        }
+        base = path.getParent() != null ? path.getParent() : Path.of("");
+      }
+      roots.add(new SourceRoot(path, base, deviceScheduler.deviceFor(path)));
+    }
+    return roots;
   }
 
   public void backup() throws IOException {
     initializeEncryption();
+    IoThrottle.SHARED.start(config);
+    if (config.isEnablePipelinedBackup()) {
+      pipelinedBackup();
+      return;
+    }
     ExecutorService executorService = Executors.newVirtualThreadPerTaskExecutor();
-    BackupFileData backupFileData = gatherFilesToBackupAndCalculateTotalBytes();
-    Queue<Path> filesToBackup = backupFileData.filesToBackup();
-    AtomicLong totalBytes = backupFileData.totalBytes();
-    Path sourcePath = Path.of(config.getDefaultSourceDir());
+    List<SourceRoot> roots = resolveSourceRoots();
     Path backupDir = Path.of(config.getDefaultBackupDir());
-    boolean isEnoughSpace = FileOperationsUtil.checkDiskSpace(totalBytes.get(), backupDir);
+    FileOperationsUtil.checkAndCreateDir(backupDir);
+    BackupTarget target = resolveBackupTarget(backupDir);
+    SecretKey aesKey = initializeAESKey();
+    openJournal(backupDir, target, aesKey, roots);
+    final ConcurrentHashMap<String, String> fileHashes = new ConcurrentHashMap<>();
+    CompressionAdvisor.SizeEstimator sizeEstimator = compressionAdvisor.newSizeEstimator();
+    BackupFileData backupFileData = gatherFilesToBackupAndCalculateTotalBytes(roots, target, fileHashes,
+        sizeEstimator);
+    Map<SourceRoot, Queue<BackupFile>> filesToBackup = backupFileData.filesToBackup();
+    AtomicLong totalBytes = backupFileData.totalBytes();
+    for (ResumedFile redo : resumeCompletedPartitions(fileHashes)) {
+      filesToBackup.get(redo.root()).add(redo.file());
+      totalBytes.addAndGet(redo.file().size());
+    }
+    boolean isEnoughSpace = FileOperationsUtil.checkDiskSpace(estimateBackupSize(sizeEstimator, totalBytes.get()),
+        backupDir);
     if (!isEnoughSpace) {
       System.exit(1);
     }
     AtomicLong bytesBackedUp = new AtomicLong(0);
-    System.out.println("\nNo. of files to backup: " + filesToBackup.size());
-    FileOperationsUtil.checkAndCreateDir(backupDir);
+    System.out.println("\nNo. of files to backup: " + backupFileData.fileCount());
+    printUnchangedFiles(target, backupFileData.fileCount());
     Timer timer = FileOperationsUtil.displayProgressBackup(bytesBackedUp, 2 * totalBytes.get());
-    SecretKey aesKey = initializeAESKey();
-    final ConcurrentHashMap<String, String> fileHashes = new ConcurrentHashMap<>();
-    executeBackupTasks(filesToBackup, totalBytes, sourcePath, backupDir, executorService, aesKey, fileHashes, timer,
-        bytesBackedUp);
+    ChunkStore chunkStore = initializeChunkStore(aesKey);
+    executeBackupTasks(filesToBackup, totalBytes, backupDir, target, executorService, aesKey, fileHashes, chunkStore,
+        timer, bytesBackedUp);
+  }
+
+  // Where this run writes to, and the index it compares against (null for a full backup)
+  private record BackupTarget(Path archivePath, FileStateIndex previousIndex, FileStateIndex currentIndex) {
+
+    boolean isFull() {
+      return previousIndex == null;
+    }
+  }
+
+  // Incrementals compare with the last run of any kind, differentials with the last full backup
+  private BackupTarget resolveBackupTarget(Path backupDir) throws IOException {
+    FileStateIndex currentIndex = new FileStateIndex();
+    String mode = config.getBackupMode();
+    if (MODE_INCREMENTAL.equals(mode) || MODE_DIFFERENTIAL.equals(mode)) {
+      boolean incremental = MODE_INCREMENTAL.equals(mode);
+      Path indexFile = incremental ? BackupChain.indexFile(backupDir) : BackupChain.fullIndexFile(backupDir);
+      FileStateIndex previousIndex = Files.exists(BackupChain.fullArchive(backupDir))
+          ? FileStateIndex.load(indexFile)
+          : null;
+      if (previousIndex != null) {
+        Path archivePath = incremental ? BackupChain.newIncrementalArchive(backupDir)
+            : BackupChain.newDifferentialArchive(backupDir);
+        return new BackupTarget(archivePath, previousIndex, currentIndex);
+      }
+      System.out.println("\nNo previous full backup found, running a full backup instead.");
+    }
+    return new BackupTarget(BackupChain.fullArchive(backupDir), null, currentIndex);
+  }
+
+  // Settings a resumed run must share with the interrupted one for its
+  // partitions to fit into the same archive
+  private void openJournal(Path backupDir, BackupTarget target, SecretKey aesKey, List<SourceRoot> roots)
+      throws IOException {
+    String runId = String.join("|", target.isFull() ? "full" : config.getBackupMode(),
+        ChunkStore.keyNamespace(aesKey), Boolean.toString(config.isEnableIntegrityCheck()),
+        String.valueOf(config.getHashAlgorithm()), Boolean.toString(config.isEnableDeduplication()),
+        roots.stream().map(root -> root.dir().toString()).toList().toString());
+    journal = BackupJournal.open(backupDir, runId);
+    partitionArchives = new ConcurrentLinkedQueue<>();
+    failedEntries = new ConcurrentLinkedQueue<>();
+    resumedFiles = new ConcurrentHashMap<>();
+  }
+
+  // Reuses the partitions whose files were all found unchanged and returns the
+  // files of the other journaled partitions, which are backed up again
+  private List<ResumedFile> resumeCompletedPartitions(ConcurrentHashMap<String, String> fileHashes)
+      throws IOException {
+    List<BackupJournal.Partition> reusable = journal.reusablePartitions(resumedFiles.keySet());
+    Set<String> reused = new HashSet<>();
+    for (BackupJournal.Partition partition : reusable) {
+      partitionArchives.addAll(partition.archives());
+      partition.files().forEach((name, state) -> {
+        reused.add(name);
+        if (state.hash() != null) {
+          fileHashes.put(name, state.hash());
+        }
+      });
+    }
+    if (!reused.isEmpty()) {
+      System.out.println("\nResuming: " + reused.size() + " files in " + reusable.size()
+          + " partitions were already backed up.");
+    }
+    List<ResumedFile> redo = new ArrayList<>();
+    resumedFiles.forEach((name, resumed) -> {
+      if (!reused.contains(name)) {
+        redo.add(resumed);
+      }
+    });
+    return redo;
+  }
+
+  // Journals a partition once all of its files are in its archives
+  private void completePartition(SourceRoot root, List<BackupFile> files, FileOperationsUtil.PartitionOutput output,
+      ConcurrentHashMap<String, String> fileHashes) {
+    partitionArchives.addAll(output.archives());
+    if (!output.complete()) {
+      files.forEach(file -> failedEntries.add(root.entryName(file)));
+      return;
+    }
+    Map<String, FileStateIndex.FileState> states = new LinkedHashMap<>();
+    for (BackupFile file : files) {
+      String name = root.entryName(file);
+      states.put(name, FileStateIndex.FileState.of(file).withHash(fileHashes.get(name)));
+    }
+    try {
+      journal.record(output.archives(), states);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void printUnchangedFiles(BackupTarget target, long changedFiles) {
+    if (!target.isFull()) {
+      System.out.println("No. of unchanged files skipped: " + (target.currentIndex().size() - changedFiles));
+    }
+  }
+
+  // Password for the AES key; backup() asks on the console when it is not set
+  public void setEncryptionPassword(String encryptionPassword) {
+    this.encryptionPassword = encryptionPassword;
   }
 
   private void initializeEncryption() {
-    if (config.isEnableEncryption()) {
+    if (config.isEnableEncryption() && encryptionPassword == null) {
       System.out.print("\nEnter password for encryption: ");
       encryptionPassword = new String(System.console().readPassword());
     }
   }
 
-  private record BackupFileData(Queue<Path> filesToBackup, AtomicLong totalBytes) {
+  private record BackupFileData(Map<SourceRoot, Queue<BackupFile>> filesToBackup, AtomicLong totalBytes) {
+
+    long fileCount() {
+      return filesToBackup.values().stream().mapToLong(Queue::size).sum();
+    }
   }
 
-  private BackupFileData gatherFilesToBackupAndCalculateTotalBytes() throws IOException {
-    Queue<Path> filesToBackup = new ConcurrentLinkedQueue<>();
+  private BackupFileData gatherFilesToBackupAndCalculateTotalBytes(List<SourceRoot> roots, BackupTarget target,
+      ConcurrentHashMap<String, String> fileHashes, CompressionAdvisor.SizeEstimator sizeEstimator)
+      throws IOException {
+    Map<SourceRoot, Queue<BackupFile>> filesToBackup = new LinkedHashMap<>();
     AtomicLong totalBytes = new AtomicLong(0);
-    Path sourcePath = Path.of(config.getDefaultSourceDir());
-    Files.walkFileTree(sourcePath, EnumSet.noneOf(FileVisitOption.class), Integer.MAX_VALUE,
-        new SimpleFileVisitor<Path>() {
-          @Override
-          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-            if (FileOperationsUtil.matchPattern(file.toString(), config.getBackupIncludePatterns())
-                && !FileOperationsUtil.matchPattern(file.toString(), config.getBackupExcludePatterns())) {
-              filesToBackup.add(file);
-              totalBytes.addAndGet(attrs.size());
+    for (SourceRoot root : roots) {
+      Queue<BackupFile> rootFiles = new ConcurrentLinkedQueue<>();
+      walkSourceTree(root, target, fileHashes, file -> {
+        rootFiles.add(file);
+        totalBytes.addAndGet(file.size());
+        sizeEstimator.offer(file);
+      });
+      filesToBackup.put(root, rootFiles);
+    }
+    return new BackupFileData(filesToBackup, totalBytes);
+  }
+
+  // Records every scanned file in the current index; only files that differ
+  // from the previous index reach the consumer. Unchanged files keep their hash.
+  private void walkSourceTree(SourceRoot root, BackupTarget target, ConcurrentHashMap<String, String> fileHashes,
+      Consumer<BackupFile> changedFileConsumer) throws IOException {
+    new ParallelFileWalker(config.getScanParallelism()).walk(root.dir(),
+        file -> FileOperationsUtil.matchPattern(file.toString(), config.getBackupIncludePatterns())
+            && !FileOperationsUtil.matchPattern(file.toString(), config.getBackupExcludePatterns()),
+        file -> {
+          String name = root.entryName(file);
+          FileStateIndex.FileState previous = target.previousIndex() != null ? target.previousIndex().get(name)
+              : null;
+          if (previous != null && previous.matches(file)
+              && (previous.hash() != null || !config.isEnableIntegrityCheck())) {
+            target.currentIndex().put(name, previous);
+            if (previous.hash() != null) {
+              fileHashes.put(name, previous.hash());
             }
-            return FileVisitResult.CONTINUE;
+            return;
+          }
+          target.currentIndex().put(name, FileStateIndex.FileState.of(file));
+          if (journal.isCompleted(name, file)) {
+            resumedFiles.put(name, new ResumedFile(root, file));
+            return;
           }
+          changedFileConsumer.accept(file);
         });
-    return new BackupFileData(filesToBackup, totalBytes);
+  }
+
+  // Stops a pipelined scan once the estimate for the files found so far no
+  // longer fits into the space the backup directory had before any partition
+  // was written. Estimating samples files, so it runs once per interval of
+  // scanned bytes, by whichever thread crosses it, and never under the
+  // partitioner lock. A run that cannot fit stops after writing about one
+  // queue's worth of partitions plus that interval.
+  private record SpaceGuard(CompressionAdvisor.SizeEstimator sizeEstimator, AtomicLong totalBytes,
+      long usableSpace, AtomicBoolean exceeded, AtomicLong nextCheck) {
+
+    SpaceGuard(CompressionAdvisor.SizeEstimator sizeEstimator, AtomicLong totalBytes, long usableSpace) {
+      this(sizeEstimator, totalBytes, usableSpace, new AtomicBoolean(false), new AtomicLong(0));
+    }
+
+    void check() {
+      if (!exceeded.get()) {
+        long scanned = totalBytes.get();
+        long due = nextCheck.get();
+        if (scanned < due || !nextCheck.compareAndSet(due, scanned + SPACE_CHECK_INTERVAL_BYTES)) {
+          return;
+        }
+        if (FileOperationsUtil.hasDiskSpace(sizeEstimator.estimate(scanned), usableSpace)) {
+          return;
+        }
+        exceeded.set(true);
+      }
+      throw new CancellationException("Insufficient disk space");
+    }
+  }
+
+  // Scan and backup overlap: the walker fills a bounded queue of partitions
+  // that a fixed set of workers drains. A full queue stalls the walker, so
+  // scanning never runs far ahead of the disks.
+  private void pipelinedBackup() throws IOException {
+    List<SourceRoot> roots = resolveSourceRoots();
+    Path backupDir = Path.of(config.getDefaultBackupDir());
+    FileOperationsUtil.checkAndCreateDir(backupDir);
+    long usableSpace = backupDir.toFile().getUsableSpace();
+    BackupTarget target = resolveBackupTarget(backupDir);
+    SecretKey aesKey = initializeAESKey();
+    openJournal(backupDir, target, aesKey, roots);
+    ChunkStore chunkStore = initializeChunkStore(aesKey);
+    final ConcurrentHashMap<String, String> fileHashes = new ConcurrentHashMap<>();
+    AtomicLong totalBytes = new AtomicLong(0);
+    AtomicLong bytesBackedUp = new AtomicLong(0);
+    AtomicLong bytesProcessed = new AtomicLong(0);
+    AtomicBoolean scanComplete = new AtomicBoolean(false);
+    // Workers waiting on a slow device must not starve the others
+    long deviceCount = roots.stream().map(SourceRoot::device).distinct().count();
+    int workerCount = Runtime.getRuntime().availableProcessors() * (int) deviceCount;
+    BlockingQueue<SourcePartition> partitionQueue = new ArrayBlockingQueue<>(
+        workerCount * PIPELINE_QUEUE_PARTITIONS_PER_WORKER);
+
+    Timer timer = FileOperationsUtil.displayProgressBackup(bytesBackedUp, () -> 2 * totalBytes.get(),
+        scanComplete::get);
+    ExecutorService executorService = Executors.newVirtualThreadPerTaskExecutor();
+    for (int i = 0; i < workerCount; i++) {
+      executorService.submit(() -> drainPartitionQueue(partitionQueue, backupDir, aesKey, bytesBackedUp,
+          bytesProcessed, fileHashes, chunkStore));
+    }
+
+    long targetBytes = config.getPartitionTargetBytes() > 0 ? config.getPartitionTargetBytes()
+        : PIPELINE_TARGET_BYTES;
+    BackupPartitioner partitioner = createPartitioner(targetBytes);
+    CompressionAdvisor.SizeEstimator sizeEstimator = compressionAdvisor.newSizeEstimator();
+    SpaceGuard spaceGuard = new SpaceGuard(sizeEstimator, totalBytes, usableSpace);
+    AtomicLong fileCount = new AtomicLong(0);
+    try {
+      try {
+        for (SourceRoot root : roots) {
+          walkSourceTree(root, target, fileHashes, file -> {
+            fileCount.incrementAndGet();
+            totalBytes.addAndGet(file.size());
+            sizeEstimator.offer(file);
+            BackupPartitioner.Partition partition;
+            synchronized (partitioner) {
+              partition = partitioner.add(file);
+            }
+            enqueuePartition(partitionQueue, root, partition, spaceGuard);
+          });
+          enqueuePartition(partitionQueue, root, partitioner.flush(), spaceGuard);
+        }
+        Map<SourceRoot, List<BackupFile>> redo = new LinkedHashMap<>();
+        for (ResumedFile resumed : resumeCompletedPartitions(fileHashes)) {
+          redo.computeIfAbsent(resumed.root(), root -> new ArrayList<>()).add(resumed.file());
+        }
+        for (Map.Entry<SourceRoot, List<BackupFile>> rootFiles : redo.entrySet()) {
+          for (BackupFile file : rootFiles.getValue()) {
+            fileCount.incrementAndGet();
+            totalBytes.addAndGet(file.size());
+            enqueuePartition(partitionQueue, rootFiles.getKey(), partitioner.add(file), spaceGuard);
+          }
+          enqueuePartition(partitionQueue, rootFiles.getKey(), partitioner.flush(), spaceGuard);
+        }
+      } catch (CancellationException e) {
+        // Partitions still queued are dropped, the ones being written run to the end
+        partitionQueue.clear();
+      } finally {
+        for (int i = 0; i < workerCount; i++) {
+          enqueuePartition(partitionQueue, END_OF_SCAN);
+        }
+        scanComplete.set(true);
+      }
+
+      System.out.println("\nNo. of files to backup: " + fileCount.get());
+      printUnchangedFiles(target, fileCount.get());
+      boolean isEnoughSpace = FileOperationsUtil.checkDiskSpace(estimateBackupSize(sizeEstimator, totalBytes.get()),
+          usableSpace);
+      if (!isEnoughSpace || spaceGuard.exceeded().get()) {
+        abortBackup(executorService, timer);
+        return;
+      }
+      waitForTaskCompletion(executorService);
+      finalizeBackup(backupDir, target, aesKey, bytesBackedUp, totalBytes, fileHashes, timer);
+      printChunkStoreSummary(chunkStore);
+    } finally {
+      // Also when the scan fails, once the workers have their end markers
+      executorService.shutdown();
+      timer.cancel();
+    }
+  }
+
+  // Source size scaled by the compression ratio of a sample of the files
+  private long estimateBackupSize(CompressionAdvisor.SizeEstimator sizeEstimator, long totalBytes) {
+    long estimatedBytes = sizeEstimator.estimate(totalBytes);
+    System.out.println("\nEstimated Backup Size: " + estimatedBytes / (1024 * 1024) + " MB (of "
+        + totalBytes / (1024 * 1024) + " MB source data)");
+    return estimatedBytes;
+  }
+
+  private void enqueuePartition(BlockingQueue<SourcePartition> partitionQueue, SourceRoot root,
+      BackupPartitioner.Partition partition, SpaceGuard spaceGuard) {
+    if (partition != null) {
+      spaceGuard.check();
+      enqueuePartition(partitionQueue, new SourcePartition(root, partition));
+    }
+  }
+
+  private void enqueuePartition(BlockingQueue<SourcePartition> partitionQueue, SourcePartition partition) {
+    try {
+      partitionQueue.put(partition);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Backup scan interrupted", e);
+    }
+  }
+
+  private void drainPartitionQueue(BlockingQueue<SourcePartition> partitionQueue, Path backupDir,
+      SecretKey aesKey, AtomicLong bytesBackedUp, AtomicLong bytesProcessed,
+      ConcurrentHashMap<String, String> fileHashes, ChunkStore chunkStore) {
+    try {
+      SourcePartition next;
+      while ((next = partitionQueue.take()) != END_OF_SCAN) {
+        SourceRoot root = next.root();
+        List<BackupFile> chunkFiles = next.partition().files();
+        try {
+          completePartition(root, chunkFiles, FileOperationsUtil.createPartitionedBackup(chunkFiles, root.base(),
+              backupDir, config, aesKey, bytesBackedUp, bytesProcessed, fileHashes, chunkStore, compressionAdvisor,
+              memoryBudget, root.device()), fileHashes);
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    } catch (InterruptedException e) {
+      System.out.println("\nBackup Interrupted!");
+      e.printStackTrace();
+    }
+  }
+
+  // Waits for the workers, then removes this run's partition archives and its
+  // journal rather than leaving them behind for a resume
+  private void abortBackup(ExecutorService executorService, Timer timer) {
+    waitForTaskCompletion(executorService);
+    IoThrottle.SHARED.stop();
+    timer.cancel();
+    try {
+      for (Path archive : partitionArchives) {
+        Files.deleteIfExists(archive);
+      }
+      journal.delete();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    System.out.println("\nBackup aborted, temporary archives removed.");
+  }
+
+  private ChunkStore initializeChunkStore(SecretKey aesKey) {
+    if (!config.isEnableDeduplication()) {
+      return null;
+    }
+    return new ChunkStore(ChunkStore.rootDir(config), config.isEnableCompression(),
+        config.isEnableEncryption() ? aesKey : null);
+  }
+
+  private void printChunkStoreSummary(ChunkStore chunkStore) {
+    if (chunkStore != null) {
+      System.out.println(chunkStore.summary());
+    }
   }
 
   private SecretKey initializeAESKey() {
@@ -97,34 +504,47 @@ public class BackupManager {
     return aesKey;
   }
 
-  private void executeBackupTasks(Queue<Path> filesToBackup, AtomicLong totalBytes, Path sourcePath, Path backupDir,
-      ExecutorService executorService, SecretKey aesKey, ConcurrentHashMap<String, String> fileHashes, Timer timer,
-      AtomicLong bytesBackedUp) {
-    submitBackupTasks(filesToBackup, totalBytes, sourcePath, backupDir, executorService, aesKey, fileHashes,
+  private void executeBackupTasks(Map<SourceRoot, Queue<BackupFile>> filesToBackup, AtomicLong totalBytes,
+      Path backupDir, BackupTarget target, ExecutorService executorService, SecretKey aesKey,
+      ConcurrentHashMap<String, String> fileHashes, ChunkStore chunkStore, Timer timer, AtomicLong bytesBackedUp) {
+    submitBackupTasks(filesToBackup, totalBytes, backupDir, executorService, aesKey, fileHashes, chunkStore,
         bytesBackedUp);
     waitForTaskCompletion(executorService);
-    finalizeBackup(backupDir, aesKey, bytesBackedUp, totalBytes, fileHashes, timer);
+    finalizeBackup(backupDir, target, aesKey, bytesBackedUp, totalBytes, fileHashes, timer);
+    printChunkStoreSummary(chunkStore);
   }
 
-  private void submitBackupTasks(Queue<Path> filesToBackup, AtomicLong totalBytes, Path sourcePath, Path backupDir,
-      ExecutorService executorService, SecretKey aesKey, ConcurrentHashMap<String, String> fileHashes,
-      AtomicLong bytesBackedUp) {
-    for (int i = 0; i < filesToBackup.size(); i += CHUNK_SIZE) {
-      int end = Math.min(i + CHUNK_SIZE, filesToBackup.size());
-      List<Path> tempFileList = new ArrayList<>(filesToBackup);
-      List<Path> chunkFiles = tempFileList.subList(i, end);
-      Runnable backupTask = () -> {
-        try {
-          FileOperationsUtil.createPartitionedBackup(chunkFiles, sourcePath, backupDir, config, aesKey, bytesBackedUp,
-              totalBytes, fileHashes);
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
-      };
-      executorService.submit(backupTask);
+  // Every partition gets its own virtual thread; the device limits decide how
+  // many of them read from the same disk at once
+  private void submitBackupTasks(Map<SourceRoot, Queue<BackupFile>> filesToBackup, AtomicLong totalBytes,
+      Path backupDir, ExecutorService executorService, SecretKey aesKey, ConcurrentHashMap<String, String> fileHashes,
+      ChunkStore chunkStore, AtomicLong bytesBackedUp) {
+    long targetBytes = config.getPartitionTargetBytes() > 0 ? config.getPartitionTargetBytes()
+        : BackupPartitioner.autoTargetBytes(totalBytes.get());
+    for (Map.Entry<SourceRoot, Queue<BackupFile>> rootFiles : filesToBackup.entrySet()) {
+      SourceRoot root = rootFiles.getKey();
+      for (BackupPartitioner.Partition partition : createPartitioner(targetBytes).partition(rootFiles.getValue())) {
+        List<BackupFile> chunkFiles = partition.files();
+        Runnable backupTask = () -> {
+          try {
+            completePartition(root, chunkFiles, FileOperationsUtil.createPartitionedBackup(chunkFiles, root.base(),
+                backupDir, config, aesKey, bytesBackedUp, totalBytes, fileHashes, chunkStore, compressionAdvisor,
+                memoryBudget, root.device()), fileHashes);
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+        };
+        executorService.submit(backupTask);
+      }
     }
   }
 
+  private BackupPartitioner createPartitioner(long targetBytes) {
+    int maxFiles = config.getPartitionMaxFiles() > 0 ? config.getPartitionMaxFiles()
+        : BackupPartitioner.DEFAULT_MAX_FILES;
+    return new BackupPartitioner(targetBytes, maxFiles);
+  }
+
   private void waitForTaskCompletion(ExecutorService executorService) {
     executorService.shutdown();
     try {
@@ -135,19 +555,52 @@ public class BackupManager {
     }
   }
 
-  private void finalizeBackup(Path backupDir, SecretKey aesKey, AtomicLong bytesBackedUp, AtomicLong totalBytes,
-      ConcurrentHashMap<String, String> fileHashes, Timer timer) {
+  // Files of failed partitions keep the state they had before this run, or
+  // none at all, so the next run does not take them as unchanged
+  private void revertFailedEntries(BackupTarget target) {
+    for (String name : failedEntries) {
+      FileStateIndex.FileState previous = target.isFull() ? null : target.previousIndex().get(name);
+      if (previous != null) {
+        target.currentIndex().put(name, previous);
+      } else {
+        target.currentIndex().remove(name);
+      }
+    }
+    if (!failedEntries.isEmpty()) {
+      System.out.println("\nNo. of files that failed and are backed up again next run: " + failedEntries.size());
+    }
+  }
+
+  private void finalizeBackup(Path backupDir, BackupTarget target, SecretKey aesKey, AtomicLong bytesBackedUp,
+      AtomicLong totalBytes, ConcurrentHashMap<String, String> fileHashes, Timer timer) {
+    IoThrottle.SHARED.stop();
+    revertFailedEntries(target);
     try {
-      List<Path> tempZips = new ArrayList<>();
-      try (DirectoryStream<Path> stream = Files.newDirectoryStream(backupDir, "temp_*.zip")) {
-        for (Path entry : stream) {
-          tempZips.add(entry);
+      // Only the archives of this run's partitions, never stray temp files
+      List<Path> tempZips = new ArrayList<>(partitionArchives);
+      if (!target.isFull()) {
+        List<String> deletedEntries = target.previousIndex().namesMissingFrom(target.currentIndex());
+        Path markers = FileOperationsUtil.createDeletionMarkers(deletedEntries, backupDir);
+        if (markers != null) {
+          tempZips.add(markers);
         }
+        System.out.println("\nNo. of deleted files recorded: " + deletedEntries.size());
+      }
+      FileOperationsUtil.mergeTemporaryFilesIntoOne(target.archivePath(), tempZips, bytesBackedUp, fileHashes,
+          config);
+      target.currentIndex().applyHashes(fileHashes);
+      target.currentIndex().save(BackupChain.indexFile(backupDir));
+      if (target.isFull()) {
+        target.currentIndex().save(BackupChain.fullIndexFile(backupDir));
       }
-      FileOperationsUtil.mergeTemporaryFilesIntoOne(backupDir.resolve("backup.zip"), tempZips, bytesBackedUp,
-          fileHashes, config);
+      BackupChain.removeSupersededArchives(backupDir, target.archivePath());
+      journal.delete();
       KeyManagementUtil.saveKeyToFile(aesKey, config.getAesFileKeyDir() + "/aes.key", encryptionPassword);
       System.out.println("\nBackup complete!");
+      System.out.println(BufferPool.SHARED.summary());
+      System.out.println(memoryBudget.summary());
+      System.out.println(deviceScheduler.summary());
+      System.out.println(IoThrottle.SHARED.summary());
       timer.cancel();
     } catch (Exception e) {
       System.out.println("\nSaving key to file failed!");
@@ -0,0 +1,81 @@
+package main.java.backup;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ * Groups files into partitions of roughly equal byte volume in a single pass.
+ * A file at or above the target size gets a partition of its own, and the
+ * largest partitions are handed out first so no worker is left finishing a
+ * big one alone at the end.
+ */
+public class BackupPartitioner {
+  public static final int DEFAULT_MAX_FILES = 1000;
+  private static final int PARTITIONS_PER_CORE = 4;
+  private static final long MIN_TARGET_BYTES = 8L * 1024 * 1024;
+  private static final long MAX_TARGET_BYTES = 256L * 1024 * 1024;
+
+  private final long targetBytes;
+  private final int maxFiles;
+  private List<BackupFile> current = new ArrayList<>();
+  private long currentBytes = 0;
+
+  public record Partition(List<BackupFile> files, long bytes) {
+  }
+
+  public BackupPartitioner(long targetBytes, int maxFiles) {
+    this.targetBytes = Math.max(1, targetBytes);
+    this.maxFiles = Math.max(1, maxFiles);
+  }
+
+  // Spreads the total over a few partitions per core, within sane bounds
+  public static long autoTargetBytes(long totalBytes) {
+    int cores = Runtime.getRuntime().availableProcessors();
+    long target = totalBytes / ((long) cores * PARTITIONS_PER_CORE);
+    return Math.min(MAX_TARGET_BYTES, Math.max(MIN_TARGET_BYTES, target));
+  }
+
+  public long getTargetBytes() {
+    return targetBytes;
+  }
+
+  public List<Partition> partition(Iterable<BackupFile> files) {
+    List<Partition> partitions = new ArrayList<>();
+    for (BackupFile file : files) {
+      Partition completed = add(file);
+      if (completed != null) {
+        partitions.add(completed);
+      }
+    }
+    Partition last = flush();
+    if (last != null) {
+      partitions.add(last);
+    }
+    partitions.sort(Comparator.comparingLong(Partition::bytes).reversed());
+    return partitions;
+  }
+
+  // Returns a completed partition, or null while the current one is still filling up
+  public Partition add(BackupFile file) {
+    if (file.size() >= targetBytes) {
+      return new Partition(List.of(file), file.size());
+    }
+    current.add(file);
+    currentBytes += file.size();
+    if (currentBytes >= targetBytes || current.size() >= maxFiles) {
+      return flush();
+    }
+    return null;
+  }
+
+  public Partition flush() {
+    if (current.isEmpty()) {
+      return null;
+    }
+    Partition partition = new Partition(current, currentBytes);
+    current = new ArrayList<>();
+    currentBytes = 0;
+    return partition;
+  }
+}
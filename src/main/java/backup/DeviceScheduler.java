@@ -0,0 +1,183 @@
+package main.java.backup;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * One concurrency limit per FileStore, so source directories on different
+ * devices are read at their own pace. Each limit is tuned AIMD-style from the
+ * time files take per 64 KB: after every window of completed files it grows
+ * by one while latency stays near the best seen and the limit was actually
+ * in use, and drops by a quarter once latency climbs past twice that. A fast
+ * SSD therefore ends up with many files in flight while a spinning disk
+ * settles at the few it can serve without seeking back and forth.
+ */
+public class DeviceScheduler {
+  public static final int DEFAULT_MAX_CONCURRENCY = 64;
+  private static final long LATENCY_UNIT_BYTES = 64 * 1024;
+  private static final double LATENCY_TOLERANCE = 2.0;
+  private static final double DECREASE_FACTOR = 0.75;
+  private static final double BASELINE_DRIFT = 1.02;
+  private static final int MIN_WINDOW = 8;
+
+  private final Map<FileStore, Device> devices = new ConcurrentHashMap<>();
+  private final int initialLimit;
+  private final int maxLimit;
+
+  public DeviceScheduler(int initialLimit, int maxLimit) {
+    this.maxLimit = Math.max(1, maxLimit);
+    this.initialLimit = Math.max(1, Math.min(initialLimit, this.maxLimit));
+  }
+
+  // Starts every device at the core count
+  public static DeviceScheduler forMaxConcurrency(int maxConcurrency) {
+    int max = maxConcurrency > 0 ? maxConcurrency : DEFAULT_MAX_CONCURRENCY;
+    return new DeviceScheduler(Runtime.getRuntime().availableProcessors(), max);
+  }
+
+  public Device deviceFor(Path dir) throws IOException {
+    FileStore store = Files.getFileStore(dir);
+    return devices.computeIfAbsent(store, s -> new Device(s.name(), initialLimit, maxLimit));
+  }
+
+  public String summary() {
+    List<String> lines = new ArrayList<>();
+    for (Device device : devices.values()) {
+      lines.add(device.summary());
+    }
+    return String.join("\n", lines);
+  }
+
+  public static class Device {
+    private final String name;
+    private final int maxLimit;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition slotFreed = lock.newCondition();
+    private double limit;
+    private int inFlight = 0;
+    private int peakInFlight = 0;
+    private boolean saturated = false;
+    private int windowPeak = 0;
+    private int windowCount = 0;
+    private double windowLatency = 0;
+    private double baselineLatency = 0;
+    private long completed = 0;
+    private long decreases = 0;
+
+    public Device(String name, int initialLimit, int maxLimit) {
+      this.name = name;
+      this.limit = initialLimit;
+      this.maxLimit = maxLimit;
+    }
+
+    // bytes is the size of the file the slot is used for
+    public Slot acquire(long bytes) throws InterruptedException {
+      lock.lock();
+      try {
+        while (inFlight >= (int) limit) {
+          slotFreed.await();
+        }
+        inFlight++;
+        peakInFlight = Math.max(peakInFlight, inFlight);
+        windowPeak = Math.max(windowPeak, inFlight);
+        if (inFlight >= (int) limit) {
+          saturated = true;
+        }
+      } finally {
+        lock.unlock();
+      }
+      return new Slot(bytes);
+    }
+
+    private void release(long bytes, long nanos) {
+      lock.lock();
+      try {
+        inFlight--;
+        completed++;
+        long units = Math.max(1, (bytes + LATENCY_UNIT_BYTES - 1) / LATENCY_UNIT_BYTES);
+        windowLatency += (double) nanos / units;
+        if (++windowCount >= Math.max(MIN_WINDOW, (int) limit)) {
+          adjust(windowLatency / windowCount);
+          windowCount = 0;
+          windowLatency = 0;
+          saturated = inFlight >= (int) limit;
+          windowPeak = inFlight;
+        }
+        slotFreed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    // The baseline follows lower latencies at once and higher ones slowly, so
+    // a lasting change in the file mix becomes the new normal. A window that
+    // read one file at a time says nothing about contention and never backs off.
+    private void adjust(double latency) {
+      if (baselineLatency == 0) {
+        baselineLatency = latency;
+        return;
+      }
+      if (latency > baselineLatency * LATENCY_TOLERANCE && windowPeak > 1) {
+        limit = Math.max(1, limit * DECREASE_FACTOR);
+        decreases++;
+      } else if (saturated) {
+        limit = Math.min(maxLimit, limit + 1);
+      }
+      baselineLatency = Math.min(latency, baselineLatency * BASELINE_DRIFT);
+    }
+
+    public int limit() {
+      lock.lock();
+      try {
+        return (int) limit;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    public int inFlight() {
+      lock.lock();
+      try {
+        return inFlight;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    String summary() {
+      lock.lock();
+      try {
+        return String.format("Device %s: limit %d, peak %d in flight, %d files, %d decreases", name, (int) limit,
+            peakInFlight, completed, decreases);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    public class Slot implements AutoCloseable {
+      private final long bytes;
+      private final long start = System.nanoTime();
+      private boolean released = false;
+
+      private Slot(long bytes) {
+        this.bytes = bytes;
+      }
+
+      @Override
+      public void close() {
+        if (!released) {
+          released = true;
+          release(bytes, System.nanoTime() - start);
+        }
+      }
+    }
+  }
+}
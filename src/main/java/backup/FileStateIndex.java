@@ -0,0 +1,124 @@
+package main.java.backup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Persistent entry name -> (size, mtime, file key, content hash) map kept next
+ * to the backup. An incremental run compares each scanned file with it and
+ * skips files whose stat data has not changed since they were last backed up.
+ */
+public class FileStateIndex {
+  private static final int MAGIC = 0x42524649; // "BRFI"
+  private static final int VERSION = 1;
+
+  private final ConcurrentHashMap<String, FileState> states = new ConcurrentHashMap<>();
+
+  public record FileState(long size, long lastModified, String fileKey, String hash) {
+
+    public static FileState of(BackupFile file) {
+      return new FileState(file.size(), file.lastModified(), file.fileKey(), null);
+    }
+
+    // A changed inode means the file was replaced, even if size and mtime match
+    public boolean matches(BackupFile file) {
+      return size == file.size() && lastModified == file.lastModified()
+          && (fileKey == null || file.fileKey() == null || fileKey.equals(file.fileKey()));
+    }
+
+    public FileState withHash(String newHash) {
+      return new FileState(size, lastModified, fileKey, newHash);
+    }
+  }
+
+  public FileState get(String name) {
+    return states.get(name);
+  }
+
+  public void put(String name, FileState state) {
+    states.put(name, state);
+  }
+
+  public void remove(String name) {
+    states.remove(name);
+  }
+
+  public int size() {
+    return states.size();
+  }
+
+  public Set<String> names() {
+    return states.keySet();
+  }
+
+  // Names present here but not in the newer index, i.e. deleted since
+  public List<String> namesMissingFrom(FileStateIndex newer) {
+    List<String> missing = new ArrayList<>();
+    for (String name : states.keySet()) {
+      if (newer.get(name) == null) {
+        missing.add(name);
+      }
+    }
+    return missing;
+  }
+
+  // Fills in the hashes computed for the files backed up in this run
+  public void applyHashes(Map<String, String> fileHashes) {
+    states.replaceAll((name, state) -> state.hash() == null && fileHashes.containsKey(name)
+        ? state.withHash(fileHashes.get(name))
+        : state);
+  }
+
+  public static FileStateIndex load(Path indexFile) throws IOException {
+    if (!Files.exists(indexFile)) {
+      return null;
+    }
+    FileStateIndex index = new FileStateIndex();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Unsupported file state index: " + indexFile);
+      }
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        String name = in.readUTF();
+        long size = in.readLong();
+        long lastModified = in.readLong();
+        String fileKey = in.readUTF();
+        String hash = in.readUTF();
+        index.put(name, new FileState(size, lastModified, fileKey.isEmpty() ? null : fileKey,
+            hash.isEmpty() ? null : hash));
+      }
+    }
+    return index;
+  }
+
+  // Written to a temp file and renamed, so a crash never leaves half an index
+  public void save(Path indexFile) throws IOException {
+    Path tempFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(states.size());
+      for (Map.Entry<String, FileState> entry : states.entrySet()) {
+        FileState state = entry.getValue();
+        out.writeUTF(entry.getKey());
+        out.writeLong(state.size());
+        out.writeLong(state.lastModified());
+        out.writeUTF(state.fileKey() != null ? state.fileKey() : "");
+        out.writeUTF(state.hash() != null ? state.hash() : "");
+      }
+    }
+    Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
@@ -0,0 +1,91 @@
+package main.java.backup;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/*
+ * Fork/join replacement for Files.walkFileTree: sibling subdirectories are
+ * listed concurrently. Like walkFileTree without FOLLOW_LINKS, symbolic links
+ * are reported as files and never descended into. The consumer is called from
+ * several threads and must be thread-safe.
+ */
+public class ParallelFileWalker {
+  private final int parallelism;
+
+  public ParallelFileWalker(int parallelism) {
+    this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+  }
+
+  public void walk(Path start, Predicate<Path> filter, Consumer<BackupFile> fileConsumer) throws IOException {
+    BasicFileAttributes attrs = Files.readAttributes(start, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    if (!attrs.isDirectory()) {
+      visitFile(start, attrs, filter, fileConsumer);
+      return;
+    }
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      pool.invoke(new DirectoryTask(start, filter, fileConsumer));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private static void visitFile(Path file, BasicFileAttributes attrs, Predicate<Path> filter,
+      Consumer<BackupFile> fileConsumer) {
+    if (filter.test(file)) {
+      Object fileKey = attrs.fileKey();
+      fileConsumer.accept(new BackupFile(file, attrs.size(), attrs.lastModifiedTime().toMillis(),
+          fileKey != null ? fileKey.toString() : null));
+    }
+  }
+
+  // Tasks only live inside one walk and are never serialized
+  private static class DirectoryTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final transient Path dir;
+    private final transient Predicate<Path> filter;
+    private final transient Consumer<BackupFile> fileConsumer;
+
+    DirectoryTask(Path dir, Predicate<Path> filter, Consumer<BackupFile> fileConsumer) {
+      this.dir = dir;
+      this.filter = filter;
+      this.fileConsumer = fileConsumer;
+    }
+
+    @Override
+    protected void compute() {
+      List<DirectoryTask> subdirectories = new ArrayList<>();
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+        for (Path child : stream) {
+          BasicFileAttributes attrs = Files.readAttributes(child, BasicFileAttributes.class,
+              LinkOption.NOFOLLOW_LINKS);
+          if (attrs.isDirectory()) {
+            DirectoryTask task = new DirectoryTask(child, filter, fileConsumer);
+            task.fork();
+            subdirectories.add(task);
+          } else {
+            visitFile(child, attrs, filter, fileConsumer);
+          }
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      for (DirectoryTask task : subdirectories) {
+        task.join();
+      }
+    }
+  }
+}
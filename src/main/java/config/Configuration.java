@@ -15,6 +15,7 @@ import org.json.simple.parser.ParseException;
 public class Configuration {
 
   private String defaultSourceDir;
+  private List<String> sourceDirs;
   private String defaultBackupDir;
   private String defaultRestoreDir;
   private boolean enableCompression;
@@ -29,6 +30,29 @@ public class Configuration {
   private String hashFileDir;
   private boolean enableLogging;
   private String logFileLocation;
+  private boolean enableStreamingBackup;
+  private long partitionTargetBytes;
+  private int partitionMaxFiles;
+  private boolean enablePipelinedBackup;
+  private int scanParallelism;
+  private long parallelCompressionThreshold;
+  private int parallelCompressionBlockSize;
+  private boolean enableDeduplication;
+  private String chunkStoreDir;
+  private String backupMode;
+  private String hashManifestFormat;
+  private boolean adaptiveCompression;
+  private int compressionTargetMBps;
+  private String compressionCodec;
+  private long solidBlockMaxFileSize;
+  private int solidBlockSize;
+  private long mappedReadThreshold;
+  private long memoryBudgetBytes;
+  private int maxDeviceConcurrency;
+  private long maxReadBytesPerSecond;
+  private long maxWriteBytesPerSecond;
+  private long maxFilesPerSecond;
+  private Path configFile;
 
   private void readJsonConfig(String configFilePath) {
     JSONParser parser = new JSONParser();
@@ -37,17 +61,30 @@ public class Configuration {
       if (configFilePath != null) {
         // Read the String input config.json
         configJson = (JSONObject) parser.parse(new FileReader(configFilePath.toString()));
+        configFile = Path.of(configFilePath);
       } else {
         // Read the default-config.json
         Path configClassPath = Path.of(Configuration.class.getProtectionDomain().getCodeSource().getLocation().toURI());
         Path configFile = Path.of(configClassPath.getParent().toString(), "config", "default-config.json");
         configJson = (JSONObject) parser.parse(new FileReader(configFile.toString()));
+        this.configFile = configFile;
       }
 
       // Initialize fields with null checks
       if (configJson.get("defaultSourceDir") != null) {
         defaultSourceDir = (String) configJson.get("defaultSourceDir");
       }
+      if (configJson.get("sourceDirs") != null) {
+        Object sourceDirsObj = configJson.get("sourceDirs");
+        if (sourceDirsObj instanceof List) {
+          List<?> tempList = (List<?>) sourceDirsObj;
+          if (tempList.stream().allMatch(item -> item instanceof String)) {
+            sourceDirs = tempList.stream()
+                .map(Object::toString)
+                .collect(Collectors.toList());
+          }
+        }
+      }
       if (configJson.get("defaultBackupDir") != null) {
         defaultBackupDir = (String) configJson.get("defaultBackupDir");
       }
@@ -122,6 +159,72 @@ public class Configuration {
       if (configJson.get("logFileLocation") != null) {
         logFileLocation = (String) configJson.get("logFileLocation");
       }
+      if (configJson.get("enableStreamingBackup") != null) {
+        enableStreamingBackup = (Boolean) configJson.get("enableStreamingBackup");
+      }
+      if (configJson.get("partitionTargetBytes") != null) {
+        partitionTargetBytes = (Long) configJson.get("partitionTargetBytes");
+      }
+      if (configJson.get("partitionMaxFiles") != null) {
+        partitionMaxFiles = ((Long) configJson.get("partitionMaxFiles")).intValue();
+      }
+      if (configJson.get("enablePipelinedBackup") != null) {
+        enablePipelinedBackup = (Boolean) configJson.get("enablePipelinedBackup");
+      }
+      if (configJson.get("scanParallelism") != null) {
+        scanParallelism = ((Long) configJson.get("scanParallelism")).intValue();
+      }
+      if (configJson.get("parallelCompressionThreshold") != null) {
+        parallelCompressionThreshold = (Long) configJson.get("parallelCompressionThreshold");
+      }
+      if (configJson.get("parallelCompressionBlockSize") != null) {
+        parallelCompressionBlockSize = ((Long) configJson.get("parallelCompressionBlockSize")).intValue();
+      }
+      if (configJson.get("enableDeduplication") != null) {
+        enableDeduplication = (Boolean) configJson.get("enableDeduplication");
+      }
+      if (configJson.get("chunkStoreDir") != null) {
+        chunkStoreDir = (String) configJson.get("chunkStoreDir");
+      }
+      if (configJson.get("backupMode") != null) {
+        backupMode = (String) configJson.get("backupMode");
+      }
+      if (configJson.get("hashManifestFormat") != null) {
+        hashManifestFormat = (String) configJson.get("hashManifestFormat");
+      }
+      if (configJson.get("adaptiveCompression") != null) {
+        adaptiveCompression = (Boolean) configJson.get("adaptiveCompression");
+      }
+      if (configJson.get("compressionTargetMBps") != null) {
+        compressionTargetMBps = ((Long) configJson.get("compressionTargetMBps")).intValue();
+      }
+      if (configJson.get("compressionCodec") != null) {
+        compressionCodec = (String) configJson.get("compressionCodec");
+      }
+      if (configJson.get("solidBlockMaxFileSize") != null) {
+        solidBlockMaxFileSize = (Long) configJson.get("solidBlockMaxFileSize");
+      }
+      if (configJson.get("solidBlockSize") != null) {
+        solidBlockSize = ((Long) configJson.get("solidBlockSize")).intValue();
+      }
+      if (configJson.get("mappedReadThreshold") != null) {
+        mappedReadThreshold = (Long) configJson.get("mappedReadThreshold");
+      }
+      if (configJson.get("memoryBudgetBytes") != null) {
+        memoryBudgetBytes = (Long) configJson.get("memoryBudgetBytes");
+      }
+      if (configJson.get("maxDeviceConcurrency") != null) {
+        maxDeviceConcurrency = ((Long) configJson.get("maxDeviceConcurrency")).intValue();
+      }
+      if (configJson.get("maxReadBytesPerSecond") != null) {
+        maxReadBytesPerSecond = (Long) configJson.get("maxReadBytesPerSecond");
+      }
+      if (configJson.get("maxWriteBytesPerSecond") != null) {
+        maxWriteBytesPerSecond = (Long) configJson.get("maxWriteBytesPerSecond");
+      }
+      if (configJson.get("maxFilesPerSecond") != null) {
+        maxFilesPerSecond = (Long) configJson.get("maxFilesPerSecond");
+      }
     } catch (IOException | ParseException | URISyntaxException e) {
       System.out.println("Error reading configuration: " + e.getMessage());
       throw new RuntimeException(e);
@@ -144,6 +247,10 @@ public class Configuration {
     this.defaultSourceDir = defaultSourceDir;
   }
 
+  public List<String> getSourceDirs() {
+    return sourceDirs;
+  }
+
   public String getDefaultBackupDir() {
     return defaultBackupDir;
   }
@@ -212,6 +319,163 @@ public class Configuration {
     return logFileLocation;
   }
 
+  public boolean isEnableStreamingBackup() {
+    return enableStreamingBackup;
+  }
+
+  public void setEnableStreamingBackup(boolean enableStreamingBackup) {
+    this.enableStreamingBackup = enableStreamingBackup;
+  }
+
+  public long getPartitionTargetBytes() {
+    return partitionTargetBytes;
+  }
+
+  public int getPartitionMaxFiles() {
+    return partitionMaxFiles;
+  }
+
+  public boolean isEnablePipelinedBackup() {
+    return enablePipelinedBackup;
+  }
+
+  public void setEnablePipelinedBackup(boolean enablePipelinedBackup) {
+    this.enablePipelinedBackup = enablePipelinedBackup;
+  }
+
+  public int getScanParallelism() {
+    return scanParallelism;
+  }
+
+  public long getParallelCompressionThreshold() {
+    return parallelCompressionThreshold;
+  }
+
+  public void setParallelCompressionThreshold(long parallelCompressionThreshold) {
+    this.parallelCompressionThreshold = parallelCompressionThreshold;
+  }
+
+  public int getParallelCompressionBlockSize() {
+    return parallelCompressionBlockSize;
+  }
+
+  public boolean isEnableDeduplication() {
+    return enableDeduplication;
+  }
+
+  public void setEnableDeduplication(boolean enableDeduplication) {
+    this.enableDeduplication = enableDeduplication;
+  }
+
+  public String getChunkStoreDir() {
+    return chunkStoreDir;
+  }
+
+  public void setChunkStoreDir(String chunkStoreDir) {
+    this.chunkStoreDir = chunkStoreDir;
+  }
+
+  public String getBackupMode() {
+    return backupMode;
+  }
+
+  public void setBackupMode(String backupMode) {
+    this.backupMode = backupMode;
+  }
+
+  public String getHashManifestFormat() {
+    return hashManifestFormat;
+  }
+
+  public void setHashManifestFormat(String hashManifestFormat) {
+    this.hashManifestFormat = hashManifestFormat;
+  }
+
+  public boolean isAdaptiveCompression() {
+    return adaptiveCompression;
+  }
+
+  public void setAdaptiveCompression(boolean adaptiveCompression) {
+    this.adaptiveCompression = adaptiveCompression;
+  }
+
+  public int getCompressionTargetMBps() {
+    return compressionTargetMBps;
+  }
+
+  public String getCompressionCodec() {
+    return compressionCodec;
+  }
+
+  public void setCompressionCodec(String compressionCodec) {
+    this.compressionCodec = compressionCodec;
+  }
+
+  public long getSolidBlockMaxFileSize() {
+    return solidBlockMaxFileSize;
+  }
+
+  public void setSolidBlockMaxFileSize(long solidBlockMaxFileSize) {
+    this.solidBlockMaxFileSize = solidBlockMaxFileSize;
+  }
+
+  public int getSolidBlockSize() {
+    return solidBlockSize;
+  }
+
+  public long getMappedReadThreshold() {
+    return mappedReadThreshold;
+  }
+
+  public void setMappedReadThreshold(long mappedReadThreshold) {
+    this.mappedReadThreshold = mappedReadThreshold;
+  }
+
+  public long getMemoryBudgetBytes() {
+    return memoryBudgetBytes;
+  }
+
+  public void setMemoryBudgetBytes(long memoryBudgetBytes) {
+    this.memoryBudgetBytes = memoryBudgetBytes;
+  }
+
+  public int getMaxDeviceConcurrency() {
+    return maxDeviceConcurrency;
+  }
+
+  public void setMaxDeviceConcurrency(int maxDeviceConcurrency) {
+    this.maxDeviceConcurrency = maxDeviceConcurrency;
+  }
+
+  public long getMaxReadBytesPerSecond() {
+    return maxReadBytesPerSecond;
+  }
+
+  public void setMaxReadBytesPerSecond(long maxReadBytesPerSecond) {
+    this.maxReadBytesPerSecond = maxReadBytesPerSecond;
+  }
+
+  public long getMaxWriteBytesPerSecond() {
+    return maxWriteBytesPerSecond;
+  }
+
+  public void setMaxWriteBytesPerSecond(long maxWriteBytesPerSecond) {
+    this.maxWriteBytesPerSecond = maxWriteBytesPerSecond;
+  }
+
+  public long getMaxFilesPerSecond() {
+    return maxFilesPerSecond;
+  }
+
+  public void setMaxFilesPerSecond(long maxFilesPerSecond) {
+    this.maxFilesPerSecond = maxFilesPerSecond;
+  }
+
+  // The file the settings were read from, for reloading them while a job runs
+  public Path getConfigFile() {
+    return configFile;
+  }
+
   public void print() {
     Field[] fields = this.getClass().getDeclaredFields();
     System.out.println("\nCurrent Configuration:");
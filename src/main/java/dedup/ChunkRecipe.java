@@ -0,0 +1,45 @@
+package main.java.dedup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Body of a deduplicated archive entry: the ordered list of chunks that make
+ * up the file. One "<sha256> <length>" line per chunk after a version header.
+ */
+public class ChunkRecipe {
+  private static final String HEADER = "brf-recipe 1";
+
+  public record ChunkRef(String hash, int length) {
+  }
+
+  public static void write(List<ChunkRef> chunks, OutputStream out) throws IOException {
+    StringBuilder sb = new StringBuilder(HEADER).append('\n');
+    for (ChunkRef chunk : chunks) {
+      sb.append(chunk.hash()).append(' ').append(chunk.length()).append('\n');
+    }
+    out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  public static List<ChunkRef> parse(byte[] recipe) throws IOException {
+    String[] lines = new String(recipe, StandardCharsets.UTF_8).split("\n");
+    if (lines.length == 0 || !lines[0].equals(HEADER)) {
+      throw new IOException("Not a chunk recipe");
+    }
+    List<ChunkRef> chunks = new ArrayList<>(lines.length - 1);
+    for (int i = 1; i < lines.length; i++) {
+      if (lines[i].isEmpty()) {
+        continue;
+      }
+      int space = lines[i].indexOf(' ');
+      if (space < 0) {
+        throw new IOException("Malformed chunk recipe line: " + lines[i]);
+      }
+      chunks.add(new ChunkRef(lines[i].substring(0, space), Integer.parseInt(lines[i].substring(space + 1))));
+    }
+    return chunks;
+  }
+}
@@ -0,0 +1,199 @@
+package main.java.dedup;
+
+import main.java.config.Configuration;
+import main.java.util.GcmChunkedCipher;
+import main.java.util.HashingEngine;
+import main.java.util.KeyManagementUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.crypto.SecretKey;
+
+/*
+ * Content-addressed store of unique chunks: <storeDir>/<keyId>/<ab>/<sha256>.
+ * Chunks are named after the SHA-256 of their plaintext, so a chunk already
+ * present is never written again. Each AES key gets its own namespace, so a
+ * backup under a new password never references chunks it cannot decrypt.
+ */
+public class ChunkStore {
+  private static final String CHUNK_HASH_ALGORITHM = "SHA-256";
+  private static final int FLAG_COMPRESSED = 0x01;
+  private static final int FLAG_ENCRYPTED = 0x02;
+  private static final int FLAG_GCM = 0x04;
+  private static final int COMPRESSION_LEVEL = 9;
+
+  private final Path storeDir;
+  private final boolean enableCompression;
+  private final SecretKey aesKey;
+  private final AtomicLong chunksWritten = new AtomicLong(0);
+  private final AtomicLong chunksReused = new AtomicLong(0);
+  private final AtomicLong bytesStored = new AtomicLong(0);
+
+  public ChunkStore(Path rootDir, boolean enableCompression, SecretKey aesKey) {
+    this.storeDir = rootDir.resolve(keyNamespace(aesKey));
+    this.enableCompression = enableCompression;
+    this.aesKey = aesKey;
+  }
+
+  public static Path rootDir(Configuration config) {
+    if (config.getChunkStoreDir() != null) {
+      return Path.of(config.getChunkStoreDir());
+    }
+    return Path.of(config.getDefaultBackupDir(), "chunks");
+  }
+
+  public static String keyNamespace(SecretKey aesKey) {
+    if (aesKey == null) {
+      return "plain";
+    }
+    try {
+      byte[] digest = MessageDigest.getInstance(CHUNK_HASH_ALGORITHM).digest(aesKey.getEncoded());
+      return "key-" + HexFormat.of().formatHex(digest, 0, 8);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public static String hashChunk(byte[] data, int offset, int length) {
+    try {
+      return HashingEngine.forAlgorithm(CHUNK_HASH_ALGORITHM).hash(data, offset, length);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private Path chunkPath(String hash) {
+    return storeDir.resolve(hash.substring(0, 2)).resolve(hash);
+  }
+
+  // Stores the chunk unless it is already present; returns its hash
+  public String put(byte[] data, int offset, int length) throws IOException {
+    String hash = hashChunk(data, offset, length);
+    Path chunkFile = chunkPath(hash);
+    if (Files.exists(chunkFile)) {
+      chunksReused.incrementAndGet();
+      return hash;
+    }
+    byte[] encoded = encode(data, offset, length);
+    Files.createDirectories(chunkFile.getParent());
+    Path tempFile = Files.createTempFile(chunkFile.getParent(), hash, ".tmp");
+    try {
+      Files.write(tempFile, encoded);
+      Files.move(tempFile, chunkFile, StandardCopyOption.ATOMIC_MOVE);
+      chunksWritten.incrementAndGet();
+      bytesStored.addAndGet(encoded.length);
+    } catch (FileAlreadyExistsException e) {
+      // Another worker stored the same chunk first
+      chunksReused.incrementAndGet();
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+    return hash;
+  }
+
+  public byte[] get(String hash) throws IOException {
+    byte[] encoded = Files.readAllBytes(chunkPath(hash));
+    byte[] data = decode(encoded);
+    if (!hashChunk(data, 0, data.length).equals(hash)) {
+      throw new IOException("Chunk failed integrity check: " + hash);
+    }
+    return data;
+  }
+
+  private byte[] encode(byte[] data, int offset, int length) throws IOException {
+    int flags = 0;
+    byte[] payload = Arrays.copyOfRange(data, offset, offset + length);
+    if (enableCompression) {
+      byte[] compressed = deflate(payload);
+      if (compressed.length < payload.length) {
+        payload = compressed;
+        flags |= FLAG_COMPRESSED;
+      }
+    }
+    if (aesKey != null) {
+      payload = GcmChunkedCipher.encrypt(payload, aesKey);
+      flags |= FLAG_ENCRYPTED | FLAG_GCM;
+    }
+    byte[] encoded = new byte[payload.length + 1];
+    encoded[0] = (byte) flags;
+    System.arraycopy(payload, 0, encoded, 1, payload.length);
+    return encoded;
+  }
+
+  private byte[] decode(byte[] encoded) throws IOException {
+    int flags = encoded[0];
+    byte[] payload = Arrays.copyOfRange(encoded, 1, encoded.length);
+    if ((flags & FLAG_ENCRYPTED) != 0) {
+      if (aesKey == null) {
+        throw new IOException("Chunk is encrypted but no key was provided");
+      }
+      try {
+        payload = (flags & FLAG_GCM) != 0 ? GcmChunkedCipher.decrypt(payload, aesKey)
+            : KeyManagementUtil.decryptAES(payload, aesKey);
+      } catch (Exception e) {
+        throw new IOException("Chunk decryption failed", e);
+      }
+    }
+    if ((flags & FLAG_COMPRESSED) != 0) {
+      try {
+        payload = inflate(payload);
+      } catch (DataFormatException e) {
+        throw new IOException("Corrupt chunk data", e);
+      }
+    }
+    return payload;
+  }
+
+  private static byte[] deflate(byte[] data) {
+    Deflater deflater = new Deflater(COMPRESSION_LEVEL, true);
+    try {
+      deflater.setInput(data);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+      byte[] buffer = new byte[16 * 1024];
+      while (!deflater.finished()) {
+        out.write(buffer, 0, deflater.deflate(buffer));
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static byte[] inflate(byte[] data) throws DataFormatException {
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(data);
+      ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 2);
+      byte[] buffer = new byte[16 * 1024];
+      while (!inflater.finished()) {
+        int n = inflater.inflate(buffer);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new DataFormatException("Truncated chunk data");
+        }
+        out.write(buffer, 0, n);
+      }
+      return out.toByteArray();
+    } finally {
+      inflater.end();
+    }
+  }
+
+  public String summary() {
+    return "Deduplication: " + chunksWritten.get() + " new chunks, " + chunksReused.get() + " reused, "
+        + bytesStored.get() / (1024 * 1024) + " MB added to chunk store";
+  }
+}
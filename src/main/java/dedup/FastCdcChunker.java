@@ -0,0 +1,107 @@
+package main.java.dedup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/*
+ * FastCDC content-defined chunking: a gear rolling hash picks cut points from
+ * the data itself, so an insertion only changes the chunks around it and
+ * everything else still deduplicates. Normalized chunking uses a stricter mask
+ * below the average size and a looser one above it to keep sizes close to avg.
+ */
+public class FastCdcChunker {
+  public static final int DEFAULT_MIN_SIZE = 16 * 1024;
+  public static final int DEFAULT_AVG_SIZE = 64 * 1024;
+  public static final int DEFAULT_MAX_SIZE = 256 * 1024;
+
+  // Must never change: cut points (and so chunk hashes) depend on it
+  private static final long GEAR_SEED = 0x6261636b75704344L;
+  private static final long[] GEAR = new long[256];
+
+  static {
+    Random random = new Random(GEAR_SEED);
+    for (int i = 0; i < GEAR.length; i++) {
+      GEAR[i] = random.nextLong();
+    }
+  }
+
+  private final int minSize;
+  private final int avgSize;
+  private final int maxSize;
+  private final long maskSmall;
+  private final long maskLarge;
+
+  @FunctionalInterface
+  public interface ChunkConsumer {
+    void accept(byte[] buffer, int offset, int length) throws IOException;
+  }
+
+  public FastCdcChunker() {
+    this(DEFAULT_MIN_SIZE, DEFAULT_AVG_SIZE, DEFAULT_MAX_SIZE);
+  }
+
+  public FastCdcChunker(int minSize, int avgSize, int maxSize) {
+    if (minSize <= 0 || minSize > avgSize || avgSize > maxSize) {
+      throw new IllegalArgumentException("Chunk sizes must satisfy 0 < min <= avg <= max");
+    }
+    this.minSize = minSize;
+    this.avgSize = avgSize;
+    this.maxSize = maxSize;
+    int bits = 63 - Long.numberOfLeadingZeros(avgSize);
+    // High bits of the gear hash depend on the most bytes, so mask those
+    this.maskSmall = topBits(bits + 2);
+    this.maskLarge = topBits(Math.max(1, bits - 2));
+  }
+
+  private static long topBits(int count) {
+    return -1L << (64 - count);
+  }
+
+  // Reads the stream to the end; memory use is one buffer of maxSize bytes
+  public void chunk(InputStream in, ChunkConsumer consumer) throws IOException {
+    byte[] buffer = new byte[maxSize];
+    int filled = 0;
+    boolean eof = false;
+    while (true) {
+      while (!eof && filled < buffer.length) {
+        int n = in.read(buffer, filled, buffer.length - filled);
+        if (n < 0) {
+          eof = true;
+        } else {
+          filled += n;
+        }
+      }
+      if (filled == 0) {
+        return;
+      }
+      int cut = findCutPoint(buffer, filled);
+      consumer.accept(buffer, 0, cut);
+      System.arraycopy(buffer, cut, buffer, 0, filled - cut);
+      filled -= cut;
+    }
+  }
+
+  int findCutPoint(byte[] data, int length) {
+    if (length <= minSize) {
+      return length;
+    }
+    int normalEnd = Math.min(length, avgSize);
+    int end = Math.min(length, maxSize);
+    long fingerprint = 0;
+    int i = minSize;
+    for (; i < normalEnd; i++) {
+      fingerprint = (fingerprint << 1) + GEAR[data[i] & 0xff];
+      if ((fingerprint & maskSmall) == 0) {
+        return i + 1;
+      }
+    }
+    for (; i < end; i++) {
+      fingerprint = (fingerprint << 1) + GEAR[data[i] & 0xff];
+      if ((fingerprint & maskLarge) == 0) {
+        return i + 1;
+      }
+    }
+    return end;
+  }
+}
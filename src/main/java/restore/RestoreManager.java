@@ -1,60 +1,111 @@
 package main.java.restore;
 
+import main.java.backup.BackupChain;
 import main.java.config.Configuration;
+import main.java.dedup.ChunkRecipe;
+import main.java.dedup.ChunkStore;
+import main.java.util.BufferPool;
+import main.java.util.CompressionCodec;
+import main.java.util.EntryFormat;
 import main.java.util.FileOperationsUtil;
+import main.java.util.GcmChunkedCipher;
+import main.java.util.GcmDecryptingInputStream;
+import main.java.util.HashingEngine;
+import main.java.util.IoThrottle;
 import main.java.util.KeyManagementUtil;
+import main.java.util.MemoryBudget;
+import main.java.util.SolidBlock;
 
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 import javax.crypto.SecretKey;
 
 public class RestoreManager {
+  private static final int COPY_BUFFER_SIZE = 64 * 1024;
+  private static final long STREAMING_FOOTPRINT = 512 * 1024;
 
   private final Configuration config;
+  private final MemoryBudget memoryBudget;
   private String encryptionPassword = null;
-  private ConcurrentHashMap<String, String> storedFileHashes;
+  private Map<String, String> storedFileHashes;
   private SecretKey aesKeyFile = null;
   private AtomicLong estimatedTotalBytes = new AtomicLong(0);
-  private ConcurrentLinkedQueue<ZipEntry> allEntries = new ConcurrentLinkedQueue<>();
+  private ConcurrentLinkedQueue<RestoreItem> allEntries = new ConcurrentLinkedQueue<>();
+  private ChunkStore chunkStore = null;
 
   public RestoreManager(Configuration config) {
     this.config = config;
+    this.memoryBudget = MemoryBudget.forConfig(config);
+  }
+
+  // An entry together with the archive of the chain it is restored from; for a
+  // solid block, the members to extract from it
+  private record RestoreItem(ZipFile zipFile, ZipEntry entry, Set<String> solidMembers) {
+    int fileCount() {
+      return solidMembers != null ? solidMembers.size() : 1;
+    }
+  }
+
+  // Password for the AES key file; restore() asks on the console when it is not set
+  public void setEncryptionPassword(String encryptionPassword) {
+    this.encryptionPassword = encryptionPassword;
   }
 
   public void restore() throws IOException {
-    Path backupZipPath = Path.of(config.getDefaultBackupDir(), "backup.zip");
-    ZipFile zipFile = new ZipFile(backupZipPath.toFile());
+    IoThrottle.SHARED.start(config);
+    List<ZipFile> chain = openBackupChain(Path.of(config.getDefaultBackupDir()));
     initializeRestore();
-    readZipEntries(zipFile);
+    readZipEntries(chain);
     boolean isEnoughSpace = FileOperationsUtil.checkDiskSpace(estimatedTotalBytes.get(),
         Path.of(config.getDefaultRestoreDir()));
     if (!isEnoughSpace) {
       System.exit(1);
     }
-    performRestore(zipFile);
+    performRestore();
+  }
+
+  // The full backup comes first, so a missing backup.zip fails here as before
+  private List<ZipFile> openBackupChain(Path backupDir) throws IOException {
+    List<ZipFile> chain = new ArrayList<>();
+    for (Path archive : BackupChain.restoreChain(backupDir)) {
+      chain.add(new ZipFile(archive.toFile()));
+    }
+    if (chain.size() > 1) {
+      System.out.println("\nRestoring from a full backup and " + (chain.size() - 1) + " later archive(s).");
+    }
+    return chain;
   }
 
   private void initializeRestore() {
     if (config.isEnableIntegrityCheck()) {
       this.storedFileHashes = FileOperationsUtil.loadStoredFileHashes(config.getHashFileDir());
-      System.out.print("\nEnter password for decryption: ");
-      encryptionPassword = new String(System.console().readPassword());
+      if (encryptionPassword == null) {
+        System.out.print("\nEnter password for decryption: ");
+        encryptionPassword = new String(System.console().readPassword());
+      }
       try {
         aesKeyFile = (SecretKey) KeyManagementUtil.readKeyFromFile(config.getAesFileKeyDir() + "/aes.key", "AES",
             encryptionPassword);
@@ -65,65 +116,85 @@ public class RestoreManager {
     }
   }
 
-  private void readSingleZipEntry(ZipFile zipFile, ZipEntry entry) {
-    try (InputStream inputStream = zipFile.getInputStream(entry)) {
-      boolean include = FileOperationsUtil.matchPattern(entry.getName(), config.getRestoreIncludePatterns());
-      boolean exclude = FileOperationsUtil.matchPattern(entry.getName(), config.getRestoreExcludePatterns());
-      if (!include || exclude) {
-        return;
-      }
-      byte[] bytes = new byte[inputStream.available()];
-      inputStream.read(bytes);
-      allEntries.add(entry);
-      estimatedTotalBytes.addAndGet(entry.getSize());
-    } catch (IOException e) {
-      e.printStackTrace();
+  private Predicate<String> selectionFilter() {
+    Predicate<String> include = FileOperationsUtil.compilePatterns(config.getRestoreIncludePatterns());
+    Predicate<String> exclude = FileOperationsUtil.compilePatterns(config.getRestoreExcludePatterns());
+    return include.and(exclude.negate());
+  }
+
+  // Walks the chain newest first: the first archive holding a name decides
+  // whether that file is restored from it or was deleted. Planning reads only
+  // the central directory (names, sizes, comments, extra fields); entry bodies
+  // are first opened when they are restored.
+  private void readZipEntries(List<ZipFile> chain) {
+    Predicate<String> isSelected = selectionFilter();
+    Set<String> seenNames = new HashSet<>();
+    for (int i = chain.size() - 1; i >= 0; i--) {
+      ZipFile zipFile = chain.get(i);
+      zipFile.stream().forEach(entry -> {
+        EntryFormat format = EntryFormat.of(entry);
+        if (format.has(EntryFormat.SOLID)) {
+          planSolidBlock(zipFile, entry, seenNames, isSelected);
+        } else if (seenNames.add(entry.getName()) && !format.has(EntryFormat.DELETED)
+            && isSelected.test(entry.getName())) {
+          allEntries.add(new RestoreItem(zipFile, entry, null));
+          estimatedTotalBytes.addAndGet(format.originalSize(entry));
+        }
+      });
     }
   }
 
-  private void readZipEntries(ZipFile zipFile) throws IOException {
-    ExecutorService readEntriesExecutor = Executors.newVirtualThreadPerTaskExecutor();
-    zipFile.stream().forEach(entry -> readEntriesExecutor.submit(() -> readSingleZipEntry(zipFile, entry)));
-    readEntriesExecutor.shutdown();
-    try {
-      readEntriesExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-    } catch (InterruptedException e) {
-      e.printStackTrace();
+  // Members take part in the newest-first rule one by one, like separate entries
+  private void planSolidBlock(ZipFile zipFile, ZipEntry entry, Set<String> seenNames, Predicate<String> isSelected) {
+    Set<String> selected = new HashSet<>();
+    long bytes = 0;
+    for (SolidBlock.Member member : SolidBlock.parseMembers(entry.getExtra())) {
+      if (seenNames.add(member.name()) && isSelected.test(member.name())) {
+        selected.add(member.name());
+        bytes += member.size();
+      }
+    }
+    if (!selected.isEmpty()) {
+      allEntries.add(new RestoreItem(zipFile, entry, selected));
+      estimatedTotalBytes.addAndGet(bytes);
     }
   }
 
   private byte[] readInputStream(InputStream is) throws IOException {
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    byte[] buffer = new byte[8 * 1024];
-    int bytesRead;
-    while ((bytesRead = is.read(buffer)) != -1) {
-      baos.write(buffer, 0, bytesRead);
+    byte[] buffer = BufferPool.SHARED.acquire(COPY_BUFFER_SIZE);
+    try {
+      int bytesRead;
+      while ((bytesRead = is.read(buffer)) != -1) {
+        baos.write(buffer, 0, bytesRead);
+      }
+    } finally {
+      BufferPool.SHARED.release(buffer);
     }
     return baos.toByteArray();
   }
 
-  private void restoreEntry(ZipEntry entry, AtomicLong bytesRestored, AtomicBoolean shouldContinue,
-      ExecutorService restoreExecutor, Path restorePath, ZipFile zipFile) {
+  private void restoreEntry(RestoreItem item, AtomicLong bytesRestored, AtomicBoolean shouldContinue,
+      ExecutorService restoreExecutor, Path restorePath) {
+    ZipEntry entry = item.entry();
+    ZipFile zipFile = item.zipFile();
     Runnable restoreTask = () -> {
       try {
-        byte[] data = readInputStream(zipFile.getInputStream(entry));
-        if (aesKeyFile != null) {
-          data = KeyManagementUtil.decryptAES(data, aesKeyFile);
-        }
-        if (config.isEnableIntegrityCheck()) {
-          String generatedHash = FileOperationsUtil.generateHash(data, config.getHashAlgorithm());
-          String storedHash = storedFileHashes.get(entry.getName());
-          if (storedHash == null || !generatedHash.equals(storedHash)) {
-            System.out.println("\n\nIntegrity check failed for file: " + entry.getName());
-            shouldContinue.set(false);
+        MemoryBudget.Reservation reservation = memoryBudget.reserve(STREAMING_FOOTPRINT);
+        try {
+          if (item.solidMembers() != null) {
+            restoreFromSolidBlock(item, bytesRestored, shouldContinue, restorePath);
             return;
           }
-        }
-        Path destFile = restorePath.resolve(entry.getName());
-        Files.createDirectories(destFile.getParent());
-        try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(destFile.toFile()))) {
-          bos.write(data);
-          bytesRestored.addAndGet(data.length);
+          if (EntryFormat.of(entry).has(EntryFormat.RECIPE)) {
+            restoreFromRecipe(entry, bytesRestored, shouldContinue, restorePath, zipFile);
+            return;
+          }
+          try (InputStream in = openEntryBody(zipFile, entry)) {
+            restoreFile(in, -1, entry.getName(), restorePath, bytesRestored, shouldContinue);
+          }
+        } finally {
+          reservation.close();
         }
       } catch (Exception e) {
         e.printStackTrace();
@@ -132,16 +203,158 @@ public class RestoreManager {
     restoreExecutor.submit(restoreTask);
   }
 
-  private void performRestore(ZipFile zipFile) throws IOException {
+  // Entry body as written, before any encryption and compression. GCM entries
+  // are authenticated chunk by chunk while reading, then decoded with the codec
+  // named in the entry; entries without an encryption tag or codec come from
+  // older backups that used whole-file AES/CBC, which is decrypted as it is read.
+  // Every entry is restored through fixed-size buffers, whatever its size.
+  private InputStream openEntryBody(ZipFile zipFile, ZipEntry entry) throws Exception {
+    EntryFormat format = EntryFormat.of(entry);
+    InputStream body = zipFile.getInputStream(entry);
+    if (!format.has(EntryFormat.ENCRYPTION) && !format.has(EntryFormat.CODEC)) {
+      if (aesKeyFile != null && config.isEnableEncryption()) {
+        return KeyManagementUtil.decryptingStream(body, aesKeyFile);
+      }
+      return body;
+    }
+    if (GcmChunkedCipher.FORMAT.equals(format.get(EntryFormat.ENCRYPTION))) {
+      body = new GcmDecryptingInputStream(body, aesKeyFile);
+    }
+    String codec = format.get(EntryFormat.CODEC);
+    if (codec != null) {
+      body = CompressionCodec.forId(codec).decompress(body);
+    }
+    return body;
+  }
+
+  // Copies `length` bytes of in (all of it if negative) to the file through a
+  // pooled buffer, hashing on the way
+  private void restoreFile(InputStream in, long length, String name, Path restorePath, AtomicLong bytesRestored,
+      AtomicBoolean shouldContinue) throws Exception {
+    IoThrottle.SHARED.acquireFile();
+    HashingEngine.Hasher hasher = newHasher();
+    Path destFile = restorePath.resolve(name);
+    Files.createDirectories(destFile.getParent());
+    Path partialFile = partialFile(destFile);
+    byte[] buffer = BufferPool.SHARED.acquire(COPY_BUFFER_SIZE);
+    try {
+      try (OutputStream out = Files.newOutputStream(partialFile)) {
+        long copied = 0;
+        while (length < 0 || copied < length) {
+          int n = in.read(buffer, 0, length < 0 ? buffer.length : (int) Math.min(buffer.length, length - copied));
+          if (n == -1) {
+            if (length >= 0) {
+              throw new IOException("Entry data ends early for file: " + name);
+            }
+            break;
+          }
+          if (hasher != null) {
+            hasher.update(buffer, 0, n);
+          }
+          IoThrottle.SHARED.acquireWrite(n);
+          out.write(buffer, 0, n);
+          bytesRestored.addAndGet(n);
+          copied += n;
+        }
+      }
+      commitRestoredFile(hasher, name, partialFile, destFile, shouldContinue);
+    } finally {
+      BufferPool.SHARED.release(buffer);
+      Files.deleteIfExists(partialFile);
+    }
+  }
+
+  private HashingEngine.Hasher newHasher() throws NoSuchAlgorithmException {
+    return config.isEnableIntegrityCheck() ? HashingEngine.forAlgorithm(config.getHashAlgorithm()).newHasher()
+        : null;
+  }
+
+  // Files are written under a hidden name next to their destination, so an
+  // interrupted or failed restore never leaves a partial file in its place
+  private static Path partialFile(Path destFile) {
+    return destFile.resolveSibling("." + destFile.getFileName() + ".partial");
+  }
+
+  // Renames the file into place once it has passed the integrity check
+  private void commitRestoredFile(HashingEngine.Hasher hasher, String name, Path partialFile, Path destFile,
+      AtomicBoolean shouldContinue) throws IOException {
+    if (hasher != null) {
+      String generatedHash = hasher.finish();
+      String storedHash = storedFileHashes.get(name);
+      if (storedHash == null || !generatedHash.equals(storedHash)) {
+        System.out.println("\n\nIntegrity check failed for file: " + name);
+        shouldContinue.set(false);
+        return;
+      }
+    }
+    Files.move(partialFile, destFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // Decodes the block only as far as its last selected member; members that are
+  // not restored from this block are skipped over
+  private void restoreFromSolidBlock(RestoreItem item, AtomicLong bytesRestored, AtomicBoolean shouldContinue,
+      Path restorePath) throws Exception {
+    Set<String> remaining = new HashSet<>(item.solidMembers());
+    try (InputStream in = openEntryBody(item.zipFile(), item.entry())) {
+      for (SolidBlock.Member member : SolidBlock.parseMembers(item.entry().getExtra())) {
+        if (remaining.isEmpty() || !shouldContinue.get()) {
+          return;
+        }
+        if (remaining.remove(member.name())) {
+          restoreFile(in, member.size(), member.name(), restorePath, bytesRestored, shouldContinue);
+        } else {
+          in.skipNBytes(member.size());
+        }
+      }
+    }
+  }
+
+  // Rebuilds a deduplicated file chunk by chunk; only one chunk is in memory at a time
+  private void restoreFromRecipe(ZipEntry entry, AtomicLong bytesRestored, AtomicBoolean shouldContinue,
+      Path restorePath, ZipFile zipFile) throws Exception {
+    List<ChunkRecipe.ChunkRef> chunks;
+    try (InputStream in = zipFile.getInputStream(entry)) {
+      chunks = ChunkRecipe.parse(readInputStream(in));
+    }
+    IoThrottle.SHARED.acquireFile();
+    HashingEngine.Hasher hasher = newHasher();
+    Path destFile = restorePath.resolve(entry.getName());
+    Files.createDirectories(destFile.getParent());
+    Path partialFile = partialFile(destFile);
+    try {
+      try (BufferedOutputStream bos = new BufferedOutputStream(Files.newOutputStream(partialFile))) {
+        for (ChunkRecipe.ChunkRef chunk : chunks) {
+          byte[] data = getChunkStore().get(chunk.hash());
+          if (hasher != null) {
+            hasher.update(data, 0, data.length);
+          }
+          IoThrottle.SHARED.acquireWrite(data.length);
+          bos.write(data);
+          bytesRestored.addAndGet(data.length);
+        }
+      }
+      commitRestoredFile(hasher, entry.getName(), partialFile, destFile, shouldContinue);
+    } finally {
+      Files.deleteIfExists(partialFile);
+    }
+  }
+
+  private synchronized ChunkStore getChunkStore() {
+    if (chunkStore == null) {
+      chunkStore = new ChunkStore(ChunkStore.rootDir(config), config.isEnableCompression(), aesKeyFile);
+    }
+    return chunkStore;
+  }
+
+  private void performRestore() throws IOException {
     ExecutorService restoreExecutor = Executors.newVirtualThreadPerTaskExecutor();
-    long totalFiles = allEntries.size();
+    long totalFiles = allEntries.stream().mapToLong(RestoreItem::fileCount).sum();
     AtomicLong bytesRestored = new AtomicLong(0);
     AtomicBoolean shouldContinue = new AtomicBoolean(true);
     System.out.println("\nNo. of files to restore: " + totalFiles);
     Timer timer = FileOperationsUtil.displayProgressRestore(bytesRestored, estimatedTotalBytes.get());
-    for (ZipEntry entry : allEntries) {
-      restoreEntry(entry, bytesRestored, shouldContinue, restoreExecutor, Path.of(config.getDefaultRestoreDir()),
-          zipFile);
+    for (RestoreItem item : allEntries) {
+      restoreEntry(item, bytesRestored, shouldContinue, restoreExecutor, Path.of(config.getDefaultRestoreDir()));
     }
     finalizeRestore(restoreExecutor, shouldContinue, timer);
   }
@@ -150,12 +363,16 @@ public class RestoreManager {
     restoreExecutor.shutdown();
     try {
       restoreExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      IoThrottle.SHARED.stop();
       if (!shouldContinue.get()) {
         System.out.println("\nRestore operation terminated due to failed integrity check.\n");
         timer.cancel();
         return;
       }
       System.out.println("\nRestore complete!");
+      System.out.println(BufferPool.SHARED.summary());
+      System.out.println(memoryBudget.summary());
+      System.out.println(IoThrottle.SHARED.summary());
       timer.cancel();
     } catch (InterruptedException e) {
       System.out.println("\nRestore Interrupted!");
@@ -0,0 +1,18 @@
+package main.java.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * One platform thread per core, shared by every stream that hands blocks of
+ * its data to other threads (parallel deflate, chunked GCM sealing). However
+ * many large files are in flight, the process never runs more of these
+ * threads than it has cores; each stream bounds its own blocks in flight.
+ */
+public class BlockExecutor {
+  public static final ExecutorService SHARED = Executors.newFixedThreadPool(
+      Runtime.getRuntime().availableProcessors(), Thread.ofPlatform().name("block-worker-", 1).daemon().factory());
+
+  private BlockExecutor() {
+  }
+}
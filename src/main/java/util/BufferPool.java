@@ -0,0 +1,110 @@
+package main.java.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Shared pool of heap buffers in power-of-two size classes (4 KB to 4 MB),
+ * so the per-entry and per-chunk buffers of backup and restore are reused
+ * instead of being allocated and collected for every file. A buffer may be
+ * larger than requested. Larger requests are plain allocations that are
+ * counted as misses. Each class keeps a bounded number of idle buffers.
+ * Callers must not use a buffer after releasing it.
+ */
+public class BufferPool {
+  public static final BufferPool SHARED = new BufferPool(12, 22, 32L * 1024 * 1024);
+
+  private final int minShift;
+  private final int maxShift;
+  private final ConcurrentLinkedQueue<byte[]>[] idle;
+  private final AtomicInteger[] idleCounts;
+  private final int[] maxIdle;
+  private final LongAdder acquires = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  // Classes are 2^minShift .. 2^maxShift bytes; each keeps up to maxIdleBytesPerClass
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  public BufferPool(int minShift, int maxShift, long maxIdleBytesPerClass) {
+    this.minShift = minShift;
+    this.maxShift = maxShift;
+    int classes = maxShift - minShift + 1;
+    this.idle = new ConcurrentLinkedQueue[classes];
+    this.idleCounts = new AtomicInteger[classes];
+    this.maxIdle = new int[classes];
+    for (int i = 0; i < classes; i++) {
+      idle[i] = new ConcurrentLinkedQueue<>();
+      idleCounts[i] = new AtomicInteger();
+      maxIdle[i] = (int) Math.max(2, Math.min(Integer.MAX_VALUE, maxIdleBytesPerClass >> (minShift + i)));
+    }
+  }
+
+  public byte[] acquire(int size) {
+    acquires.increment();
+    int sizeClass = classFor(size);
+    if (sizeClass < 0) {
+      misses.increment();
+      return new byte[size];
+    }
+    byte[] buffer = idle[sizeClass].poll();
+    if (buffer != null) {
+      idleCounts[sizeClass].decrementAndGet();
+      return buffer;
+    }
+    misses.increment();
+    return new byte[1 << (minShift + sizeClass)];
+  }
+
+  // Buffers that did not come from a size class are left to the GC
+  public void release(byte[] buffer) {
+    if (buffer == null) {
+      return;
+    }
+    int sizeClass = classFor(buffer.length);
+    if (sizeClass < 0 || buffer.length != 1 << (minShift + sizeClass)) {
+      return;
+    }
+    if (idleCounts[sizeClass].incrementAndGet() > maxIdle[sizeClass]) {
+      idleCounts[sizeClass].decrementAndGet();
+      return;
+    }
+    idle[sizeClass].offer(buffer);
+  }
+
+  private int classFor(int size) {
+    int shift = Math.max(minShift, 32 - Integer.numberOfLeadingZeros(Math.max(1, size) - 1));
+    return shift <= maxShift ? shift - minShift : -1;
+  }
+
+  public long acquires() {
+    return acquires.sum();
+  }
+
+  public long misses() {
+    return misses.sum();
+  }
+
+  public int idleBuffers() {
+    int count = 0;
+    for (AtomicInteger idleCount : idleCounts) {
+      count += idleCount.get();
+    }
+    return count;
+  }
+
+  public long idleBytes() {
+    long bytes = 0;
+    for (int i = 0; i < idleCounts.length; i++) {
+      bytes += (long) idleCounts[i].get() << (minShift + i);
+    }
+    return bytes;
+  }
+
+  public String summary() {
+    long acquired = acquires();
+    long missed = misses();
+    double hitRate = acquired > 0 ? 100.0 * (acquired - missed) / acquired : 0;
+    return String.format("Buffer pool: %d acquires, %d misses (%.1f%% reused), %d buffers (%d KB) pooled",
+        acquired, missed, hitRate, idleBuffers(), idleBytes() / 1024);
+  }
+}
@@ -0,0 +1,10 @@
+package main.java.util;
+
+/*
+ * A stream that compresses what is written to it. compressNanos() is the time
+ * spent in the compressor itself, without the reads feeding it or the writes
+ * downstream of it, so the CompressionAdvisor sees what the level costs.
+ */
+public interface CompressingStream {
+  long compressNanos();
+}
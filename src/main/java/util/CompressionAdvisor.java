@@ -0,0 +1,216 @@
+package main.java.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+import main.java.backup.BackupFile;
+import main.java.config.Configuration;
+
+/*
+ * Picks the deflate level per file. The first 16 KB of the file's first read
+ * buffer are sampled: data whose
+ * byte entropy is close to 8 bits (JPEG, video, archives, ciphertext) is
+ * stored as-is instead of burning CPU on it. With a throughput target the
+ * level is stepped down while compression runs slower than the target and
+ * back up while it is faster. The same sampling feeds the size estimate used
+ * for the disk space check.
+ */
+public class CompressionAdvisor {
+  public static final int STORE = -1;
+  private static final int MAX_LEVEL = 9;
+  private static final int MIN_LEVEL = 1;
+  private static final int ADAPTIVE_START_LEVEL = 6;
+  private static final int SAMPLE_SIZE = 16 * 1024;
+  private static final double INCOMPRESSIBLE_ENTROPY = 7.5; // bits per byte
+  private static final long ADJUST_EVERY_BYTES = 32L * 1024 * 1024;
+
+  private final boolean enableCompression;
+  private final boolean adaptive;
+  private final double targetBytesPerNano;
+  private final AtomicInteger level;
+  private long windowBytes = 0;
+  private long windowNanos = 0;
+
+  public CompressionAdvisor(boolean enableCompression, boolean adaptive, int targetMBps) {
+    this.enableCompression = enableCompression;
+    this.adaptive = adaptive;
+    this.targetBytesPerNano = targetMBps > 0 ? targetMBps * 1024.0 * 1024.0 / 1e9 : 0;
+    this.level = new AtomicInteger(targetMBps > 0 ? ADAPTIVE_START_LEVEL : MAX_LEVEL);
+  }
+
+  public static CompressionAdvisor forConfig(Configuration config) {
+    return new CompressionAdvisor(config.isEnableCompression(), config.isAdaptiveCompression(),
+        config.getCompressionTargetMBps());
+  }
+
+  public int chooseLevel(byte[] data, int length) {
+    return chooseLevel(ByteBuffer.wrap(data, 0, length));
+  }
+
+  // Samples the start of head, typically FileSource.head(), without consuming it
+  public int chooseLevel(ByteBuffer head) {
+    if (!enableCompression) {
+      return STORE;
+    }
+    if (adaptive && entropy(head, Math.min(head.remaining(), SAMPLE_SIZE)) >= INCOMPRESSIBLE_ENTROPY) {
+      return STORE;
+    }
+    return level.get();
+  }
+
+  // Called with the time each file spent in its compressing pipeline
+  public void recordCompressed(long bytes, long nanos) {
+    if (targetBytesPerNano == 0) {
+      return;
+    }
+    synchronized (this) {
+      windowBytes += bytes;
+      windowNanos += nanos;
+      if (windowBytes < ADJUST_EVERY_BYTES) {
+        return;
+      }
+      double rate = (double) windowBytes / Math.max(1, windowNanos);
+      windowBytes = 0;
+      windowNanos = 0;
+      int current = level.get();
+      if (rate < targetBytesPerNano * 0.9 && current > MIN_LEVEL) {
+        level.set(current - 1);
+      } else if (rate > targetBytesPerNano * 1.1 && current < MAX_LEVEL) {
+        level.set(current + 1);
+      }
+    }
+  }
+
+  // Shannon entropy of the byte histogram of data's first length bytes, in bits per byte
+  static double entropy(ByteBuffer data, int length) {
+    if (length == 0) {
+      return 0;
+    }
+    int[] counts = new int[256];
+    int start = data.position();
+    for (int i = 0; i < length; i++) {
+      counts[data.get(start + i) & 0xff]++;
+    }
+    double entropy = 0;
+    for (int count : counts) {
+      if (count > 0) {
+        double p = (double) count / length;
+        entropy -= p * Math.log(p);
+      }
+    }
+    return entropy / Math.log(2);
+  }
+
+  // Compressed/raw ratio of a file, judged from its first SAMPLE_SIZE bytes
+  double sampleRatio(Path file) throws IOException {
+    byte[] sample = BufferPool.SHARED.acquire(SAMPLE_SIZE);
+    byte[] buffer = null;
+    Deflater deflater = null;
+    try {
+      int length;
+      try (InputStream in = Files.newInputStream(file)) {
+        length = in.readNBytes(sample, 0, SAMPLE_SIZE);
+      }
+      if (length == 0 || chooseLevel(sample, length) == STORE) {
+        return 1.0;
+      }
+      deflater = new Deflater(level.get(), true);
+      deflater.setInput(sample, 0, length);
+      deflater.finish();
+      buffer = BufferPool.SHARED.acquire(SAMPLE_SIZE + 1024);
+      long compressed = 0;
+      while (!deflater.finished()) {
+        compressed += deflater.deflate(buffer);
+      }
+      return Math.min(1.0, (double) compressed / length);
+    } finally {
+      if (deflater != null) {
+        deflater.end();
+      }
+      BufferPool.SHARED.release(sample);
+      BufferPool.SHARED.release(buffer);
+    }
+  }
+
+  public SizeEstimator newSizeEstimator() {
+    return new SizeEstimator();
+  }
+
+  /*
+   * Samples the scanned files in proportion to their size, so the large files
+   * that dominate the backup size are the ones that get sampled. Every slot is
+   * a weighted reservoir of one file, drawn independently of the others (with
+   * replacement, unlike A-Res), so each slot holds a file with probability
+   * size / total and the plain mean of the slots' ratios estimates the
+   * byte-weighted ratio. Weighting by size again would count large files twice.
+   */
+  public class SizeEstimator {
+    private static final int MAX_SAMPLES = 64;
+    private final BackupFile[] slots = new BackupFile[MAX_SAMPLES];
+    private long offeredBytes = 0;
+    // Ratios of the files in the slots, so repeated estimates only sample newly drawn files
+    private Map<Path, Double> sampledRatios = new HashMap<>();
+
+    public synchronized void offer(BackupFile file) {
+      if (file.size() == 0) {
+        return;
+      }
+      offeredBytes += file.size();
+      double p = (double) file.size() / offeredBytes;
+      for (int slot = nextSlot(-1, p); slot < MAX_SAMPLES; slot = nextSlot(slot, p)) {
+        slots[slot] = file;
+      }
+    }
+
+    // Next slot that takes the file, each with probability p; the gap is drawn
+    // from the geometric distribution so a small file costs one draw, not one per slot
+    private static int nextSlot(int slot, double p) {
+      if (p >= 1.0) {
+        return slot + 1;
+      }
+      double u = ThreadLocalRandom.current().nextDouble(Double.MIN_VALUE, 1.0);
+      double gap = Math.floor(Math.log(u) / Math.log1p(-p));
+      return (int) Math.min(MAX_SAMPLES, slot + 1 + gap);
+    }
+
+    // Files are sampled outside the lock, so scanners offering files never wait on it
+    public long estimate(long totalBytes) {
+      BackupFile[] drawn;
+      Map<Path, Double> known;
+      synchronized (this) {
+        if (!enableCompression || offeredBytes == 0) {
+          return totalBytes;
+        }
+        drawn = slots.clone();
+        known = sampledRatios;
+      }
+      Map<Path, Double> ratios = new HashMap<>();
+      double sum = 0;
+      for (BackupFile file : drawn) {
+        sum += ratios.computeIfAbsent(file.path(), path -> {
+          Double ratio = known.get(path);
+          if (ratio != null) {
+            return ratio;
+          }
+          try {
+            return sampleRatio(path);
+          } catch (IOException e) {
+            return 1.0;
+          }
+        });
+      }
+      synchronized (this) {
+        sampledRatios = ratios;
+      }
+      return Math.round(totalBytes * (sum / MAX_SAMPLES));
+    }
+  }
+}
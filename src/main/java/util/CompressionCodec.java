@@ -0,0 +1,32 @@
+package main.java.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+/*
+ * A compressor for entry bodies that the ZIP container does not know about.
+ * The codec's id is written to the entry comment (brf:codec=<id>) so restore
+ * picks the matching decoder per entry, whatever the current configuration.
+ */
+public interface CompressionCodec {
+  Map<String, CompressionCodec> CODECS = Map.of(
+      DeflateCodec.ID, new DeflateCodec(),
+      Lz4Codec.ID, new Lz4Codec());
+
+  String id();
+
+  // close() finishes the compressed data and closes out
+  OutputStream compress(OutputStream out, int level) throws IOException;
+
+  InputStream decompress(InputStream in) throws IOException;
+
+  static CompressionCodec forId(String id) {
+    CompressionCodec codec = CODECS.get(id);
+    if (codec == null) {
+      throw new IllegalArgumentException("Unknown compression codec: " + id);
+    }
+    return codec;
+  }
+}
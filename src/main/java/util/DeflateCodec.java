@@ -0,0 +1,55 @@
+package main.java.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+// Raw deflate, the same bitstream a DEFLATED ZIP entry holds
+public class DeflateCodec implements CompressionCodec {
+  public static final String ID = "deflate";
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  @Override
+  public String id() {
+    return ID;
+  }
+
+  @Override
+  public OutputStream compress(OutputStream out, int level) {
+    Deflater deflater = new Deflater(level, true);
+    return new TimedDeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          deflater.end();
+        }
+      }
+    };
+  }
+
+  @Override
+  public InputStream decompress(InputStream in) {
+    Inflater inflater = new Inflater(true);
+    return new InflaterInputStream(in, inflater, 1) {
+      {
+        buf = BufferPool.SHARED.acquire(BUFFER_SIZE);
+      }
+
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          inflater.end();
+          BufferPool.SHARED.release(buf);
+          buf = null;
+        }
+      }
+    };
+  }
+}
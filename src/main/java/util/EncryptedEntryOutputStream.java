@@ -0,0 +1,98 @@
+package main.java.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import javax.crypto.SecretKey;
+
+/*
+ * Body of an encrypted entry: plaintext -> codec (optional) -> chunked
+ * AES-GCM -> the STORED entry stream. Compressing first is what makes
+ * compression worth anything here; ciphertext does not deflate. close()
+ * finishes every layer from the outside in, including the entry itself.
+ */
+public class EncryptedEntryOutputStream extends OutputStream implements WritableByteChannel, CompressingStream {
+  private final OutputStream entry;
+  private final GcmEncryptingOutputStream encrypted;
+  private final OutputStream compressed;
+  private boolean closed = false;
+
+  // level < 0 skips compression; parallelBlockSize > 0 encrypts on all cores and,
+  // for deflate, also compresses on all cores
+  public EncryptedEntryOutputStream(OutputStream entry, SecretKey aesKey, CompressionCodec codec, int level,
+      int parallelBlockSize) throws IOException {
+    this.entry = entry;
+    this.encrypted = new GcmEncryptingOutputStream(entry, aesKey, GcmChunkedCipher.DEFAULT_CHUNK_SIZE,
+        parallelBlockSize > 0 ? 0 : 1);
+    if (level < 0) {
+      this.compressed = null;
+    } else if (parallelBlockSize > 0 && DeflateCodec.ID.equals(codec.id())) {
+      this.compressed = new ParallelDeflaterOutputStream(encrypted, level, parallelBlockSize, 0);
+    } else {
+      this.compressed = codec.compress(encrypted, level);
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (compressed != null) {
+      compressed.write(b, off, len);
+    } else {
+      encrypted.write(b, off, len);
+    }
+  }
+
+  // Handed on without copying when the first layer takes buffers itself
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    int length = src.remaining();
+    if (compressed instanceof WritableByteChannel channel) {
+      while (src.hasRemaining()) {
+        channel.write(src);
+      }
+      return length;
+    }
+    byte[] staging = BufferPool.SHARED.acquire(Math.min(length, GcmChunkedCipher.DEFAULT_CHUNK_SIZE));
+    try {
+      while (src.hasRemaining()) {
+        int n = Math.min(src.remaining(), staging.length);
+        src.get(staging, 0, n);
+        write(staging, 0, n);
+      }
+    } finally {
+      BufferPool.SHARED.release(staging);
+    }
+    return length;
+  }
+
+  // Only the codec's time, not the encryption after it
+  @Override
+  public long compressNanos() {
+    return compressed instanceof CompressingStream stream ? stream.compressNanos() : 0;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return !closed;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (compressed != null) {
+      compressed.close();
+    }
+    encrypted.close();
+    entry.close();
+  }
+}
@@ -0,0 +1,98 @@
+package main.java.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+/*
+ * Describes how an entry's body was produced, stored as the ZIP entry comment
+ * (central directory only), e.g. "brf:recipe". Entries without the prefix are
+ * plain files as written by earlier versions.
+ */
+public class EntryFormat {
+  public static final String RECIPE = "recipe";
+  public static final String ORIGINAL_SIZE = "size";
+  public static final String DELETED = "deleted";
+  public static final String ENCRYPTION = "enc";
+  public static final String CODEC = "codec";
+  public static final String SOLID = "solid";
+
+  private static final String PREFIX = "brf:";
+  private final Map<String, String> attributes;
+
+  private EntryFormat(Map<String, String> attributes) {
+    this.attributes = attributes;
+  }
+
+  public static EntryFormat plain() {
+    return new EntryFormat(new LinkedHashMap<>());
+  }
+
+  public static EntryFormat of(ZipEntry entry) {
+    return parse(entry.getComment());
+  }
+
+  public static EntryFormat parse(String comment) {
+    Map<String, String> attributes = new LinkedHashMap<>();
+    if (comment != null && comment.startsWith(PREFIX)) {
+      for (String token : comment.substring(PREFIX.length()).split(";")) {
+        if (token.isEmpty()) {
+          continue;
+        }
+        int eq = token.indexOf('=');
+        if (eq < 0) {
+          attributes.put(token, "");
+        } else {
+          attributes.put(token.substring(0, eq), token.substring(eq + 1));
+        }
+      }
+    }
+    return new EntryFormat(attributes);
+  }
+
+  public EntryFormat with(String key) {
+    return with(key, "");
+  }
+
+  public EntryFormat with(String key, String value) {
+    Map<String, String> copy = new LinkedHashMap<>(attributes);
+    copy.put(key, value);
+    return new EntryFormat(copy);
+  }
+
+  public boolean has(String key) {
+    return attributes.containsKey(key);
+  }
+
+  public String get(String key) {
+    return attributes.get(key);
+  }
+
+  // Size of the restored file, when it differs from the entry's stored size
+  public long originalSize(ZipEntry entry) {
+    String size = get(ORIGINAL_SIZE);
+    return size != null ? Long.parseLong(size) : entry.getSize();
+  }
+
+  public boolean isPlain() {
+    return attributes.isEmpty();
+  }
+
+  // Null for plain entries, so nothing is added to the central directory
+  public String toComment() {
+    if (attributes.isEmpty()) {
+      return null;
+    }
+    StringBuilder sb = new StringBuilder(PREFIX);
+    for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+      if (sb.length() > PREFIX.length()) {
+        sb.append(';');
+      }
+      sb.append(attribute.getKey());
+      if (!attribute.getValue().isEmpty()) {
+        sb.append('=').append(attribute.getValue());
+      }
+    }
+    return sb.toString();
+  }
+}
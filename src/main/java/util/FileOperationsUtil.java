@@ -1,45 +1,53 @@
 package main.java.util;
 
+import main.java.backup.BackupFile;
+import main.java.backup.DeviceScheduler;
 import main.java.config.Configuration;
+import main.java.dedup.ChunkRecipe;
+import main.java.dedup.ChunkStore;
+import main.java.dedup.FastCdcChunker;
 
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.FileReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.AccessDeniedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
 
 import javax.crypto.SecretKey;
 
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
 public class FileOperationsUtil {
   private static final double ADDITIONAL_SPACE_REQUIRED = 5.0;
+  private static final String JSON_HASH_FILE = "hashes.json";
+  private static final String HASH_FORMAT_JSON = "json";
+  private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+  private static final int COMPRESSION_LEVEL = 9;
+  private static final int DEFAULT_PARALLEL_BLOCK_SIZE = 1024 * 1024;
+  private static final long STREAMING_FOOTPRINT = 512 * 1024;
 
   public static void checkAndCreateDir(Path dir) throws AccessDeniedException, IOException {
     Path parentPath = (dir.getParent() != null) ? dir.getParent() : dir;
@@ -50,19 +58,27 @@ public class FileOperationsUtil {
   }
 
   public static Timer displayProgressBackup(AtomicLong totalBytesProcessed, long totalBytesToProcess) {
+    return displayProgressBackup(totalBytesProcessed, () -> totalBytesToProcess, () -> true);
+  }
+
+  // The total may still be growing (pipelined backup); until it is final the
+  // percentage is shown as an estimate and the timer keeps running.
+  public static Timer displayProgressBackup(AtomicLong totalBytesProcessed, LongSupplier totalBytesToProcess,
+      BooleanSupplier isTotalFinal) {
     Timer timer = new Timer(true);
     final long startTime = System.currentTimeMillis();
     timer.scheduleAtFixedRate(new TimerTask() {
       @Override
       public void run() {
-        double rawPercentage = ((double) totalBytesProcessed.get() / totalBytesToProcess) * 100;
-        if (rawPercentage >= 100.0) {
+        boolean totalFinal = isTotalFinal.getAsBoolean();
+        double rawPercentage = ((double) totalBytesProcessed.get() / totalBytesToProcess.getAsLong()) * 100;
+        if (rawPercentage >= 100.0 && totalFinal) {
           timer.cancel();
         }
         double displayedPercentage = Math.min(100.0, rawPercentage);
-        System.out.printf("\nProgress at time t + %d s: %.2f%%",
+        System.out.printf("\nProgress at time t + %d s: %.2f%%%s",
             (int) (System.currentTimeMillis() / 1000 - startTime / 1000),
-            displayedPercentage);
+            displayedPercentage, totalFinal ? "" : " (estimated, still scanning)");
       }
     }, 0, 5000);
     return timer;
@@ -95,13 +111,19 @@ public class FileOperationsUtil {
   }
 
   public static boolean matchPattern(String filePath, List<String> patterns) {
+    return compilePatterns(patterns).test(filePath);
+  }
+
+  // Compiles the patterns once, for callers that match many names against them
+  public static Predicate<String> compilePatterns(List<String> patterns) {
     if (patterns.contains("all")) {
-      return true;
+      return filePath -> true;
     }
     if (patterns.contains("none")) {
-      return false;
+      return filePath -> false;
     }
 
+    List<Pattern> compiled = new ArrayList<>();
     for (String pattern : patterns) {
       if (!pattern.contains("/") && !pattern.contains("\\")) {
         if (pattern.endsWith("."))
@@ -114,22 +136,30 @@ public class FileOperationsUtil {
       // This could be expanded to cover more use cases like case-sensitivity,
       // wildcards, folder-specificity, special characters, combinations, etc.
 
-      if (Pattern.matches(pattern, filePath)) {
-        return true;
-      }
+      compiled.add(Pattern.compile(pattern));
     }
-    return false;
+    return filePath -> {
+      for (Pattern pattern : compiled) {
+        if (pattern.matcher(filePath).matches()) {
+          return true;
+        }
+      }
+      return false;
+    };
   }
 
   public static String generateHash(byte[] bytes, String algorithm) throws NoSuchAlgorithmException {
-    MessageDigest md = MessageDigest.getInstance(algorithm);
-    md.update(bytes);
-    byte[] digest = md.digest();
-    StringBuilder sb = new StringBuilder();
-    for (byte b : digest) {
-      sb.append(String.format("%02x", b & 0xff));
+    return HashingEngine.forAlgorithm(algorithm).hash(bytes, 0, bytes.length);
+  }
+
+  // With entryCrc the hasher also tracks the CRC of an entry that holds the file
+  // as read, and exists even when no integrity hash is configured
+  private static HashingEngine.Hasher newHasher(Configuration config, boolean entryCrc)
+      throws NoSuchAlgorithmException {
+    if (config.isEnableIntegrityCheck()) {
+      return HashingEngine.forAlgorithm(config.getHashAlgorithm()).newHasher(entryCrc);
     }
-    return sb.toString();
+    return entryCrc ? HashingEngine.crc32Hasher() : null;
   }
 
   private static Path generateTempFilePath(Path backupDir) {
@@ -137,109 +167,414 @@ public class FileOperationsUtil {
     return backupDir.resolve(tempFileName);
   }
 
-  private static ZipOutputStream initializeZipOutputStream(Path tempFile, boolean enableCompression)
-      throws FileNotFoundException {
-    ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(tempFile.toFile()));
-    if (enableCompression) {
-      zos.setLevel(9); // Maximum compression level
+  private static void processFileForBackup(BackupFile backupFile, ZipArchiveWriter writer, Path sourcePath,
+      Configuration config, SecretKey aesKey, CompressionAdvisor advisor, AtomicLong bytesBackedUp,
+      AtomicLong totalBytesProcessed, ConcurrentHashMap<String, String> fileHashes) throws Exception {
+    String entryName = sourcePath.relativize(backupFile.path()).toString();
+    boolean mapped = isMappedReadCandidate(backupFile, config);
+    try (FileSource source = FileSource.open(backupFile.path(), mapped)) {
+      int level = advisor.chooseLevel(source.head());
+      if (level == CompressionAdvisor.STORE && !config.isEnableEncryption()) {
+        transferStoredFile(source, backupFile, writer, entryName, config, fileHashes);
+      } else if (config.isEnableStreamingBackup() || mapped || source.size() > FileSource.MAX_READ_ALL_SIZE) {
+        streamFileToEntry(source, backupFile, writer, entryName, config, aesKey, advisor, level, fileHashes);
+      } else {
+        writeFileToEntry(source.readAll(), backupFile, writer, entryName, config, aesKey, advisor, level,
+            fileHashes);
+      }
+    } catch (InternalError e) {
+      throw sourceTruncated(backupFile, e);
     }
-    return zos;
+    bytesBackedUp.addAndGet(backupFile.size());
+    totalBytesProcessed.addAndGet(backupFile.size());
   }
 
-  private static void processFileForBackup(Path file, ZipOutputStream zos, Path sourcePath, boolean enableEncryption,
-      SecretKey aesKey, AtomicLong bytesBackedUp, AtomicLong totalBytesProcessed, boolean enableIntegrityCheck,
-      String hashAlgorithm, ConcurrentHashMap<String, String> fileHashes) throws Exception {
-    BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
-    ZipEntry zipEntry = new ZipEntry(sourcePath.relativize(file).toString());
-    zos.putNextEntry(zipEntry);
+  private static void streamFileToEntry(FileSource source, BackupFile backupFile, ZipArchiveWriter writer,
+      String entryName, Configuration config, SecretKey aesKey, CompressionAdvisor advisor, int level,
+      ConcurrentHashMap<String, String> fileHashes) throws Exception {
+    HashingEngine.Hasher hasher = newHasher(config, isPlainEntry(config, level));
+    OutputStream body = openEntryBody(writer, entryName, backupFile, config, aesKey, level, 0, hasher);
+    try (body) {
+      readFile(source, body, hasher);
+    }
+    recordCompression(advisor, backupFile.size(), body);
+    if (config.isEnableIntegrityCheck()) {
+      fileHashes.put(entryName, hasher.finish());
+    }
+  }
 
-    byte[] bytes = Files.readAllBytes(file);
+  private static void writeFileToEntry(byte[] bytes, BackupFile backupFile, ZipArchiveWriter writer,
+      String entryName, Configuration config, SecretKey aesKey, CompressionAdvisor advisor, int level,
+      ConcurrentHashMap<String, String> fileHashes) throws Exception {
+    HashingEngine.Hasher hasher = newHasher(config, isPlainEntry(config, level));
+    if (hasher != null) {
+      hasher.update(bytes, 0, bytes.length);
+    }
+    if (config.isEnableIntegrityCheck()) {
+      fileHashes.put(entryName, hasher.finish());
+    }
 
-    if (enableIntegrityCheck) {
-      String hash = generateHash(bytes, hashAlgorithm);
-      fileHashes.put(zipEntry.getName(), hash);
+    OutputStream body = openEntryBody(writer, entryName, backupFile, config, aesKey, level, 0, hasher);
+    try (body) {
+      body.write(bytes);
     }
+    recordCompression(advisor, bytes.length, body);
+  }
 
-    if (enableEncryption) {
-      bytes = KeyManagementUtil.encryptAES(bytes, aesKey);
+  // Data that is neither compressed nor encrypted goes to the archive as read
+  private static void transferStoredFile(FileSource source, BackupFile backupFile, ZipArchiveWriter writer,
+      String entryName, Configuration config, ConcurrentHashMap<String, String> fileHashes) throws Exception {
+    HashingEngine.Hasher hasher = newHasher(config, true);
+    writer.transferStoredEntry(entryName, source, backupFile.lastModified(), hasher);
+    if (config.isEnableIntegrityCheck()) {
+      fileHashes.put(entryName, hasher.finish());
     }
+  }
 
-    zos.write(bytes);
-    zos.closeEntry();
-    bytesBackedUp.addAndGet(attrs.size());
-    totalBytesProcessed.addAndGet(attrs.size());
+  // Without encryption the container deflates as usual; other codecs write a
+  // STORED entry tagged with the codec. With encryption the plaintext is
+  // compressed first and then encrypted, and the entry is STORED: deflating
+  // ciphertext would cost full CPU for no size reduction.
+  // level is CompressionAdvisor.STORE for data that is not worth compressing.
+  // A plain entry takes its CRC from crcSource, which the caller feeds the file.
+  private static OutputStream openEntryBody(ZipArchiveWriter writer, String entryName, BackupFile backupFile,
+      Configuration config, SecretKey aesKey, int level, int parallelBlockSize, HashingEngine.Hasher crcSource)
+      throws IOException {
+    CompressionCodec codec = codecFor(config);
+    if (isPlainEntry(config, level)) {
+      return writer.newEntry(entryName, level >= 0 ? ZipEntry.DEFLATED : ZipEntry.STORED, level,
+          backupFile.lastModified(), backupFile.size(), null, null, crcSource);
+    }
+    String comment = taggedFormat(EntryFormat.plain(), config, codec, level, backupFile.size()).toComment();
+    OutputStream entry = writer.newEntry(entryName, ZipEntry.STORED, 0, backupFile.lastModified(),
+        backupFile.size(), comment);
+    return wrapEntryBody(entry, config, aesKey, codec, level, parallelBlockSize);
   }
 
-  public static void createPartitionedBackup(List<Path> files, Path sourcePath, Path backupDir, Configuration config,
-      SecretKey aesKey, AtomicLong bytesBackedUp, AtomicLong totalBytesProcessed,
-      ConcurrentHashMap<String, String> fileHashes) throws IOException {
-    Path tempFile = generateTempFilePath(backupDir);
-    try (ZipOutputStream zos = initializeZipOutputStream(tempFile, config.isEnableCompression())) {
-      for (Path file : files) {
-        processFileForBackup(file, zos, sourcePath, config.isEnableEncryption(), aesKey, bytesBackedUp,
-            totalBytesProcessed, config.isEnableIntegrityCheck(), config.getHashAlgorithm(), fileHashes);
+  // The entry holds the file's own bytes, stored or deflated by the container
+  private static boolean isPlainEntry(Configuration config, int level) {
+    return !config.isEnableEncryption() && (level < 0 || DeflateCodec.ID.equals(codecFor(config).id()));
+  }
+
+  private static EntryFormat taggedFormat(EntryFormat format, Configuration config, CompressionCodec codec,
+      int level, long originalSize) {
+    if (config.isEnableEncryption()) {
+      format = format.with(EntryFormat.ENCRYPTION, GcmChunkedCipher.FORMAT);
+    }
+    format = format.with(EntryFormat.ORIGINAL_SIZE, Long.toString(originalSize));
+    if (level >= 0) {
+      format = format.with(EntryFormat.CODEC, codec.id());
+    }
+    return format;
+  }
+
+  private static OutputStream wrapEntryBody(OutputStream entry, Configuration config, SecretKey aesKey,
+      CompressionCodec codec, int level, int parallelBlockSize) throws IOException {
+    if (config.isEnableEncryption()) {
+      return new EncryptedEntryOutputStream(entry, aesKey, codec, level, parallelBlockSize);
+    }
+    return level >= 0 ? codec.compress(entry, level) : entry;
+  }
+
+  // Small files are read whole into the open block
+  private static void addToSolidBlock(BackupFile backupFile, String entryName, SolidBlock block,
+      Configuration config, AtomicLong bytesBackedUp, AtomicLong totalBytesProcessed,
+      ConcurrentHashMap<String, String> fileHashes) throws Exception {
+    IoThrottle.SHARED.acquireRead(backupFile.size());
+    byte[] bytes = Files.readAllBytes(backupFile.path());
+    block.add(entryName, bytes);
+    if (config.isEnableIntegrityCheck()) {
+      fileHashes.put(entryName, generateHash(bytes, config.getHashAlgorithm()));
+    }
+    bytesBackedUp.addAndGet(bytes.length);
+    totalBytesProcessed.addAndGet(bytes.length);
+  }
+
+  // The block's buffer plus the copy of it handed to the codec
+  private static long solidBlockFootprint(Configuration config) {
+    return 2L * config.getSolidBlockSize();
+  }
+
+  private static void writeSolidBlock(SolidBlock block, ZipArchiveWriter writer, Configuration config,
+      SecretKey aesKey, CompressionAdvisor advisor) throws IOException {
+    if (block.isEmpty()) {
+      return;
+    }
+    byte[] data = block.data();
+    CompressionCodec codec = codecFor(config);
+    int level = advisor.chooseLevel(data, data.length);
+    String comment = taggedFormat(EntryFormat.plain().with(EntryFormat.SOLID), config, codec, level, data.length)
+        .toComment();
+    OutputStream entry = writer.newEntry(block.entryName(), ZipEntry.STORED, 0, System.currentTimeMillis(),
+        data.length, comment, block.toExtra());
+    OutputStream body = wrapEntryBody(entry, config, aesKey, codec, level, 0);
+    try (body) {
+      body.write(data);
+    }
+    recordCompression(advisor, data.length, body);
+  }
+
+  // Feeds the advisor the time spent in the compressor, not in reads, throttling,
+  // encryption or writes; bodies that were not compressed report nothing
+  private static void recordCompression(CompressionAdvisor advisor, long bytes, OutputStream body) {
+    if (body instanceof CompressingStream stream && stream.compressNanos() > 0) {
+      advisor.recordCompressed(bytes, stream.compressNanos());
+    }
+  }
+
+  private static boolean isSolidBlockCandidate(BackupFile file, Configuration config) {
+    return config.getSolidBlockMaxFileSize() > 0 && file.size() <= config.getSolidBlockMaxFileSize()
+        && config.getSolidBlockSize() > 0;
+  }
+
+  private static CompressionCodec codecFor(Configuration config) {
+    return CompressionCodec.forId(config.getCompressionCodec() != null ? config.getCompressionCodec()
+        : DeflateCodec.ID);
+  }
+
+  private static boolean isMappedReadCandidate(BackupFile file, Configuration config) {
+    return config.getMappedReadThreshold() > 0 && file.size() >= config.getMappedReadThreshold();
+  }
+
+  // Reading a mapped window of a file that was truncated after it was mapped
+  // faults with an InternalError; it fails the file like any other read error
+  private static IOException sourceTruncated(BackupFile backupFile, InternalError e) {
+    return new IOException("Source file truncated while being read: " + backupFile.path(), e);
+  }
+
+  // Hands the file to the pipeline one buffer at a time, so heap use per file
+  // does not depend on its size. Mapped windows go through a pooled staging
+  // buffer rather than to the stages themselves: zlib or CRC32 reading a
+  // window of a file truncated meanwhile would crash the VM, where the copy
+  // fails with an InternalError that sourceTruncated turns into an IOException.
+  private static void readFile(FileSource source, OutputStream out, HashingEngine.Hasher hasher)
+      throws IOException {
+    byte[] staging = null;
+    try {
+      for (ByteBuffer data = source.head(); data != null; data = source.next()) {
+        if (data.hasArray()) {
+          writeAndHash(data.array(), data.arrayOffset() + data.position(), data.remaining(), out, hasher);
+          continue;
+        }
+        if (staging == null) {
+          staging = BufferPool.SHARED.acquire(STREAM_BUFFER_SIZE);
+        }
+        while (data.hasRemaining()) {
+          int n = Math.min(data.remaining(), staging.length);
+          data.get(staging, 0, n);
+          writeAndHash(staging, 0, n, out, hasher);
+        }
       }
-    } catch (Exception e) {
-      e.printStackTrace();
+    } finally {
+      BufferPool.SHARED.release(staging);
+    }
+  }
+
+  private static void writeAndHash(byte[] data, int offset, int length, OutputStream out,
+      HashingEngine.Hasher hasher) throws IOException {
+    if (hasher != null) {
+      hasher.update(data, offset, length);
     }
+    out.write(data, offset, length);
   }
 
-  private static byte[] readFromZipInputStream(ZipInputStream zis) throws IOException {
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    byte[] buffer = new byte[8 * 1024];
-    int len;
-    while ((len = zis.read(buffer)) > 0) {
-      baos.write(buffer, 0, len);
+  // The entry body is only a recipe;  // The entry body is only a recipe; the file's chunks go to the chunk store
+  private static void processFileForDedupBackup(BackupFile backupFile, ZipArchiveWriter writer, Path sourcePath,
+      ChunkStore chunkStore, Configuration config, AtomicLong bytesBackedUp, AtomicLong totalBytesProcessed,
+      ConcurrentHashMap<String, String> fileHashes) throws Exception {
+    HashingEngine.Hasher hasher = newHasher(config, false);
+    List<ChunkRecipe.ChunkRef> chunks = new ArrayList<>();
+    try (InputStream in = Files.newInputStream(backupFile.path())) {
+      new FastCdcChunker().chunk(in, (buffer, offset, length) -> {
+        IoThrottle.SHARED.acquireRead(length);
+        if (hasher != null) {
+          hasher.update(buffer, offset, length);
+        }
+        chunks.add(new ChunkRecipe.ChunkRef(chunkStore.put(buffer, offset, length), length));
+      });
+    }
+
+    String entryName = sourcePath.relativize(backupFile.path()).toString();
+    String comment = EntryFormat.plain().with(EntryFormat.RECIPE)
+        .with(EntryFormat.ORIGINAL_SIZE, Long.toString(backupFile.size())).toComment();
+    int level = config.isEnableCompression() ? COMPRESSION_LEVEL : CompressionAdvisor.STORE;
+    try (OutputStream body = writer.newEntry(entryName, level >= 0 ? ZipEntry.DEFLATED : ZipEntry.STORED, level,
+        backupFile.lastModified(), 0, comment)) {
+      ChunkRecipe.write(chunks, body);
+    }
+    if (hasher != null) {
+      fileHashes.put(entryName, hasher.finish());
     }
-    return baos.toByteArray();
+    bytesBackedUp.addAndGet(backupFile.size());
+    totalBytesProcessed.addAndGet(backupFile.size());
   }
 
-  private static void processTempFile(Path tempFile, ZipOutputStream zos, AtomicLong totalBytesWritten) {
-    try (ZipInputStream zis = new ZipInputStream(new FileInputStream(tempFile.toFile()))) {
-      ZipEntry entry;
-      while ((entry = zis.getNextEntry()) != null) {
-        byte[] fileData = readFromZipInputStream(zis);
-        writeToZipOutputStream(entry, fileData, zos, totalBytesWritten);
-        zis.closeEntry();
+  // A file above the threshold gets a temp zip of its own whose single entry is
+  // deflated block-wise on all cores. Returns that temp zip.
+  private static Path processLargeFileForBackup(BackupFile backupFile, Path sourcePath, Path backupDir,
+      Configuration config, SecretKey aesKey, CompressionAdvisor advisor, AtomicLong bytesBackedUp,
+      AtomicLong totalBytesProcessed, ConcurrentHashMap<String, String> fileHashes) throws Exception {
+    String entryName = sourcePath.relativize(backupFile.path()).toString();
+    int blockSize = config.getParallelCompressionBlockSize() > 0 ? config.getParallelCompressionBlockSize()
+        : DEFAULT_PARALLEL_BLOCK_SIZE;
+    HashingEngine.Hasher hasher;
+    OutputStream compressed = null;
+    Path archive = generateTempFilePath(backupDir);
+    try (FileSource source = FileSource.open(backupFile.path(), isMappedReadCandidate(backupFile, config));
+        ZipArchiveWriter writer = new ZipArchiveWriter(archive)) {
+      int level = advisor.chooseLevel(source.head());
+      hasher = newHasher(config, isPlainEntry(config, level));
+      if (level == CompressionAdvisor.STORE && !config.isEnableEncryption()) {
+        writer.transferStoredEntry(entryName, source, backupFile.lastModified(), hasher);
+      } else if (config.isEnableEncryption() || level == CompressionAdvisor.STORE
+          || !DeflateCodec.ID.equals(codecFor(config).id())) {
+        OutputStream body = openEntryBody(writer, entryName, backupFile, config, aesKey, level, blockSize, hasher);
+        try (body) {
+          readFile(source, body, hasher);
+        }
+        compressed = body;
+      } else {
+        writer.beginEntry(entryName, ZipEntry.DEFLATED, backupFile.lastModified(), backupFile.size());
+        ParallelDeflaterOutputStream deflater = new ParallelDeflaterOutputStream(writer.entryOutputStream(),
+            level, blockSize, 0);
+        try {
+          readFile(source, deflater, hasher);
+        } finally {
+          deflater.close();
+        }
+        writer.finishEntry(hasher.crc32(), deflater.getBytesIn());
+        compressed = deflater;
       }
+    } catch (InternalError e) {
+      Files.deleteIfExists(archive);
+      throw sourceTruncated(backupFile, e);
     } catch (Exception e) {
-      e.printStackTrace();
+      // The partition never learns of a temp zip that failed
+      Files.deleteIfExists(archive);
+      throw e;
+    }
+    recordCompression(advisor, backupFile.size(), compressed);
+    if (config.isEnableIntegrityCheck()) {
+      fileHashes.put(entryName, hasher.finish());
     }
+    bytesBackedUp.addAndGet(backupFile.size());
+    totalBytesProcessed.addAndGet(backupFile.size());
+    return archive;
   }
 
-  private static void writeToZipOutputStream(ZipEntry entry, byte[] fileData, ZipOutputStream zos,
-      AtomicLong totalBytesWritten) throws IOException {
-    synchronized (zos) {
-      zos.putNextEntry(new ZipEntry(entry.getName()));
-      zos.write(fileData, 0, fileData.length);
-      zos.closeEntry();
-      totalBytesWritten.addAndGet(fileData.length);
+  // Heap a file holds while it is backed up. Streamed files need their read,
+  // codec and cipher buffers; others are read whole, solid block members only
+  // until they are copied into the block, which has its own reservation.
+  // Parallel compression keeps two blocks per core in flight, each with its
+  // compressed copy.
+  static long memoryFootprint(BackupFile file, Configuration config) {
+    if (isParallelCompressionCandidate(file, config)) {
+      int blockSize = config.getParallelCompressionBlockSize() > 0 ? config.getParallelCompressionBlockSize()
+          : DEFAULT_PARALLEL_BLOCK_SIZE;
+      return 4L * Runtime.getRuntime().availableProcessors() * blockSize;
     }
+    if (isSolidBlockCandidate(file, config)) {
+      return file.size();
+    }
+    if (config.isEnableStreamingBackup() || isMappedReadCandidate(file, config)) {
+      return STREAMING_FOOTPRINT;
+    }
+    return file.size() + STREAMING_FOOTPRINT;
   }
 
-  private static void shutdownExecutor(ExecutorService executor) {
-    executor.shutdown();
-    try {
-      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-    } catch (InterruptedException e) {
+  private static boolean isParallelCompressionCandidate(BackupFile file, Configuration config) {
+    return config.isEnableCompression() && config.getParallelCompressionThreshold() > 0
+        && file.size() >= config.getParallelCompressionThreshold();
+  }
+
+  // The temp archives a partition wrote, and whether all of its files made it in
+  public record PartitionOutput(List<Path> archives, boolean complete) {
+  }
+
+  public static PartitionOutput createPartitionedBackup(List<BackupFile> files, Path sourcePath, Path backupDir,
+      Configuration config, SecretKey aesKey, AtomicLong bytesBackedUp, AtomicLong totalBytesProcessed,
+      ConcurrentHashMap<String, String> fileHashes, ChunkStore chunkStore, CompressionAdvisor advisor,
+      MemoryBudget budget, DeviceScheduler.Device device) throws IOException {
+    Path tempFile = generateTempFilePath(backupDir);
+    List<Path> archives = new ArrayList<>(List.of(tempFile));
+    try (ZipArchiveWriter writer = new ZipArchiveWriter(tempFile)) {
+      SolidBlock block = new SolidBlock();
+      MemoryBudget.Reservation blockReservation = null;
+      try {
+        for (BackupFile file : files) {
+          boolean solid = chunkStore == null && isSolidBlockCandidate(file, config);
+          String entryName = sourcePath.relativize(file.path()).toString();
+          // The block is flushed and the next one reserved before the file's
+          // device slot, with nothing else held, and kept until it is flushed
+          if (solid && !block.fits(entryName, (int) file.size(), config.getSolidBlockSize())) {
+            writeSolidBlock(block, writer, config, aesKey, advisor);
+            block = new SolidBlock();
+            blockReservation.close();
+            blockReservation = null;
+          }
+          if (solid && blockReservation == null) {
+            blockReservation = budget.reserveLasting(solidBlockFootprint(config));
+          }
+          IoThrottle.SHARED.acquireFile();
+          // Device slot first, then memory, in the same order everywhere
+          DeviceScheduler.Device.Slot slot = device.acquire(file.size());
+          try {
+            MemoryBudget.Reservation reservation = budget.reserve(memoryFootprint(file, config));
+            try {
+              if (solid) {
+                addToSolidBlock(file, entryName, block, config, bytesBackedUp, totalBytesProcessed, fileHashes);
+                continue;
+              }
+              if (chunkStore != null) {
+                processFileForDedupBackup(file, writer, sourcePath, chunkStore, config, bytesBackedUp,
+                    totalBytesProcessed, fileHashes);
+                continue;
+              }
+              if (isParallelCompressionCandidate(file, config)) {
+                archives.add(processLargeFileForBackup(file, sourcePath, backupDir, config, aesKey, advisor,
+                    bytesBackedUp, totalBytesProcessed, fileHashes));
+                continue;
+              }
+              processFileForBackup(file, writer, sourcePath, config, aesKey, advisor, bytesBackedUp,
+                  totalBytesProcessed, fileHashes);
+            } finally {
+              reservation.close();
+            }
+          } finally {
+            slot.close();
+          }
+        }
+        writeSolidBlock(block, writer, config, aesKey, advisor);
+      } finally {
+        if (blockReservation != null) {
+          blockReservation.close();
+        }
+      }
+    } catch (Exception e) {
       e.printStackTrace();
+      return new PartitionOutput(archives, false);
     }
+    return new PartitionOutput(archives, true);
   }
 
-  private static void createJsonFromHashes(String hashFileKeyDir, ConcurrentHashMap<String, String> fileHashes)
+  // Writes the manifest in the configured format and removes one in the other format
+  private static void saveFileHashes(Configuration config, ConcurrentHashMap<String, String> fileHashes)
       throws IOException {
-    try (BufferedOutputStream fos = new BufferedOutputStream(new FileOutputStream(hashFileKeyDir + "/hashes.json"))) {
-      fos.write("{".getBytes());
-      Iterator<Map.Entry<String, String>> iterator = fileHashes.entrySet().iterator();
-      while (iterator.hasNext()) {
-        Map.Entry<String, String> entry = iterator.next();
-        String jsonEntry = "\"" + entry.getKey() + "\":\"" + entry.getValue() + "\"";
-        fos.write(jsonEntry.getBytes());
-        if (iterator.hasNext()) {
-          fos.write(",".getBytes());
-        }
-      }
-      fos.write("}".getBytes());
+    Path binaryManifest = Path.of(config.getHashFileDir(), HashManifest.FILE_NAME);
+    Path jsonManifest = Path.of(config.getHashFileDir(), JSON_HASH_FILE);
+    if (HASH_FORMAT_JSON.equals(config.getHashManifestFormat())) {
+      createJsonFromHashes(jsonManifest, fileHashes);
+      Files.deleteIfExists(binaryManifest);
+    } else {
+      HashManifest.write(binaryManifest, fileHashes);
+      Files.deleteIfExists(jsonManifest);
+    }
+  }
+
+  private static void createJsonFromHashes(Path jsonManifest, ConcurrentHashMap<String, String> fileHashes)
+      throws IOException {
+    try (BufferedWriter writer = Files.newBufferedWriter(jsonManifest, StandardCharsets.UTF_8)) {
+      JSONObject.writeJSONString(fileHashes, writer);
     }
   }
 
@@ -253,77 +588,76 @@ public class FileOperationsUtil {
     }
   }
 
+  // Zero-length entries telling restore that a file no longer exists, in a
+  // temp zip of their own; null when nothing was deleted
+  public static Path createDeletionMarkers(List<String> deletedEntries, Path backupDir) throws IOException {
+    if (deletedEntries.isEmpty()) {
+      return null;
+    }
+    String comment = EntryFormat.plain().with(EntryFormat.DELETED).toComment();
+    Path tempFile = generateTempFilePath(backupDir);
+    try (ZipArchiveWriter writer = new ZipArchiveWriter(tempFile)) {
+      for (String name : deletedEntries) {
+        writer.newEntry(name, ZipEntry.STORED, 0, System.currentTimeMillis(), 0, comment).close();
+      }
+    }
+    return tempFile;
+  }
+
+  // Entries are copied still compressed, with their CRC and sizes, so every
+  // byte is deflated exactly once per backup.
   public static void mergeTemporaryFilesIntoOne(Path outputFile, List<Path> tempFiles, AtomicLong totalBytesWritten,
       ConcurrentHashMap<String, String> fileHashes, Configuration config) throws IOException {
-    List<Path> filesToDelete = Collections.synchronizedList(new ArrayList<>());
-    try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(outputFile.toFile()))) {
-      ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    try (ZipArchiveWriter writer = new ZipArchiveWriter(outputFile)) {
       for (Path tempFile : tempFiles) {
-        executor.submit(() -> {
-          processTempFile(tempFile, zos, totalBytesWritten);
-          filesToDelete.add(tempFile);
-        });
+        copyTempFileEntries(tempFile, writer, totalBytesWritten);
       }
-      shutdownExecutor(executor);
       if (config.isEnableIntegrityCheck()) {
-        createJsonFromHashes(config.getHashFileDir(), fileHashes);
+        saveFileHashes(config, fileHashes);
       }
     }
     deleteTempFile(tempFiles);
   }
 
-  public static ConcurrentHashMap<String, String> loadStoredFileHashes(String hashFileDir) {
-    try (BufferedReader reader = new BufferedReader(new FileReader(hashFileDir + "/hashes.json"))) {
-      ConcurrentHashMap<String, String> storedFileHashes = new ConcurrentHashMap<>();
-      StringBuilder key = new StringBuilder();
-      StringBuilder value = new StringBuilder();
-      boolean isKey = true;
-      boolean isOpenQuote = false;
-
-      int ch;
-      while ((ch = reader.read()) != -1) {
-        char c = (char) ch;
-        if (c == '{')
-          continue;
-        if (c == '}')
-          break;
-
-        if (c == '\"') {
-          isOpenQuote = !isOpenQuote;
-          continue;
-        }
+  private static void copyTempFileEntries(Path tempFile, ZipArchiveWriter writer, AtomicLong totalBytesWritten) {
+    try (ZipArchiveReader reader = new ZipArchiveReader(tempFile)) {
+      for (ZipArchiveReader.Entry entry : reader.entries()) {
+        writer.copyEntry(reader, entry);
+        totalBytesWritten.addAndGet(entry.size());
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
 
-        if (isOpenQuote) {
-          if (isKey) {
-            key.append(c);
-          } else {
-            value.append(c);
-          }
-        } else {
-          if (c == ':') {
-            isKey = false;
-          }
-          if (c == ',') {
-            isKey = true;
-            storedFileHashes.put(key.toString(), value.toString());
-            key.setLength(0);
-            value.setLength(0);
-          }
-        }
+  // Prefers the memory-mapped binary manifest; hashes.json is still read for older backups
+  public static Map<String, String> loadStoredFileHashes(String hashFileDir) {
+    try {
+      Path binaryManifest = Path.of(hashFileDir, HashManifest.FILE_NAME);
+      if (Files.exists(binaryManifest)) {
+        return HashManifest.open(binaryManifest);
       }
-      if (key.length() > 0 && value.length() > 0) {
-        storedFileHashes.put(key.toString(), value.toString());
+      try (BufferedReader reader = Files.newBufferedReader(Path.of(hashFileDir, JSON_HASH_FILE),
+          StandardCharsets.UTF_8)) {
+        JSONObject json = (JSONObject) new JSONParser().parse(reader);
+        Map<String, String> storedFileHashes = new HashMap<>();
+        for (Object key : json.keySet()) {
+          storedFileHashes.put((String) key, (String) json.get(key));
+        }
+        return storedFileHashes;
       }
-      return storedFileHashes;
     } catch (Exception e) {
       System.out.println("Error reading stored hash values: " + e.getMessage());
-      return new ConcurrentHashMap<>();
+      return new HashMap<>();
     }
   }
 
   public static boolean checkDiskSpace(long requiredSpace, Path dirPath) {
-    File file = dirPath.toFile();
-    long usableSpace = file.getUsableSpace();
+    return checkDiskSpace(requiredSpace, dirPath.toFile().getUsableSpace());
+  }
+
+  // Against space measured before the backup started writing
+  public static boolean checkDiskSpace(long requiredSpace, long usableSpace) {
     long additionalSpace = Math.round((ADDITIONAL_SPACE_REQUIRED / 100.0) * requiredSpace);
     long totalRequiredSpace = requiredSpace + additionalSpace;
 
@@ -339,4 +673,9 @@ public class FileOperationsUtil {
       return true;
     }
   }
+
+  // checkDiskSpace without the report, for checks repeated while a scan runs
+  public static boolean hasDiskSpace(long requiredSpace, long usableSpace) {
+    return usableSpace >= requiredSpace + Math.round((ADDITIONAL_SPACE_REQUIRED / 100.0) * requiredSpace);
+  }
 }
@@ -0,0 +1,141 @@
+package main.java.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/*
+ * A file being backed up, read front to back in buffers: sliding mapped
+ * windows, or a pooled heap buffer when mapping is not worth it. The first
+ * buffer is read on open, so the CompressionAdvisor samples it for the level
+ * before the entry is opened and the read then carries on after it, without a
+ * second open or read of the file's head. What follows the head can also be
+ * handed to another channel by the kernel. Reads are throttled by IoThrottle.
+ */
+public class FileSource implements AutoCloseable {
+  private static final long MAP_WINDOW_SIZE = 64L * 1024 * 1024;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  // Largest array the VM reliably allocates
+  public static final long MAX_READ_ALL_SIZE = Integer.MAX_VALUE - 8;
+
+  private final FileChannel channel;
+  private final long size;
+  private final boolean mapped;
+  private final ByteBuffer head;
+  private byte[] buffer;
+  private long position;
+
+  private FileSource(FileChannel channel, boolean mapped) throws IOException {
+    this.channel = channel;
+    this.size = channel.size();
+    this.mapped = mapped;
+    if (mapped) {
+      this.head = map(0);
+    } else {
+      this.buffer = BufferPool.SHARED.acquire(BUFFER_SIZE);
+      this.head = ByteBuffer.wrap(buffer, 0, readBuffer());
+    }
+  }
+
+  public static FileSource open(Path file, boolean mapped) throws IOException {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+    try {
+      return new FileSource(channel, mapped);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  // Size when opened; mapped reads stop here even if the file grows meanwhile
+  public long size() {
+    return size;
+  }
+
+  // The first buffer; empty for an empty file
+  public ByteBuffer head() {
+    return head.duplicate();
+  }
+
+  // The buffer after the previous one, or null at the end. A heap buffer is
+  // reused by the next call, so it has to be consumed before then.
+  public ByteBuffer next() throws IOException {
+    if (mapped) {
+      return position < size ? map(position) : null;
+    }
+    int length = readBuffer();
+    return length > 0 ? ByteBuffer.wrap(buffer, 0, length) : null;
+  }
+
+  // Copies what follows the last buffer handed out to target with transferTo,
+  // so the kernel moves the bytes; stops early when the file shrank meanwhile
+  public long transferRemaining(WritableByteChannel target) throws IOException {
+    long start = position;
+    while (position < size) {
+      long count = Math.min(MAP_WINDOW_SIZE, size - position);
+      IoThrottle.SHARED.acquireReadInSteps(count);
+      long n = channel.transferTo(position, count, target);
+      if (n <= 0) {
+        break;
+      }
+      position += n;
+    }
+    return position - start;
+  }
+
+  // The whole file on the heap, the head included; only for unmapped sources
+  // no larger than MAX_READ_ALL_SIZE
+  public byte[] readAll() throws IOException {
+    if (size > MAX_READ_ALL_SIZE) {
+      throw new IOException("File too large to read into memory: " + size + " bytes");
+    }
+    byte[] data = Arrays.copyOf(head.array(), (int) Math.max(size, head.remaining()));
+    int length = head.remaining();
+    if (length < data.length) {
+      IoThrottle.SHARED.acquireRead(data.length - length);
+      ByteBuffer rest = ByteBuffer.wrap(data, length, data.length - length);
+      fill(rest);
+      length = rest.position();
+    }
+    position = size;
+    return length == data.length ? data : Arrays.copyOf(data, length);
+  }
+
+  private ByteBuffer map(long offset) throws IOException {
+    ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+        Math.min(MAP_WINDOW_SIZE, size - offset));
+    IoThrottle.SHARED.acquireReadInSteps(window.remaining());
+    position = offset + window.remaining();
+    return window;
+  }
+
+  private int readBuffer() throws IOException {
+    ByteBuffer target = ByteBuffer.wrap(buffer);
+    fill(target);
+    IoThrottle.SHARED.acquireRead(target.position());
+    position += target.position();
+    return target.position();
+  }
+
+  private void fill(ByteBuffer target) throws IOException {
+    while (target.hasRemaining()) {
+      if (channel.read(target) == -1) {
+        return;
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      channel.close();
+    } finally {
+      BufferPool.SHARED.release(buffer);
+      buffer = null;
+    }
+  }
+}
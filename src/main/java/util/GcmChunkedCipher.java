@@ -0,0 +1,157 @@
+package main.java.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * Chunked AES-GCM format for entry bodies:
+ *
+ *   header  version byte, plaintext chunk size (int), random 16-byte salt
+ *   chunks  ciphertext + 16-byte tag; all but the last hold exactly chunkSize bytes
+ *
+ * Every entry is sealed under its own subkey, HKDF-SHA256(key, salt), so the
+ * nonce only has to be unique within the entry: chunk i uses nonce = 0^8 || i,
+ * and an entry is capped at 2^32 chunks. The final chunk is flagged in the AAD
+ * so a truncated body fails authentication. Chunks sit at fixed offsets, so
+ * they can be encrypted and decrypted independently (and in parallel), and a
+ * corrupt chunk is rejected before its plaintext is released.
+ *
+ * Version 1 bodies (shared key, 8-byte random nonce prefix in the header) are
+ * still read, but no longer written.
+ */
+public class GcmChunkedCipher {
+  public static final String FORMAT = "gcm";
+  public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+  public static final int TAG_SIZE = 16;
+  private static final int VERSION_1 = 1;
+  private static final int VERSION_2 = 2;
+  // Version byte and chunk size, common to both versions
+  private static final int FIXED_HEADER_SIZE = 5;
+  private static final int NONCE_PREFIX_SIZE = 8;
+  private static final int SALT_SIZE = 16;
+  private static final long MAX_CHUNK_INDEX = 0xFFFFFFFFL;
+  private static final byte[] SUBKEY_INFO = "backup-gcm-entry".getBytes(StandardCharsets.US_ASCII);
+  private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+  private static final SecureRandom RANDOM = new SecureRandom();
+  private static final int MAX_POOLED_CIPHERS = 64;
+  // Pooled like HashingEngine's digests: chunks are opened on a virtual thread
+  // per restored file, where a ThreadLocal would build a Cipher per file
+  private static final ConcurrentLinkedQueue<Cipher> CIPHERS = new ConcurrentLinkedQueue<>();
+
+  static byte[] newHeader(int chunkSize) {
+    byte[] salt = new byte[SALT_SIZE];
+    RANDOM.nextBytes(salt);
+    return ByteBuffer.allocate(FIXED_HEADER_SIZE + SALT_SIZE).put((byte) VERSION_2).putInt(chunkSize).put(salt)
+        .array();
+  }
+
+  // The whole header length, given its first byte
+  static int headerSize(int version) throws IOException {
+    switch (version) {
+      case VERSION_1:
+        return FIXED_HEADER_SIZE + NONCE_PREFIX_SIZE;
+      case VERSION_2:
+        return FIXED_HEADER_SIZE + SALT_SIZE;
+      default:
+        throw new IOException("Unsupported encrypted entry version");
+    }
+  }
+
+  static int chunkSize(byte[] header) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(header);
+    headerSize(buffer.get());
+    int chunkSize = buffer.getInt();
+    if (chunkSize <= 0) {
+      throw new IOException("Corrupt encrypted entry header");
+    }
+    return chunkSize;
+  }
+
+  // The key chunks of this entry are sealed with: HKDF-SHA256 over the header salt
+  static SecretKey entryKey(SecretKey key, byte[] header) throws GeneralSecurityException {
+    if (header[0] == VERSION_1) {
+      return key;
+    }
+    byte[] keyBytes = key.getEncoded();
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(header, FIXED_HEADER_SIZE, SALT_SIZE, "HmacSHA256"));
+    byte[] pseudoRandomKey = mac.doFinal(keyBytes);
+    mac.init(new SecretKeySpec(pseudoRandomKey, "HmacSHA256"));
+    mac.update(SUBKEY_INFO);
+    mac.update((byte) 1);
+    byte[] subkey = mac.doFinal();
+    try {
+      return new SecretKeySpec(subkey, 0, keyBytes.length, "AES");
+    } finally {
+      Arrays.fill(keyBytes, (byte) 0);
+      Arrays.fill(pseudoRandomKey, (byte) 0);
+      Arrays.fill(subkey, (byte) 0);
+    }
+  }
+
+  // Writes ciphertext and tag of chunk `index` to out; returns the bytes written
+  static int encryptChunk(SecretKey entryKey, byte[] header, long index, boolean last, byte[] in, int offset,
+      int length, byte[] out) throws GeneralSecurityException {
+    return doFinal(Cipher.ENCRYPT_MODE, entryKey, header, index, last, in, offset, length, out);
+  }
+
+  // Throws AEADBadTagException if the chunk was modified, truncated or moved
+  static int decryptChunk(SecretKey entryKey, byte[] header, long index, boolean last, byte[] in, int offset,
+      int length, byte[] out) throws GeneralSecurityException {
+    return doFinal(Cipher.DECRYPT_MODE, entryKey, header, index, last, in, offset, length, out);
+  }
+
+  private static int doFinal(int mode, SecretKey entryKey, byte[] header, long index, boolean last, byte[] in,
+      int offset, int length, byte[] out) throws GeneralSecurityException {
+    if (index > MAX_CHUNK_INDEX) {
+      throw new GeneralSecurityException("Encrypted entry has more than 2^32 chunks");
+    }
+    ByteBuffer nonce = ByteBuffer.allocate(NONCE_PREFIX_SIZE + 4);
+    if (header[0] == VERSION_1) {
+      nonce.put(header, FIXED_HEADER_SIZE, NONCE_PREFIX_SIZE);
+    } else {
+      nonce.position(NONCE_PREFIX_SIZE);
+    }
+    nonce.putInt((int) index);
+    Cipher cipher = CIPHERS.poll();
+    if (cipher == null) {
+      cipher = Cipher.getInstance(TRANSFORMATION);
+    }
+    cipher.init(mode, entryKey, new GCMParameterSpec(TAG_SIZE * 8, nonce.array()));
+    cipher.updateAAD(new byte[] { (byte) (last ? 1 : 0) });
+    int written = cipher.doFinal(in, offset, length, out, 0);
+    // A failed chunk leaves the cipher to be dropped, not reused
+    if (CIPHERS.size() < MAX_POOLED_CIPHERS) {
+      CIPHERS.add(cipher);
+    }
+    return written;
+  }
+
+  public static byte[] encrypt(byte[] data, SecretKey key) throws IOException {
+    ByteArrayOutputStream encrypted = new ByteArrayOutputStream(data.length + FIXED_HEADER_SIZE + SALT_SIZE + TAG_SIZE
+        * (data.length / DEFAULT_CHUNK_SIZE + 1));
+    try (GcmEncryptingOutputStream out = new GcmEncryptingOutputStream(encrypted, key, DEFAULT_CHUNK_SIZE, 1)) {
+      out.write(data);
+    }
+    return encrypted.toByteArray();
+  }
+
+  public static byte[] decrypt(byte[] data, SecretKey key) throws IOException {
+    try (GcmDecryptingInputStream in = new GcmDecryptingInputStream(new ByteArrayInputStream(data), key)) {
+      return in.readAllBytes();
+    }
+  }
+}
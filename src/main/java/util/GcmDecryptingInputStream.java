@@ -0,0 +1,109 @@
+package main.java.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+
+/*
+ * Reads a GcmChunkedCipher body one chunk at a time. Each chunk is
+ * authenticated before any of its bytes are returned, so a corrupt chunk fails
+ * the read right there instead of after the whole entry was decrypted.
+ */
+public class GcmDecryptingInputStream extends InputStream {
+  private final InputStream in;
+  private final SecretKey entryKey;
+  private final byte[] header;
+  private final int sealedCapacity;
+  private byte[] sealed;
+  private byte[] plain;
+  private int sealedLength = 0;
+  private int plainOffset = 0;
+  private int plainLength = 0;
+  private long chunkIndex = 0;
+  private boolean lastChunkRead = false;
+
+  public GcmDecryptingInputStream(InputStream in, SecretKey key) throws IOException {
+    this.in = in;
+    int version = in.read();
+    if (version == -1) {
+      throw new IOException("Encrypted entry is truncated");
+    }
+    this.header = new byte[GcmChunkedCipher.headerSize(version)];
+    header[0] = (byte) version;
+    if (in.readNBytes(header, 1, header.length - 1) != header.length - 1) {
+      throw new IOException("Encrypted entry is truncated");
+    }
+    int chunkSize = GcmChunkedCipher.chunkSize(header);
+    try {
+      this.entryKey = GcmChunkedCipher.entryKey(key, header);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Entry key derivation failed", e);
+    }
+    // One byte of look-ahead tells whether the chunk just read is the last one
+    this.sealedCapacity = chunkSize + GcmChunkedCipher.TAG_SIZE + 1;
+    this.sealed = BufferPool.SHARED.acquire(sealedCapacity);
+    this.plain = BufferPool.SHARED.acquire(chunkSize);
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    while (plainOffset == plainLength) {
+      if (lastChunkRead) {
+        return -1;
+      }
+      openNextChunk();
+    }
+    int n = Math.min(len, plainLength - plainOffset);
+    System.arraycopy(plain, plainOffset, b, off, n);
+    plainOffset += n;
+    return n;
+  }
+
+  private void openNextChunk() throws IOException {
+    sealedLength += in.readNBytes(sealed, sealedLength, sealedCapacity - sealedLength);
+    boolean last = sealedLength < sealedCapacity;
+    int chunkLength = last ? sealedLength : sealedLength - 1;
+    if (chunkLength < GcmChunkedCipher.TAG_SIZE) {
+      throw new IOException("Encrypted entry is truncated");
+    }
+    try {
+      plainLength = GcmChunkedCipher.decryptChunk(entryKey, header, chunkIndex, last, sealed, 0, chunkLength, plain);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Encrypted chunk " + chunkIndex + " failed authentication", e);
+    }
+    plainOffset = 0;
+    chunkIndex++;
+    lastChunkRead = last;
+    if (!last) {
+      sealed[0] = sealed[sealedLength - 1];
+      sealedLength = 1;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      in.close();
+    } finally {
+      if (plain != null) {
+        Arrays.fill(plain, 0, plainLength, (byte) 0);
+        BufferPool.SHARED.release(plain);
+        BufferPool.SHARED.release(sealed);
+        plain = null;
+        sealed = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package main.java.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.crypto.SecretKey;
+
+/*
+ * Writes a GcmChunkedCipher body. A chunk is sealed only once it is known
+ * whether more data follows, so the final chunk can be flagged on close().
+ * With more than one thread, chunks are sealed on the shared BlockExecutor and
+ * written in order.
+ */
+public class GcmEncryptingOutputStream extends OutputStream {
+  private final OutputStream out;
+  private final SecretKey entryKey;
+  private final byte[] header;
+  private final int chunkSize;
+  private final ExecutorService executor;
+  private final int maxChunksInFlight;
+  private final ArrayDeque<Future<Sealed>> pending = new ArrayDeque<>();
+  private byte[] chunk;
+  private int chunkLength = 0;
+  private long chunkIndex = 0;
+  private boolean closed = false;
+
+  // threads == 1 seals chunks on the writing thread, 0 uses every core
+  public GcmEncryptingOutputStream(OutputStream out, SecretKey key, int chunkSize, int threads) throws IOException {
+    this.out = out;
+    this.chunkSize = chunkSize;
+    this.header = GcmChunkedCipher.newHeader(chunkSize);
+    try {
+      this.entryKey = GcmChunkedCipher.entryKey(key, header);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Entry key derivation failed", e);
+    }
+    this.chunk = BufferPool.SHARED.acquire(chunkSize);
+    int parallelism = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    this.executor = parallelism > 1 ? BlockExecutor.SHARED : null;
+    this.maxChunksInFlight = 2 * parallelism;
+    out.write(header);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (chunkLength == chunkSize) {
+        sealChunk(false);
+      }
+      int n = Math.min(len, chunkSize - chunkLength);
+      System.arraycopy(b, off, chunk, chunkLength, n);
+      chunkLength += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  // Ciphertext of one chunk in a pooled buffer
+  private record Sealed(byte[] buffer, int length) {
+  }
+
+  private void sealChunk(boolean last) throws IOException {
+    long index = chunkIndex++;
+    if (executor == null) {
+      // Sealing inline, so the same chunk buffer is filled again
+      write(seal(chunk, chunkLength, index, last));
+      chunkLength = 0;
+      return;
+    }
+    byte[] input = chunk;
+    int length = chunkLength;
+    chunk = BufferPool.SHARED.acquire(chunkSize);
+    chunkLength = 0;
+    pending.add(executor.submit(() -> {
+      try {
+        return seal(input, length, index, last);
+      } finally {
+        Arrays.fill(input, 0, length, (byte) 0);
+        BufferPool.SHARED.release(input);
+      }
+    }));
+    while (pending.size() >= maxChunksInFlight) {
+      writeNextChunk();
+    }
+  }
+
+  private Sealed seal(byte[] input, int length, long index, boolean last) throws IOException {
+    byte[] sealed = BufferPool.SHARED.acquire(length + GcmChunkedCipher.TAG_SIZE);
+    try {
+      return new Sealed(sealed, GcmChunkedCipher.encryptChunk(entryKey, header, index, last, input, 0, length, sealed));
+    } catch (GeneralSecurityException e) {
+      BufferPool.SHARED.release(sealed);
+      throw new IOException("Chunk encryption failed", e);
+    }
+  }
+
+  private void write(Sealed sealed) throws IOException {
+    try {
+      out.write(sealed.buffer(), 0, sealed.length());
+    } finally {
+      BufferPool.SHARED.release(sealed.buffer());
+    }
+  }
+
+  private void writeNextChunk() throws IOException {
+    try {
+      write(pending.poll().get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while encrypting", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Chunk encryption failed", e.getCause());
+    }
+  }
+
+  // Seals the final chunk; does not close the underlying stream
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      sealChunk(true);
+      while (!pending.isEmpty()) {
+        writeNextChunk();
+      }
+    } finally {
+      Arrays.fill(chunk, (byte) 0);
+      BufferPool.SHARED.release(chunk);
+      for (Future<Sealed> abandoned : pending) {
+        abandoned.cancel(true);
+      }
+      pending.clear();
+    }
+  }
+}
@@ -0,0 +1,205 @@
+package main.java.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/*
+ * Binary replacement for hashes.json, read through a memory mapping:
+ *
+ *   header   magic "BRHM", version, entry count, digest length
+ *   index    per entry: name offset and name length (ints)
+ *   digests  per entry: the raw digest, fixed width
+ *   names    UTF-8 entry names, sorted by unsigned byte order
+ *
+ * Lookups binary-search the index and compare names in place, so opening a
+ * manifest costs one mmap and nothing is materialized on the heap.
+ */
+public class HashManifest extends AbstractMap<String, String> {
+  public static final String FILE_NAME = "hashes.bin";
+  private static final int MAGIC = 0x4252484d; // "BRHM"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+  private static final int INDEX_ENTRY_SIZE = 8;
+
+  private final MappedByteBuffer buffer;
+  private final int count;
+  private final int digestLength;
+  private final int digestsOffset;
+  private final int namesOffset;
+
+  private HashManifest(MappedByteBuffer buffer) throws IOException {
+    this.buffer = buffer;
+    if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+      throw new IOException("Not a hash manifest");
+    }
+    this.count = buffer.getInt(8);
+    this.digestLength = buffer.getInt(12);
+    long digestsStart = HEADER_SIZE + (long) count * INDEX_ENTRY_SIZE;
+    long namesStart = digestsStart + (long) count * digestLength;
+    if (count < 0 || digestLength < 0 || namesStart > buffer.capacity()) {
+      throw new IOException("Corrupt hash manifest");
+    }
+    this.digestsOffset = (int) digestsStart;
+    this.namesOffset = (int) namesStart;
+  }
+
+  public static HashManifest open(Path manifestFile) throws IOException {
+    try (FileChannel channel = FileChannel.open(manifestFile, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Hash manifest too large to map: " + manifestFile);
+      }
+      return new HashManifest(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  // Hex digests as produced by FileOperationsUtil.generateHash; all must have the same length
+  public static void write(Path manifestFile, Map<String, String> hexHashes) throws IOException {
+    int count = hexHashes.size();
+    byte[][] names = new byte[count][];
+    byte[][] digests = new byte[count][];
+    String[] keys = hexHashes.keySet().toArray(new String[0]);
+    Integer[] order = new Integer[count];
+    for (int i = 0; i < count; i++) {
+      names[i] = keys[i].getBytes(StandardCharsets.UTF_8);
+      digests[i] = HexFormat.of().parseHex(hexHashes.get(keys[i]));
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(names[a], names[b]));
+    int digestLength = count > 0 ? digests[0].length : 0;
+
+    Path tempFile = manifestFile.resolveSibling(manifestFile.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(count);
+      out.writeInt(digestLength);
+      int nameOffset = 0;
+      for (int i : order) {
+        out.writeInt(nameOffset);
+        out.writeInt(names[i].length);
+        nameOffset += names[i].length;
+      }
+      for (int i : order) {
+        if (digests[i].length != digestLength) {
+          throw new IOException("Mixed digest lengths in hash manifest");
+        }
+        out.write(digests[i]);
+      }
+      for (int i : order) {
+        out.write(names[i]);
+      }
+    }
+    Files.move(tempFile, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  @Override
+  public String get(Object key) {
+    if (!(key instanceof String)) {
+      return null;
+    }
+    int index = indexOf(((String) key).getBytes(StandardCharsets.UTF_8));
+    return index < 0 ? null : digestAt(index);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return key instanceof String && indexOf(((String) key).getBytes(StandardCharsets.UTF_8)) >= 0;
+  }
+
+  @Override
+  public int size() {
+    return count;
+  }
+
+  private int indexOf(byte[] name) {
+    int low = 0;
+    int high = count - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = compareNameAt(mid, name);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  // Absolute reads only, so concurrent lookups never share a buffer position
+  private int compareNameAt(int index, byte[] name) {
+    int offset = namesOffset + buffer.getInt(HEADER_SIZE + index * INDEX_ENTRY_SIZE);
+    int length = buffer.getInt(HEADER_SIZE + index * INDEX_ENTRY_SIZE + 4);
+    int common = Math.min(length, name.length);
+    for (int i = 0; i < common; i++) {
+      int cmp = Integer.compare(buffer.get(offset + i) & 0xff, name[i] & 0xff);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return Integer.compare(length, name.length);
+  }
+
+  private String nameAt(int index) {
+    int offset = namesOffset + buffer.getInt(HEADER_SIZE + index * INDEX_ENTRY_SIZE);
+    byte[] name = new byte[buffer.getInt(HEADER_SIZE + index * INDEX_ENTRY_SIZE + 4)];
+    buffer.get(offset, name);
+    return new String(name, StandardCharsets.UTF_8);
+  }
+
+  private String digestAt(int index) {
+    byte[] digest = new byte[digestLength];
+    buffer.get(digestsOffset + index * digestLength, digest);
+    return HexFormat.of().formatHex(digest);
+  }
+
+  // Decodes entries one at a time; only used when the whole manifest is walked
+  @Override
+  public Set<Map.Entry<String, String>> entrySet() {
+    return new AbstractSet<>() {
+      @Override
+      public Iterator<Map.Entry<String, String>> iterator() {
+        return new Iterator<>() {
+          private int next = 0;
+
+          @Override
+          public boolean hasNext() {
+            return next < count;
+          }
+
+          @Override
+          public Map.Entry<String, String> next() {
+            if (next >= count) {
+              throw new NoSuchElementException();
+            }
+            int index = next++;
+            return new SimpleImmutableEntry<>(nameAt(index), digestAt(index));
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return count;
+      }
+    };
+  }
+}
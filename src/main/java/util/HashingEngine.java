@@ -0,0 +1,165 @@
+package main.java.util;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/*
+ * Content hashing for integrity checks. A Hasher is fed the same buffers that
+ * are being compressed or encrypted, so hashing never takes its own pass over
+ * the data. Digest instances are pooled per algorithm rather than looked up
+ * per file; ThreadLocal caching would not help with a virtual thread per task.
+ * Besides any MessageDigest algorithm, CRC32C and CRC32 are accepted as a fast
+ * non-cryptographic tier that only detects accidental changes.
+ *
+ * A hasher can also track the CRC32 a ZIP entry needs, so a file that is
+ * stored or deflated as read is checksummed in the same pass that hashes it.
+ */
+public class HashingEngine {
+  public static final String CRC32C = "CRC32C";
+  public static final String CRC32 = "CRC32";
+  private static final int MAX_POOLED_DIGESTS = 64;
+  private static final HexFormat HEX = HexFormat.of();
+  private static final ConcurrentHashMap<String, HashingEngine> ENGINES = new ConcurrentHashMap<>();
+
+  private final String algorithm;
+  private final ConcurrentLinkedQueue<MessageDigest> pool = new ConcurrentLinkedQueue<>();
+
+  private HashingEngine(String algorithm) throws NoSuchAlgorithmException {
+    this.algorithm = algorithm;
+    if (!isFastTier(algorithm)) {
+      pool.add(MessageDigest.getInstance(algorithm));
+    }
+  }
+
+  public static HashingEngine forAlgorithm(String algorithm) throws NoSuchAlgorithmException {
+    HashingEngine engine = ENGINES.get(algorithm);
+    if (engine == null) {
+      HashingEngine created = new HashingEngine(algorithm);
+      engine = ENGINES.putIfAbsent(algorithm, created);
+      if (engine == null) {
+        engine = created;
+      }
+    }
+    return engine;
+  }
+
+  public static boolean isFastTier(String algorithm) {
+    return CRC32C.equalsIgnoreCase(algorithm) || CRC32.equalsIgnoreCase(algorithm);
+  }
+
+  public Hasher newHasher() {
+    return newHasher(false);
+  }
+
+  // With withCrc32, the hasher's crc32() is the CRC of everything it was fed
+  public Hasher newHasher(boolean withCrc32) {
+    if (CRC32.equalsIgnoreCase(algorithm)) {
+      CRC32 checksum = new CRC32();
+      return new Hasher(null, checksum, withCrc32 ? checksum : null);
+    }
+    CRC32 crc32 = withCrc32 ? new CRC32() : null;
+    if (isFastTier(algorithm)) {
+      return new Hasher(null, new CRC32C(), crc32);
+    }
+    MessageDigest md = pool.poll();
+    if (md == null) {
+      try {
+        md = MessageDigest.getInstance(algorithm);
+      } catch (NoSuchAlgorithmException e) {
+        // Checked when the engine was created
+        throw new IllegalStateException(e);
+      }
+    }
+    return new Hasher(md, null, crc32);
+  }
+
+  // Only tracks the entry CRC, for when no integrity hash is configured
+  public static Hasher crc32Hasher() {
+    try {
+      return forAlgorithm(CRC32).newHasher(true);
+    } catch (NoSuchAlgorithmException e) {
+      // CRC32 needs no provider
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public String hash(byte[] data, int offset, int length) {
+    Hasher hasher = newHasher();
+    hasher.update(data, offset, length);
+    return hasher.finish();
+  }
+
+  public static String toHex(byte[] digest) {
+    return HEX.formatHex(digest);
+  }
+
+  public class Hasher {
+    private MessageDigest md;
+    private final Checksum checksum;
+    private final CRC32 crc32;
+
+    private Hasher(MessageDigest md, Checksum checksum, CRC32 crc32) {
+      this.md = md;
+      this.checksum = checksum;
+      this.crc32 = crc32;
+    }
+
+    public void update(byte[] data, int offset, int length) {
+      if (md != null) {
+        md.update(data, offset, length);
+      } else if (checksum != null) {
+        checksum.update(data, offset, length);
+      } else {
+        throw new IllegalStateException("Hasher already finished");
+      }
+      if (crc32 != null && crc32 != checksum) {
+        crc32.update(data, offset, length);
+      }
+    }
+
+    public void update(ByteBuffer data) {
+      ByteBuffer forCrc = crc32 != null && crc32 != checksum ? data.duplicate() : null;
+      if (md != null) {
+        md.update(data);
+      } else if (checksum != null) {
+        checksum.update(data);
+      } else {
+        throw new IllegalStateException("Hasher already finished");
+      }
+      if (forCrc != null) {
+        crc32.update(forCrc);
+      }
+    }
+
+    // Stays valid after finish()
+    public long crc32() {
+      if (crc32 == null) {
+        throw new IllegalStateException("Hasher does not track CRC32");
+      }
+      return crc32.getValue();
+    }
+
+    // Returns the hex digest and hands the digest instance back for reuse
+    public String finish() {
+      if (checksum != null) {
+        return HEX.toHexDigits((int) checksum.getValue());
+      }
+      if (md == null) {
+        throw new IllegalStateException("Hasher already finished");
+      }
+      String hex = toHex(md.digest());
+      if (pool.size() < MAX_POOLED_DIGESTS) {
+        pool.add(md);
+      }
+      md = null;
+      return hex;
+    }
+  }
+}
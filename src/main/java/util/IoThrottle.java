@@ -0,0 +1,133 @@
+package main.java.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+import main.java.config.Configuration;
+
+/*
+ * Caps on how fast backup reads source files, how fast restore writes files
+ * back, and how many files either of them starts per second. Each cap is a
+ * token bucket shared by all tasks of the run. While a run is going the
+ * configuration file is checked every second, so the caps can be changed by
+ * editing it; an unreadable file keeps the caps as they were.
+ */
+public class IoThrottle {
+  public static final IoThrottle SHARED = new IoThrottle();
+  // Large reads take tokens in steps of this size, so a throttled read is paced evenly
+  public static final int STEP_BYTES = 1024 * 1024;
+  private static final long RELOAD_INTERVAL_MS = 1000;
+
+  private final TokenBucket reads = new TokenBucket(0);
+  private final TokenBucket writes = new TokenBucket(0);
+  private final TokenBucket files = new TokenBucket(0);
+  private Timer reloadTimer;
+  private Path configFile;
+  private long configModified;
+
+  public synchronized void start(Configuration config) {
+    stop();
+    apply(config);
+    reads.resetStats();
+    writes.resetStats();
+    files.resetStats();
+    configFile = config.getConfigFile();
+    if (configFile == null) {
+      return;
+    }
+    configModified = lastModified(configFile);
+    reloadTimer = new Timer(true);
+    reloadTimer.schedule(new TimerTask() {
+      @Override
+      public void run() {
+        reload();
+      }
+    }, RELOAD_INTERVAL_MS, RELOAD_INTERVAL_MS);
+  }
+
+  public synchronized void stop() {
+    if (reloadTimer != null) {
+      reloadTimer.cancel();
+      reloadTimer = null;
+    }
+  }
+
+  private void apply(Configuration config) {
+    reads.setRate(config.getMaxReadBytesPerSecond());
+    writes.setRate(config.getMaxWriteBytesPerSecond());
+    files.setRate(config.getMaxFilesPerSecond());
+  }
+
+  private synchronized void reload() {
+    long modified = lastModified(configFile);
+    if (modified == configModified) {
+      return;
+    }
+    configModified = modified;
+    try {
+      apply(new Configuration(configFile.toString()));
+      System.out.println("\nThrottle limits reloaded: " + limits());
+    } catch (RuntimeException e) {
+      System.out.println("\nKeeping the current throttle limits: " + e.getMessage());
+    }
+  }
+
+  private static long lastModified(Path file) {
+    try {
+      return Files.getLastModifiedTime(file).toMillis();
+    } catch (IOException e) {
+      return -1;
+    }
+  }
+
+  public void acquireRead(long bytes) throws InterruptedIOException {
+    acquire(reads, bytes);
+  }
+
+  // Takes the tokens for a large read one step at a time, so a throttled read
+  // is paced evenly while the caller still hands the data on in one piece
+  public void acquireReadInSteps(long bytes) throws InterruptedIOException {
+    for (long remaining = bytes; remaining > 0; remaining -= STEP_BYTES) {
+      acquireRead(Math.min(remaining, STEP_BYTES));
+    }
+  }
+
+  public void acquireWrite(long bytes) throws InterruptedIOException {
+    acquire(writes, bytes);
+  }
+
+  public void acquireFile() throws InterruptedIOException {
+    acquire(files, 1);
+  }
+
+  private static void acquire(TokenBucket bucket, long amount) throws InterruptedIOException {
+    try {
+      bucket.acquire(amount);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while throttled");
+    }
+  }
+
+  private String limits() {
+    return String.format("read %s, write %s, %s", rate(reads.rate(), " MB/s", 1024 * 1024),
+        rate(writes.rate(), " MB/s", 1024 * 1024), rate(files.rate(), " files/s", 1));
+  }
+
+  private static String rate(long rate, String unit, long scale) {
+    return rate > 0 ? String.format("%.1f%s", rate / (double) scale, unit) : "unlimited";
+  }
+
+  public String summary() {
+    double second = TimeUnit.SECONDS.toNanos(1);
+    return String.format("Throttling (%s): %.1f s waiting on reads, %.1f s on writes, %.1f s on the file rate"
+        + " (summed over tasks)",
+        limits(), reads.throttledNanos() / second, writes.throttledNanos() / second,
+        files.throttledNanos() / second);
+  }
+}
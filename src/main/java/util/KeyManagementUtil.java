@@ -6,8 +6,10 @@ import java.util.Base64;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.InputStream;
 
 import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
@@ -80,4 +82,11 @@ public class KeyManagementUtil {
 		cipher.init(Cipher.DECRYPT_MODE, aesKey, new IvParameterSpec(INIT_VECTOR));
 		return cipher.doFinal(encryptedData);
 	}
+
+	// Same as decryptAES, but decrypts while reading instead of holding the data in memory
+	public static InputStream decryptingStream(InputStream encryptedData, SecretKey aesKey) throws Exception {
+		Cipher cipher = Cipher.getInstance(AES_ALGORITHM);
+		cipher.init(Cipher.DECRYPT_MODE, aesKey, new IvParameterSpec(INIT_VECTOR));
+		return new CipherInputStream(encryptedData, cipher);
+	}
 }
@@ -0,0 +1,182 @@
+package main.java.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/*
+ * LZ4 block compression in plain Java: a greedy single-probe hash match finder
+ * and the standard LZ4 sequence encoding (token, literals, 2-byte offset,
+ * match length). It trades ratio for speed, several times deflate's
+ * throughput. Input that does not shrink is skipped over faster the longer no
+ * match is found. Compression levels do not apply.
+ */
+public class Lz4Codec implements CompressionCodec {
+  public static final String ID = "lz4";
+  static final int BLOCK_SIZE = 64 * 1024;
+
+  private static final int MIN_MATCH = 4;
+  private static final int LAST_LITERALS = 5;
+  private static final int MF_LIMIT = 12;
+  private static final int MAX_OFFSET = 65535;
+  private static final int HASH_LOG = 14;
+  private static final int SKIP_TRIGGER = 6;
+
+  @Override
+  public String id() {
+    return ID;
+  }
+
+  @Override
+  public OutputStream compress(OutputStream out, int level) {
+    return new Lz4OutputStream(out);
+  }
+
+  @Override
+  public InputStream decompress(InputStream in) {
+    return new Lz4InputStream(in);
+  }
+
+  static int maxCompressedLength(int length) {
+    return length + length / 255 + 16;
+  }
+
+  // table must hold 1 << HASH_LOG ints; it is reset here so callers can reuse it
+  static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int[] table) {
+    Arrays.fill(table, -1);
+    int srcEnd = srcOff + srcLen;
+    int matchLimit = srcEnd - LAST_LITERALS;
+    int mfLimit = srcEnd - MF_LIMIT;
+    int anchor = srcOff;
+    int ip = srcOff;
+    int op = dstOff;
+    int misses = 0;
+
+    while (ip < mfLimit) {
+      int sequence = readInt(src, ip);
+      int h = hash(sequence);
+      int ref = table[h];
+      table[h] = ip;
+      if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+        ip += 1 + (misses++ >>> SKIP_TRIGGER);
+        continue;
+      }
+      misses = 0;
+      while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+        ip--;
+        ref--;
+      }
+      int matchLength = MIN_MATCH;
+      while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+        matchLength++;
+      }
+      op = writeSequence(dst, op, src, anchor, ip - anchor, ip - ref, matchLength);
+      ip += matchLength;
+      anchor = ip;
+    }
+    return writeSequence(dst, op, src, anchor, srcEnd - anchor, 0, 0) - dstOff;
+  }
+
+  // Returns the decompressed length; malformed input fails with an IOException
+  static int decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen)
+      throws IOException {
+    int ip = srcOff;
+    int srcEnd = srcOff + srcLen;
+    int op = dstOff;
+    int dstEnd = dstOff + dstLen;
+    try {
+      while (true) {
+        int token = src[ip++] & 0xff;
+        int literalLength = token >>> 4;
+        if (literalLength == 15) {
+          int b;
+          do {
+            b = src[ip++] & 0xff;
+            literalLength += b;
+          } while (b == 255);
+        }
+        if (literalLength > srcEnd - ip || literalLength > dstEnd - op) {
+          throw new IOException("Corrupt LZ4 block");
+        }
+        System.arraycopy(src, ip, dst, op, literalLength);
+        ip += literalLength;
+        op += literalLength;
+        if (ip == srcEnd) {
+          return op - dstOff;
+        }
+
+        int offset = (src[ip] & 0xff) | (src[ip + 1] & 0xff) << 8;
+        ip += 2;
+        int matchLength = token & 0x0f;
+        if (matchLength == 15) {
+          int b;
+          do {
+            b = src[ip++] & 0xff;
+            matchLength += b;
+          } while (b == 255);
+        }
+        matchLength += MIN_MATCH;
+        if (offset == 0 || offset > op - dstOff || matchLength > dstEnd - op) {
+          throw new IOException("Corrupt LZ4 block");
+        }
+        int ref = op - offset;
+        if (offset >= matchLength) {
+          System.arraycopy(dst, ref, dst, op, matchLength);
+          op += matchLength;
+        } else {
+          // Overlapping copy repeats the last `offset` bytes
+          for (int i = 0; i < matchLength; i++) {
+            dst[op++] = dst[ref++];
+          }
+        }
+      }
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new IOException("Corrupt LZ4 block", e);
+    }
+  }
+
+  // matchLength 0 writes the final, literals-only sequence
+  private static int writeSequence(byte[] dst, int op, byte[] src, int literalStart, int literalLength, int offset,
+      int matchLength) {
+    int tokenPos = op++;
+    int token = Math.min(literalLength, 15) << 4;
+    if (literalLength >= 15) {
+      op = writeLength(dst, op, literalLength - 15);
+    }
+    System.arraycopy(src, literalStart, dst, op, literalLength);
+    op += literalLength;
+    if (matchLength > 0) {
+      dst[op++] = (byte) offset;
+      dst[op++] = (byte) (offset >>> 8);
+      int extra = matchLength - MIN_MATCH;
+      token |= Math.min(extra, 15);
+      if (extra >= 15) {
+        op = writeLength(dst, op, extra - 15);
+      }
+    }
+    dst[tokenPos] = (byte) token;
+    return op;
+  }
+
+  private static int writeLength(byte[] dst, int op, int length) {
+    while (length >= 255) {
+      dst[op++] = (byte) 255;
+      length -= 255;
+    }
+    dst[op++] = (byte) length;
+    return op;
+  }
+
+  private static int readInt(byte[] b, int i) {
+    return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+  }
+
+  private static int hash(int sequence) {
+    return (sequence * -1640531535) >>> (32 - HASH_LOG);
+  }
+
+  static int[] newHashTable() {
+    return new int[1 << HASH_LOG];
+  }
+}
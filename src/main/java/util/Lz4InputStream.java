@@ -0,0 +1,77 @@
+package main.java.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+// Reads the block framing written by Lz4OutputStream
+public class Lz4InputStream extends InputStream {
+  private final InputStream in;
+  private final byte[] header = new byte[4];
+  private byte[] compressed = BufferPool.SHARED.acquire(Lz4Codec.maxCompressedLength(Lz4Codec.BLOCK_SIZE));
+  private byte[] block = BufferPool.SHARED.acquire(Lz4Codec.BLOCK_SIZE);
+  private int blockOffset = 0;
+  private int blockLength = 0;
+  private boolean eof = false;
+
+  public Lz4InputStream(InputStream in) {
+    this.in = in;
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    while (blockOffset == blockLength) {
+      if (eof || !readBlock()) {
+        eof = true;
+        return -1;
+      }
+    }
+    int n = Math.min(len, blockLength - blockOffset);
+    System.arraycopy(block, blockOffset, b, off, n);
+    blockOffset += n;
+    return n;
+  }
+
+  private boolean readBlock() throws IOException {
+    int n = in.readNBytes(header, 0, header.length);
+    if (n == 0) {
+      return false;
+    }
+    if (n < header.length) {
+      throw new IOException("LZ4 stream is truncated");
+    }
+    int value = (header[0] & 0xff) << 24 | (header[1] & 0xff) << 16 | (header[2] & 0xff) << 8 | (header[3] & 0xff);
+    boolean raw = (value & Lz4OutputStream.RAW_BLOCK_FLAG) != 0;
+    int length = value & ~Lz4OutputStream.RAW_BLOCK_FLAG;
+    if (length > (raw ? Lz4Codec.BLOCK_SIZE : Lz4Codec.maxCompressedLength(Lz4Codec.BLOCK_SIZE))) {
+      throw new IOException("Corrupt LZ4 block header");
+    }
+    byte[] target = raw ? block : compressed;
+    if (in.readNBytes(target, 0, length) != length) {
+      throw new IOException("LZ4 stream is truncated");
+    }
+    blockLength = raw ? length : Lz4Codec.decompress(compressed, 0, length, block, 0, Lz4Codec.BLOCK_SIZE);
+    blockOffset = 0;
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      in.close();
+    } finally {
+      BufferPool.SHARED.release(compressed);
+      BufferPool.SHARED.release(block);
+      compressed = null;
+      block = null;
+    }
+  }
+}
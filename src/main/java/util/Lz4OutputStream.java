@@ -0,0 +1,97 @@
+package main.java.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Frames LZ4 blocks of up to Lz4Codec.BLOCK_SIZE input bytes. Each block is
+ * preceded by a 4-byte big-endian length; the high bit marks a block stored
+ * as-is because it did not compress. Blocks are independent of each other.
+ */
+public class Lz4OutputStream extends OutputStream implements CompressingStream {
+  static final int RAW_BLOCK_FLAG = 0x80000000;
+
+  private final OutputStream out;
+  private byte[] block = BufferPool.SHARED.acquire(Lz4Codec.BLOCK_SIZE);
+  private byte[] compressed = BufferPool.SHARED.acquire(4 + Lz4Codec.maxCompressedLength(Lz4Codec.BLOCK_SIZE));
+  private final int[] hashTable = Lz4Codec.newHashTable();
+  private int blockLength = 0;
+  private long compressNanos = 0;
+  private boolean closed = false;
+
+  public Lz4OutputStream(OutputStream out) {
+    this.out = out;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (blockLength == Lz4Codec.BLOCK_SIZE) {
+        writeBlock();
+      }
+      int n = Math.min(len, Lz4Codec.BLOCK_SIZE - blockLength);
+      System.arraycopy(b, off, block, blockLength, n);
+      blockLength += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  private void writeBlock() throws IOException {
+    if (blockLength == 0) {
+      return;
+    }
+    long start = System.nanoTime();
+    int length = Lz4Codec.compress(block, 0, blockLength, compressed, 4, hashTable);
+    compressNanos += System.nanoTime() - start;
+    if (length < blockLength) {
+      putInt(compressed, 0, length);
+      out.write(compressed, 0, 4 + length);
+    } else {
+      putInt(compressed, 0, blockLength | RAW_BLOCK_FLAG);
+      out.write(compressed, 0, 4);
+      out.write(block, 0, blockLength);
+    }
+    blockLength = 0;
+  }
+
+  @Override
+  public long compressNanos() {
+    return compressNanos;
+  }
+
+  private static void putInt(byte[] b, int i, int value) {
+    b[i] = (byte) (value >>> 24);
+    b[i + 1] = (byte) (value >>> 16);
+    b[i + 2] = (byte) (value >>> 8);
+    b[i + 3] = (byte) value;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    writeBlock();
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      writeBlock();
+    } finally {
+      BufferPool.SHARED.release(block);
+      BufferPool.SHARED.release(compressed);
+      block = null;
+      compressed = null;
+      out.close();
+    }
+  }
+}
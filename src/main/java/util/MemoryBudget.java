@@ -0,0 +1,142 @@
+package main.java.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import main.java.config.Configuration;
+
+/*
+ * Caps the bytes that backup and restore tasks hold in memory at once. A task
+ * reserves its expected footprint before it reads data and gives it back once
+ * the data is written, so with a virtual thread per task, tasks past the
+ * budget simply wait instead of all loading their files together. A request
+ * larger than the whole budget is cut to the budget and runs on its own.
+ *
+ * Memory a task keeps while it goes on to wait for device slots or further
+ * reservations, such as a solid block open from one file to the next, is
+ * reserved as lasting. Lasting reservations share half the budget and other
+ * requests are cut to what they leave, so the tasks those waits depend on
+ * always find room.
+ */
+public class MemoryBudget {
+  private final long capacity;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition released = lock.newCondition();
+  private long reserved = 0;
+  private long lastingReserved = 0;
+  private long peakReserved = 0;
+  private long waits = 0;
+  private long waitNanos = 0;
+
+  public MemoryBudget(long capacity) {
+    this.capacity = capacity;
+  }
+
+  // Without a configured budget, half of the maximum heap
+  public static MemoryBudget forConfig(Configuration config) {
+    long capacity = config.getMemoryBudgetBytes() > 0 ? config.getMemoryBudgetBytes()
+        : Runtime.getRuntime().maxMemory() / 2;
+    return new MemoryBudget(capacity);
+  }
+
+  public Reservation reserve(long bytes) throws InterruptedException {
+    return reserve(bytes, false);
+  }
+
+  // Only to be called while the task holds no slot or other reservation
+  public Reservation reserveLasting(long bytes) throws InterruptedException {
+    return reserve(bytes, true);
+  }
+
+  private Reservation reserve(long bytes, boolean lasting) throws InterruptedException {
+    long amount;
+    lock.lock();
+    try {
+      amount = grantable(bytes, lasting);
+      if (mustWait(amount, lasting)) {
+        waits++;
+        long start = System.nanoTime();
+        try {
+          while (mustWait(amount, lasting)) {
+            released.await();
+            amount = grantable(bytes, lasting);
+          }
+        } finally {
+          waitNanos += System.nanoTime() - start;
+        }
+      }
+      reserved += amount;
+      if (lasting) {
+        lastingReserved += amount;
+      }
+      peakReserved = Math.max(peakReserved, reserved);
+    } finally {
+      lock.unlock();
+    }
+    return new Reservation(amount, lasting);
+  }
+
+  private long grantable(long bytes, boolean lasting) {
+    long limit = lasting ? capacity / 2 : capacity - lastingReserved;
+    return Math.min(Math.max(0, bytes), limit);
+  }
+
+  private boolean mustWait(long amount, boolean lasting) {
+    return reserved + amount > capacity || lasting && lastingReserved + amount > capacity / 2;
+  }
+
+  private void release(long amount, boolean lasting) {
+    lock.lock();
+    try {
+      reserved -= amount;
+      if (lasting) {
+        lastingReserved -= amount;
+      }
+      released.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long capacity() {
+    return capacity;
+  }
+
+  public long reserved() {
+    lock.lock();
+    try {
+      return reserved;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public String summary() {
+    lock.lock();
+    try {
+      return String.format("Memory budget: %d MB, peak %d MB reserved, %d waits (%.1f s)", capacity / (1024 * 1024),
+          peakReserved / (1024 * 1024), waits, waitNanos / (double) TimeUnit.SECONDS.toNanos(1));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public class Reservation implements AutoCloseable {
+    private long amount;
+    private final boolean lasting;
+
+    private Reservation(long amount, boolean lasting) {
+      this.amount = amount;
+      this.lasting = lasting;
+    }
+
+    @Override
+    public void close() {
+      if (amount > 0) {
+        release(amount, lasting);
+        amount = 0;
+      }
+    }
+  }
+}
@@ -0,0 +1,210 @@
+package main.java.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+/*
+ * pigz-style deflate: input is cut into fixed-size blocks that are compressed
+ * on several threads and written out in order. Every block except the last
+ * ends on a sync flush, so the concatenation is one valid raw deflate stream
+ * that any inflater (and ZipFile) reads as usual. Each block is primed with
+ * the last 32 KB of the previous one to keep the ratio close to single-threaded.
+ * Whole blocks handed over as a ByteBuffer (e.g. a mapped file window) are
+ * compressed in place, without copying them onto the heap. Heap blocks, the
+ * dictionaries and the compressed output come from the BufferPool. Blocks run on
+ * the shared BlockExecutor; `threads` only bounds how many this stream has in flight.
+ */
+public class ParallelDeflaterOutputStream extends OutputStream implements WritableByteChannel, CompressingStream {
+  private static final int DICTIONARY_SIZE = 32 * 1024;
+
+  private final OutputStream out;
+  private final int level;
+  private final int blockSize;
+  private final int maxBlocksInFlight;
+  private final ArrayDeque<Future<CompressedBlock>> pending = new ArrayDeque<>();
+  private final LongAdder compressNanos = new LongAdder();
+  private byte[] block;
+  private int blockLength = 0;
+  private byte[] dictionary = null;
+  private long bytesIn = 0;
+  private long bytesOut = 0;
+  private boolean closed = false;
+
+  public ParallelDeflaterOutputStream(OutputStream out, int level, int blockSize, int threads) {
+    this.out = out;
+    this.level = level;
+    this.blockSize = Math.max(DICTIONARY_SIZE, blockSize);
+    int parallelism = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    this.maxBlocksInFlight = 2 * parallelism;
+    this.block = BufferPool.SHARED.acquire(this.blockSize);
+  }
+
+  // data is a pooled buffer, released once written out
+  private record CompressedBlock(byte[] data, int length) {
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    append(ByteBuffer.wrap(b, off, len), false);
+  }
+
+  // Whole blocks of src are compressed in place, so its content must not change
+  // until the stream is closed
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    return append(src, true);
+  }
+
+  private int append(ByteBuffer src, boolean inPlace) throws IOException {
+    int written = src.remaining();
+    bytesIn += written;
+    while (src.hasRemaining()) {
+      if (inPlace && blockLength == 0 && src.remaining() >= blockSize) {
+        ByteBuffer slice = src.slice(src.position(), blockSize);
+        src.position(src.position() + blockSize);
+        submitBlock(slice, null, false);
+        continue;
+      }
+      int n = Math.min(src.remaining(), blockSize - blockLength);
+      src.get(block, blockLength, n);
+      blockLength += n;
+      if (blockLength == blockSize) {
+        submitHeapBlock(false);
+      }
+    }
+    return written;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return !closed;
+  }
+
+  // The task releases the heap block once compressed
+  private void submitHeapBlock(boolean last) throws IOException {
+    byte[] heapBlock = block;
+    ByteBuffer input = ByteBuffer.wrap(heapBlock, 0, blockLength);
+    block = last ? null : BufferPool.SHARED.acquire(blockSize);
+    blockLength = 0;
+    submitBlock(input, heapBlock, last);
+  }
+
+  // The dictionary is copied out, so a block is free once its own task is done
+  private void submitBlock(ByteBuffer input, byte[] heapBlock, boolean last) throws IOException {
+    byte[] blockDictionary = dictionary;
+    dictionary = null;
+    if (!last) {
+      dictionary = BufferPool.SHARED.acquire(DICTIONARY_SIZE);
+      input.get(input.limit() - DICTIONARY_SIZE, dictionary, 0, DICTIONARY_SIZE);
+    }
+    pending.add(BlockExecutor.SHARED.submit(() -> deflateBlock(input, blockDictionary, heapBlock, last)));
+    while (pending.size() >= maxBlocksInFlight) {
+      writeNextBlock();
+    }
+  }
+
+  private CompressedBlock deflateBlock(ByteBuffer input, byte[] blockDictionary, byte[] heapBlock, boolean last) {
+    long start = System.nanoTime();
+    Deflater deflater = new Deflater(level, true);
+    byte[] output = BufferPool.SHARED.acquire(Math.max(DICTIONARY_SIZE, input.remaining()));
+    int length = 0;
+    try {
+      if (blockDictionary != null) {
+        deflater.setDictionary(blockDictionary, 0, DICTIONARY_SIZE);
+      }
+      deflater.setInput(input);
+      if (last) {
+        deflater.finish();
+      }
+      // A sync flush is complete once deflate leaves room in the output
+      boolean done;
+      do {
+        if (length == output.length) {
+          output = grow(output);
+        }
+        length += last ? deflater.deflate(output, length, output.length - length)
+            : deflater.deflate(output, length, output.length - length, Deflater.SYNC_FLUSH);
+        done = last ? deflater.finished() : length < output.length;
+      } while (!done);
+      return new CompressedBlock(output, length);
+    } catch (RuntimeException | Error e) {
+      BufferPool.SHARED.release(output);
+      throw e;
+    } finally {
+      deflater.end();
+      BufferPool.SHARED.release(blockDictionary);
+      BufferPool.SHARED.release(heapBlock);
+      compressNanos.add(System.nanoTime() - start);
+    }
+  }
+
+  private void writeNextBlock() throws IOException {
+    try {
+      CompressedBlock compressed = pending.poll().get();
+      try {
+        out.write(compressed.data(), 0, compressed.length());
+        bytesOut += compressed.length();
+      } finally {
+        BufferPool.SHARED.release(compressed.data());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while compressing", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Block compression failed", e.getCause());
+    }
+  }
+
+  private static byte[] grow(byte[] buffer) {
+    byte[] larger = BufferPool.SHARED.acquire(buffer.length * 2);
+    System.arraycopy(buffer, 0, larger, 0, buffer.length);
+    BufferPool.SHARED.release(buffer);
+    return larger;
+  }
+
+  // Summed over all blocks, so with several threads this exceeds the wall time
+  @Override
+  public long compressNanos() {
+    return compressNanos.sum();
+  }
+
+  public long getBytesIn() {
+    return bytesIn;
+  }
+
+  public long getBytesOut() {
+    return bytesOut;
+  }
+
+  // Flushes the final block; does not close the underlying stream
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      submitHeapBlock(true);
+      while (!pending.isEmpty()) {
+        writeNextBlock();
+      }
+    } finally {
+      for (Future<CompressedBlock> abandoned : pending) {
+        abandoned.cancel(true);
+      }
+      pending.clear();
+    }
+  }
+}
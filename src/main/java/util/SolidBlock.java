@@ -0,0 +1,105 @@
+package main.java.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/*
+ * Small files packed back to back into a single entry body, compressed as one
+ * stream. The member table (name and size of each file, in body order) is the
+ * entry's central directory extra field, so restore plans from the central
+ * directory alone and extracts a file by decoding only its own block, up to
+ * the end of that member.
+ */
+public class SolidBlock {
+  public static final String ENTRY_PREFIX = ".solid/";
+  static final int EXTRA_ID = 0x4253;
+  // An extra field holds at most 64 KB, shared with a possible ZIP64 field
+  private static final int MAX_TABLE_SIZE = 60 * 1024;
+
+  public record Member(String name, int size) {
+  }
+
+  private final String entryName = ENTRY_PREFIX + UUID.randomUUID();
+  private final List<Member> members = new ArrayList<>();
+  private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+  private int tableSize = 0;
+
+  public String entryName() {
+    return entryName;
+  }
+
+  public List<Member> members() {
+    return members;
+  }
+
+  public boolean isEmpty() {
+    return members.isEmpty();
+  }
+
+  public int size() {
+    return data.size();
+  }
+
+  public byte[] data() {
+    return data.toByteArray();
+  }
+
+  // Whether a file of this size still goes into the block
+  public boolean fits(String name, int size, int blockSize) {
+    if (members.isEmpty()) {
+      return true;
+    }
+    return data.size() + size <= blockSize && tableSize + memberSize(name) <= MAX_TABLE_SIZE;
+  }
+
+  public void add(String name, byte[] bytes) {
+    members.add(new Member(name, bytes.length));
+    data.writeBytes(bytes);
+    tableSize += memberSize(name);
+  }
+
+  private static int memberSize(String name) {
+    return 2 + name.getBytes(StandardCharsets.UTF_8).length + 4;
+  }
+
+  public byte[] toExtra() {
+    ByteBuffer extra = ByteBuffer.allocate(4 + tableSize).order(ByteOrder.LITTLE_ENDIAN);
+    extra.putShort((short) EXTRA_ID).putShort((short) tableSize);
+    for (Member member : members) {
+      byte[] rawName = member.name().getBytes(StandardCharsets.UTF_8);
+      extra.putShort((short) rawName.length).put(rawName).putInt(member.size());
+    }
+    return extra.array();
+  }
+
+  // Reads the member table out of an entry's central directory extra data
+  public static List<Member> parseMembers(byte[] extra) {
+    List<Member> members = new ArrayList<>();
+    if (extra == null) {
+      return members;
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+    while (buffer.remaining() >= 4) {
+      int id = Short.toUnsignedInt(buffer.getShort());
+      int length = Short.toUnsignedInt(buffer.getShort());
+      int next = buffer.position() + length;
+      if (next > extra.length) {
+        break;
+      }
+      if (id == EXTRA_ID) {
+        while (buffer.position() < next) {
+          byte[] rawName = new byte[Short.toUnsignedInt(buffer.getShort())];
+          buffer.get(rawName);
+          members.add(new Member(new String(rawName, StandardCharsets.UTF_8), buffer.getInt()));
+        }
+      }
+      buffer.position(next);
+    }
+    return members;
+  }
+}
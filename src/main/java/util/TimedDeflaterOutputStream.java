@@ -0,0 +1,42 @@
+package main.java.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+// A DeflaterOutputStream that times its deflate calls, not the writes after
+// them. Its buffer comes from the BufferPool and goes back on finish().
+public class TimedDeflaterOutputStream extends DeflaterOutputStream implements CompressingStream {
+  private long compressNanos = 0;
+
+  public TimedDeflaterOutputStream(OutputStream out, Deflater deflater, int size) {
+    super(out, deflater, 1);
+    buf = BufferPool.SHARED.acquire(size);
+  }
+
+  @Override
+  protected void deflate() throws IOException {
+    long start = System.nanoTime();
+    int length = def.deflate(buf, 0, buf.length);
+    compressNanos += System.nanoTime() - start;
+    if (length > 0) {
+      out.write(buf, 0, length);
+    }
+  }
+
+  // close() finishes again, which then has nothing left to deflate
+  @Override
+  public void finish() throws IOException {
+    super.finish();
+    if (buf != null) {
+      BufferPool.SHARED.release(buf);
+      buf = null;
+    }
+  }
+
+  @Override
+  public long compressNanos() {
+    return compressNanos;
+  }
+}
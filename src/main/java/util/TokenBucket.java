@@ -0,0 +1,81 @@
+package main.java.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Rate limiter that refills at a fixed rate per second and holds at most one
+ * second's worth of tokens. A caller takes what it needs right away and, if
+ * that puts the bucket in debt, sleeps until the debt would be paid off, so
+ * requests larger than the bucket still pass and later callers queue behind
+ * earlier ones. A rate of 0 means unlimited. The rate can change at any time.
+ */
+public class TokenBucket {
+  private final ReentrantLock lock = new ReentrantLock();
+  private final LongAdder throttledNanos = new LongAdder();
+  private long ratePerSecond;
+  private double tokens = 0;
+  private long lastRefill = System.nanoTime();
+
+  public TokenBucket(long ratePerSecond) {
+    this.ratePerSecond = Math.max(0, ratePerSecond);
+  }
+
+  public void setRate(long ratePerSecond) {
+    lock.lock();
+    try {
+      refill(System.nanoTime());
+      this.ratePerSecond = Math.max(0, ratePerSecond);
+      tokens = this.ratePerSecond > 0 ? Math.min(tokens, this.ratePerSecond) : 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long rate() {
+    lock.lock();
+    try {
+      return ratePerSecond;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void acquire(long amount) throws InterruptedException {
+    long waitNanos;
+    lock.lock();
+    try {
+      if (ratePerSecond <= 0 || amount <= 0) {
+        return;
+      }
+      refill(System.nanoTime());
+      tokens -= amount;
+      if (tokens >= 0) {
+        return;
+      }
+      waitNanos = (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+    } finally {
+      lock.unlock();
+    }
+    throttledNanos.add(waitNanos);
+    TimeUnit.NANOSECONDS.sleep(waitNanos);
+  }
+
+  private void refill(long now) {
+    if (ratePerSecond > 0) {
+      double refilled = (now - lastRefill) * (double) ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+      tokens = Math.min(ratePerSecond, tokens + refilled);
+    }
+    lastRefill = now;
+  }
+
+  // Total time callers spent sleeping, summed over threads
+  public long throttledNanos() {
+    return throttledNanos.sum();
+  }
+
+  public void resetStats() {
+    throttledNanos.reset();
+  }
+}
@@ -0,0 +1,248 @@
+package main.java.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/*
+ * Reads the central directory of a ZIP archive without touching entry bodies,
+ * so entries can be copied byte-for-byte (still compressed) into another archive.
+ */
+public class ZipArchiveReader implements Closeable {
+  static final int LOCAL_HEADER_SIG = 0x04034b50;
+  static final int CENTRAL_HEADER_SIG = 0x02014b50;
+  static final int END_OF_CENTRAL_DIR_SIG = 0x06054b50;
+  static final int ZIP64_END_OF_CENTRAL_DIR_SIG = 0x06064b50;
+  static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+  static final int ZIP64_EXTRA_ID = 0x0001;
+  static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+  static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final int END_OF_CENTRAL_DIR_SIZE = 22;
+  private static final int ZIP64_LOCATOR_SIZE = 20;
+  private static final int MAX_COMMENT_SIZE = 0xFFFF;
+  private static final int CHECK_BUFFER_SIZE = 64 * 1024;
+
+  private final FileChannel channel;
+  private final List<Entry> entries;
+
+  public record Entry(String name, byte[] rawName, int flags, int method, long dosTime, long crc,
+      long compressedSize, long size, byte[] extra, byte[] comment, long localHeaderOffset) {
+  }
+
+  public ZipArchiveReader(Path file) throws IOException {
+    this.channel = FileChannel.open(file, StandardOpenOption.READ);
+    try {
+      this.entries = Collections.unmodifiableList(readCentralDirectory());
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  public List<Entry> entries() {
+    return entries;
+  }
+
+  public FileChannel channel() {
+    return channel;
+  }
+
+  // Position of the first byte of the entry's (compressed) data
+  public long dataOffset(Entry entry) throws IOException {
+    ByteBuffer header = readFully(entry.localHeaderOffset(), LOCAL_HEADER_SIZE);
+    if (header.getInt(0) != LOCAL_HEADER_SIG) {
+      throw new ZipException("Invalid local header for entry: " + entry.name());
+    }
+    int nameLength = Short.toUnsignedInt(header.getShort(26));
+    int extraLength = Short.toUnsignedInt(header.getShort(28));
+    return entry.localHeaderOffset() + LOCAL_HEADER_SIZE + nameLength + extraLength;
+  }
+
+  // Reads the entry's data, inflating it if needed, and checks it against the
+  // CRC and size in the central directory
+  public boolean checkCrc(Entry entry) throws IOException {
+    if (entry.method() != ZipEntry.STORED && entry.method() != ZipEntry.DEFLATED) {
+      return false;
+    }
+    long position = dataOffset(entry);
+    long end = position + entry.compressedSize();
+    CRC32 crc = new CRC32();
+    long size = 0;
+    Inflater inflater = entry.method() == ZipEntry.DEFLATED ? new Inflater(true) : null;
+    byte[] input = BufferPool.SHARED.acquire(CHECK_BUFFER_SIZE);
+    byte[] output = BufferPool.SHARED.acquire(CHECK_BUFFER_SIZE);
+    try {
+      while (position < end) {
+        ByteBuffer buffer = ByteBuffer.wrap(input, 0, (int) Math.min(CHECK_BUFFER_SIZE, end - position));
+        int read = channel.read(buffer, position);
+        if (read < 0) {
+          return false;
+        }
+        position += read;
+        if (inflater == null) {
+          crc.update(input, 0, read);
+          size += read;
+          continue;
+        }
+        inflater.setInput(input, 0, read);
+        while (!inflater.needsInput() && !inflater.finished()) {
+          int inflated = inflater.inflate(output);
+          if (inflated == 0 && inflater.needsDictionary()) {
+            return false;
+          }
+          crc.update(output, 0, inflated);
+          size += inflated;
+        }
+      }
+      if (inflater != null && !inflater.finished()) {
+        return false;
+      }
+    } catch (DataFormatException e) {
+      return false;
+    } finally {
+      if (inflater != null) {
+        inflater.end();
+      }
+      BufferPool.SHARED.release(input);
+      BufferPool.SHARED.release(output);
+    }
+    return crc.getValue() == entry.crc() && size == entry.size();
+  }
+
+  private List<Entry> readCentralDirectory() throws IOException {
+    long fileSize = channel.size();
+    long eocdPos = findEndOfCentralDirectory(fileSize);
+    ByteBuffer eocd = readFully(eocdPos, END_OF_CENTRAL_DIR_SIZE);
+    long totalEntries = Short.toUnsignedInt(eocd.getShort(10));
+    long cdSize = Integer.toUnsignedLong(eocd.getInt(12));
+    long cdOffset = Integer.toUnsignedLong(eocd.getInt(16));
+
+    if (eocdPos >= ZIP64_LOCATOR_SIZE
+        && (totalEntries == ZIP64_MAGIC_COUNT || cdSize == ZIP64_MAGIC || cdOffset == ZIP64_MAGIC)) {
+      ByteBuffer locator = readFully(eocdPos - ZIP64_LOCATOR_SIZE, ZIP64_LOCATOR_SIZE);
+      if (locator.getInt(0) == ZIP64_LOCATOR_SIG) {
+        ByteBuffer zip64Eocd = readFully(locator.getLong(8), 56);
+        if (zip64Eocd.getInt(0) != ZIP64_END_OF_CENTRAL_DIR_SIG) {
+          throw new ZipException("Invalid ZIP64 end of central directory record");
+        }
+        totalEntries = zip64Eocd.getLong(32);
+        cdSize = zip64Eocd.getLong(40);
+        cdOffset = zip64Eocd.getLong(48);
+      }
+    }
+
+    if (cdSize > Integer.MAX_VALUE) {
+      throw new ZipException("Central directory too large: " + cdSize + " bytes");
+    }
+    ByteBuffer cd = readFully(cdOffset, (int) cdSize);
+    List<Entry> result = new ArrayList<>((int) Math.min(totalEntries, 1 << 20));
+    for (long i = 0; i < totalEntries; i++) {
+      result.add(readCentralHeader(cd));
+    }
+    return result;
+  }
+
+  private Entry readCentralHeader(ByteBuffer cd) throws ZipException {
+    int start = cd.position();
+    if (cd.getInt(start) != CENTRAL_HEADER_SIG) {
+      throw new ZipException("Invalid central directory header at offset " + start);
+    }
+    int flags = Short.toUnsignedInt(cd.getShort(start + 8));
+    int method = Short.toUnsignedInt(cd.getShort(start + 10));
+    long dosTime = Integer.toUnsignedLong(cd.getInt(start + 12));
+    long crc = Integer.toUnsignedLong(cd.getInt(start + 16));
+    long compressedSize = Integer.toUnsignedLong(cd.getInt(start + 20));
+    long size = Integer.toUnsignedLong(cd.getInt(start + 24));
+    int nameLength = Short.toUnsignedInt(cd.getShort(start + 28));
+    int extraLength = Short.toUnsignedInt(cd.getShort(start + 30));
+    int commentLength = Short.toUnsignedInt(cd.getShort(start + 32));
+    long localHeaderOffset = Integer.toUnsignedLong(cd.getInt(start + 42));
+
+    byte[] rawName = new byte[nameLength];
+    byte[] extra = new byte[extraLength];
+    byte[] comment = new byte[commentLength];
+    cd.position(start + CENTRAL_HEADER_SIZE);
+    cd.get(rawName).get(extra).get(comment);
+
+    // Pull the real values out of the ZIP64 extra field and drop it; the writer
+    // adds a fresh one only if the entry still needs it.
+    ByteBuffer extraBuf = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+    ByteBuffer otherExtra = ByteBuffer.allocate(extraLength);
+    while (extraBuf.remaining() >= 4) {
+      int id = Short.toUnsignedInt(extraBuf.getShort());
+      int length = Short.toUnsignedInt(extraBuf.getShort());
+      if (length > extraBuf.remaining()) {
+        break;
+      }
+      int next = extraBuf.position() + length;
+      if (id == ZIP64_EXTRA_ID) {
+        if (size == ZIP64_MAGIC && extraBuf.position() + 8 <= next) {
+          size = extraBuf.getLong();
+        }
+        if (compressedSize == ZIP64_MAGIC && extraBuf.position() + 8 <= next) {
+          compressedSize = extraBuf.getLong();
+        }
+        if (localHeaderOffset == ZIP64_MAGIC && extraBuf.position() + 8 <= next) {
+          localHeaderOffset = extraBuf.getLong();
+        }
+      } else {
+        otherExtra.put(extra, extraBuf.position() - 4, length + 4);
+      }
+      extraBuf.position(next);
+    }
+    byte[] keptExtra = new byte[otherExtra.position()];
+    otherExtra.flip().get(keptExtra);
+
+    String name = new String(rawName, StandardCharsets.UTF_8);
+    return new Entry(name, rawName, flags, method, dosTime, crc, compressedSize, size, keptExtra, comment,
+        localHeaderOffset);
+  }
+
+  private long findEndOfCentralDirectory(long fileSize) throws IOException {
+    if (fileSize < END_OF_CENTRAL_DIR_SIZE) {
+      throw new ZipException("Not a ZIP archive (too small)");
+    }
+    int tailSize = (int) Math.min(fileSize, END_OF_CENTRAL_DIR_SIZE + MAX_COMMENT_SIZE);
+    long tailStart = fileSize - tailSize;
+    ByteBuffer tail = readFully(tailStart, tailSize);
+    for (int i = tailSize - END_OF_CENTRAL_DIR_SIZE; i >= 0; i--) {
+      if (tail.getInt(i) == END_OF_CENTRAL_DIR_SIG) {
+        return tailStart + i;
+      }
+    }
+    throw new ZipException("End of central directory record not found");
+  }
+
+  private ByteBuffer readFully(long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position + buffer.position());
+      if (read < 0) {
+        throw new ZipException("Unexpected end of archive");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
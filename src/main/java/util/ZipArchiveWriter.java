@@ -0,0 +1,452 @@
+package main.java.util;
+
+import static main.java.util.ZipArchiveReader.CENTRAL_HEADER_SIG;
+import static main.java.util.ZipArchiveReader.END_OF_CENTRAL_DIR_SIG;
+import static main.java.util.ZipArchiveReader.LOCAL_HEADER_SIG;
+import static main.java.util.ZipArchiveReader.ZIP64_END_OF_CENTRAL_DIR_SIG;
+import static main.java.util.ZipArchiveReader.ZIP64_EXTRA_ID;
+import static main.java.util.ZipArchiveReader.ZIP64_LOCATOR_SIG;
+import static main.java.util.ZipArchiveReader.ZIP64_MAGIC;
+import static main.java.util.ZipArchiveReader.ZIP64_MAGIC_COUNT;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/*
+ * Minimal ZIP writer on top of a FileChannel. Unlike ZipOutputStream it accepts
+ * entries whose data is already compressed, so partitions can be assembled
+ * into the final archive without inflating and deflating every byte again.
+ */
+public class ZipArchiveWriter implements Closeable {
+  private static final int VERSION_DEFAULT = 20;
+  private static final int VERSION_ZIP64 = 45;
+  private static final int DATA_DESCRIPTOR_FLAG = 0x08;
+  private static final int UTF8_FLAG = 0x800;
+  private static final int DEFLATE_BUFFER_SIZE = 64 * 1024;
+
+  private final FileChannel channel;
+  private final List<ZipArchiveReader.Entry> centralDirectory = new ArrayList<>();
+  private boolean closed = false;
+  private OpenEntry openEntry = null;
+
+  private record OpenEntry(String name, byte[] rawName, int method, long dosTime, long headerOffset,
+      long dataOffset, boolean zip64) {
+  }
+
+  public ZipArchiveWriter(Path file) throws IOException {
+    this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+  }
+
+  public int entryCount() {
+    return centralDirectory.size();
+  }
+
+  // Copies the entry's stored bytes as-is, keeping its method, CRC and sizes
+  public void copyEntry(ZipArchiveReader source, ZipArchiveReader.Entry entry) throws IOException {
+    long dataOffset = source.dataOffset(entry);
+    int flags = entry.flags() & ~DATA_DESCRIPTOR_FLAG;
+    long headerOffset = channel.position();
+    writeLocalHeader(entry.rawName(), flags, entry.method(), entry.dosTime(), entry.crc(), entry.compressedSize(),
+        entry.size());
+    transferFully(source.channel(), dataOffset, entry.compressedSize());
+    centralDirectory.add(new ZipArchiveReader.Entry(entry.name(), entry.rawName(), flags, entry.method(),
+        entry.dosTime(), entry.crc(), entry.compressedSize(), entry.size(), entry.extra(), entry.comment(),
+        headerOffset));
+  }
+
+  // Starts an entry whose data the caller writes through entryOutputStream();
+  // sizes and CRC are patched into the local header by finishEntry.
+  public void beginEntry(String name, int method, long lastModified, long expectedSize) throws IOException {
+    if (openEntry != null) {
+      throw new IllegalStateException("Entry still open: " + openEntry.name());
+    }
+    byte[] rawName = name.getBytes(StandardCharsets.UTF_8);
+    long dosTime = toDosTime(lastModified);
+    // Leave room for deflate overhead on incompressible data
+    boolean zip64 = expectedSize + expectedSize / 64 + 1024 >= ZIP64_MAGIC;
+    long headerOffset = channel.position();
+    writeLocalHeader(rawName, UTF8_FLAG, method, dosTime, 0, zip64 ? ZIP64_MAGIC : 0, zip64 ? ZIP64_MAGIC : 0);
+    openEntry = new OpenEntry(name, rawName, method, dosTime, headerOffset, channel.position(), zip64);
+  }
+
+  // Starts an entry and returns the stream its uncompressed data is written to.
+  // DEFLATED entries are compressed at the given level; close() finishes the entry.
+  public OutputStream newEntry(String name, int method, int level, long lastModified, long expectedSize,
+      String comment) throws IOException {
+    return newEntry(name, method, level, lastModified, expectedSize, comment, null);
+  }
+
+  // extra is a central directory extra field, written as given
+  public OutputStream newEntry(String name, int method, int level, long lastModified, long expectedSize,
+      String comment, byte[] extra) throws IOException {
+    return newEntry(name, method, level, lastModified, expectedSize, comment, extra, null);
+  }
+
+  // crcSource is a hasher tracking CRC32 that the caller feeds exactly the bytes
+  // it writes to the entry; its CRC becomes the entry's, so the data is not
+  // checksummed a second time here
+  public OutputStream newEntry(String name, int method, int level, long lastModified, long expectedSize,
+      String comment, byte[] extra, HashingEngine.Hasher crcSource) throws IOException {
+    beginEntry(name, method, lastModified, expectedSize);
+    return new EntryStream(method, level, comment, extra, crcSource);
+  }
+
+  // Writes a file as a STORED entry with transferTo, so the kernel moves the
+  // bytes without copying them through user space. CRC and hash are taken in
+  // one pass over the entry data as it landed in the archive, read back from
+  // the page cache, so they match what was stored even if the file changed
+  // during the copy. A given hasher must track CRC32, which then becomes the
+  // entry CRC.
+  public long transferStoredEntry(String name, Path source, long lastModified, HashingEngine.Hasher hasher)
+      throws IOException {
+    try (FileSource in = FileSource.open(source, false)) {
+      return transferStoredEntry(name, in, lastModified, hasher);
+    }
+  }
+
+  // source must not have been read past its head; what follows the head is transferred
+  public long transferStoredEntry(String name, FileSource source, long lastModified, HashingEngine.Hasher hasher)
+      throws IOException {
+    if (hasher == null) {
+      hasher = HashingEngine.crc32Hasher();
+    }
+    beginEntry(name, ZipEntry.STORED, lastModified, source.size());
+    long dataOffset = channel.position();
+    writeFully(source.head());
+    source.transferRemaining(channel);
+    long size = channel.position() - dataOffset;
+    checksumWritten(dataOffset, size, hasher);
+    finishEntry(hasher.crc32(), size);
+    return size;
+  }
+
+  public OutputStream entryOutputStream() {
+    return new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        writeFully(ByteBuffer.wrap(b, off, len));
+      }
+    };
+  }
+
+  public void finishEntry(long crc, long size) throws IOException {
+    finishEntry(crc, size, null);
+  }
+
+  // The comment only goes to the central directory, like ZipOutputStream's
+  public void finishEntry(long crc, long size, String comment) throws IOException {
+    finishEntry(crc, size, comment, null);
+  }
+
+  public void finishEntry(long crc, long size, String comment, byte[] extra) throws IOException {
+    OpenEntry entry = openEntry;
+    openEntry = null;
+    long compressedSize = channel.position() - entry.dataOffset();
+    if (!entry.zip64() && (compressedSize >= ZIP64_MAGIC || size >= ZIP64_MAGIC)) {
+      throw new ZipException("Entry grew past 4 GB without a ZIP64 header: " + entry.name());
+    }
+    ByteBuffer patch = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+    patch.putInt((int) crc);
+    patch.putInt((int) (entry.zip64() ? ZIP64_MAGIC : compressedSize));
+    patch.putInt((int) (entry.zip64() ? ZIP64_MAGIC : size));
+    writeFully(patch.flip(), entry.headerOffset() + 14);
+    if (entry.zip64()) {
+      ByteBuffer sizes = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+      sizes.putLong(size).putLong(compressedSize);
+      writeFully(sizes.flip(), entry.headerOffset() + 30 + entry.rawName().length + 4);
+    }
+    centralDirectory.add(new ZipArchiveReader.Entry(entry.name(), entry.rawName(), UTF8_FLAG, entry.method(),
+        entry.dosTime(), crc, compressedSize, size, extra != null ? extra : new byte[0],
+        comment != null ? comment.getBytes(StandardCharsets.UTF_8) : new byte[0], entry.headerOffset()));
+  }
+
+  private class EntryStream extends OutputStream implements WritableByteChannel, CompressingStream {
+    private final CRC32 crc;
+    private final HashingEngine.Hasher crcSource;
+    private final Deflater deflater;
+    private final OutputStream body;
+    private final String comment;
+    private final byte[] extra;
+    private byte[] deflateBuffer = null;
+    private long size = 0;
+    private long compressNanos = 0;
+    private boolean closed = false;
+
+    EntryStream(int method, int level, String comment, byte[] extra, HashingEngine.Hasher crcSource) {
+      this.crc = crcSource == null ? new CRC32() : null;
+      this.crcSource = crcSource;
+      this.comment = comment;
+      this.extra = extra;
+      if (method == ZipEntry.DEFLATED) {
+        this.deflater = new Deflater(level, true);
+        this.body = new TimedDeflaterOutputStream(entryOutputStream(), deflater, DEFLATE_BUFFER_SIZE);
+      } else {
+        this.deflater = null;
+        this.body = entryOutputStream();
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (crc != null) {
+        crc.update(b, off, len);
+      }
+      size += len;
+      body.write(b, off, len);
+    }
+
+    // Stored data goes straight to the archive channel and deflate reads the
+    // buffer itself, so a mapped buffer is never copied onto the heap
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+      int length = src.remaining();
+      if (crc != null) {
+        crc.update(src.duplicate());
+      }
+      size += length;
+      if (deflater == null) {
+        writeFully(src);
+        return length;
+      }
+      if (deflateBuffer == null) {
+        deflateBuffer = BufferPool.SHARED.acquire(DEFLATE_BUFFER_SIZE);
+      }
+      deflater.setInput(src);
+      while (!deflater.needsInput()) {
+        long start = System.nanoTime();
+        int n = deflater.deflate(deflateBuffer);
+        compressNanos += System.nanoTime() - start;
+        writeFully(ByteBuffer.wrap(deflateBuffer, 0, n));
+      }
+      return length;
+    }
+
+    @Override
+    public long compressNanos() {
+      return deflater != null ? compressNanos + ((TimedDeflaterOutputStream) body).compressNanos() : 0;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return !closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        if (deflater != null) {
+          ((TimedDeflaterOutputStream) body).finish();
+        }
+        finishEntry(crc != null ? crc.getValue() : crcSource.crc32(), size, comment, extra);
+      } finally {
+        if (deflater != null) {
+          deflater.end();
+        }
+        BufferPool.SHARED.release(deflateBuffer);
+        deflateBuffer = null;
+      }
+    }
+  }
+
+  static long toDosTime(long millis) {
+    LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    if (time.getYear() < 1980) {
+      return (1 << 21) | (1 << 16);
+    }
+    return ((long) (time.getYear() - 1980) << 25) | (time.getMonthValue() << 21) | (time.getDayOfMonth() << 16)
+        | (time.getHour() << 11) | (time.getMinute() << 5) | (time.getSecond() >> 1);
+  }
+
+  private void writeLocalHeader(byte[] rawName, int flags, int method, long dosTime, long crc, long compressedSize,
+      long size) throws IOException {
+    boolean zip64 = size >= ZIP64_MAGIC || compressedSize >= ZIP64_MAGIC;
+    ByteBuffer header = ByteBuffer.allocate(30 + rawName.length + (zip64 ? 20 : 0)).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(LOCAL_HEADER_SIG);
+    header.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION_DEFAULT));
+    header.putShort((short) flags);
+    header.putShort((short) method);
+    header.putInt((int) dosTime);
+    header.putInt((int) crc);
+    header.putInt((int) (zip64 ? ZIP64_MAGIC : compressedSize));
+    header.putInt((int) (zip64 ? ZIP64_MAGIC : size));
+    header.putShort((short) rawName.length);
+    header.putShort((short) (zip64 ? 20 : 0));
+    header.put(rawName);
+    if (zip64) {
+      header.putShort((short) ZIP64_EXTRA_ID).putShort((short) 16).putLong(size).putLong(compressedSize);
+    }
+    writeFully(header.flip());
+  }
+
+  private void writeCentralHeader(ZipArchiveReader.Entry entry) throws IOException {
+    boolean sizeZip64 = entry.size() >= ZIP64_MAGIC;
+    boolean compressedZip64 = entry.compressedSize() >= ZIP64_MAGIC;
+    boolean offsetZip64 = entry.localHeaderOffset() >= ZIP64_MAGIC;
+    int zip64Length = (sizeZip64 ? 8 : 0) + (compressedZip64 ? 8 : 0) + (offsetZip64 ? 8 : 0);
+    int extraLength = entry.extra().length + (zip64Length > 0 ? 4 + zip64Length : 0);
+    int version = zip64Length > 0 ? VERSION_ZIP64 : VERSION_DEFAULT;
+
+    ByteBuffer header = ByteBuffer.allocate(46 + entry.rawName().length + extraLength + entry.comment().length)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(CENTRAL_HEADER_SIG);
+    header.putShort((short) version);
+    header.putShort((short) version);
+    header.putShort((short) entry.flags());
+    header.putShort((short) entry.method());
+    header.putInt((int) entry.dosTime());
+    header.putInt((int) entry.crc());
+    header.putInt((int) (compressedZip64 ? ZIP64_MAGIC : entry.compressedSize()));
+    header.putInt((int) (sizeZip64 ? ZIP64_MAGIC : entry.size()));
+    header.putShort((short) entry.rawName().length);
+    header.putShort((short) extraLength);
+    header.putShort((short) entry.comment().length);
+    header.putShort((short) 0);
+    header.putShort((short) 0);
+    header.putInt(0);
+    header.putInt((int) (offsetZip64 ? ZIP64_MAGIC : entry.localHeaderOffset()));
+    header.put(entry.rawName());
+    if (zip64Length > 0) {
+      header.putShort((short) ZIP64_EXTRA_ID).putShort((short) zip64Length);
+      if (sizeZip64) {
+        header.putLong(entry.size());
+      }
+      if (compressedZip64) {
+        header.putLong(entry.compressedSize());
+      }
+      if (offsetZip64) {
+        header.putLong(entry.localHeaderOffset());
+      }
+    }
+    header.put(entry.extra());
+    header.put(entry.comment());
+    writeFully(header.flip());
+  }
+
+  private void writeEndOfCentralDirectory(long cdOffset, long cdSize) throws IOException {
+    long count = centralDirectory.size();
+    boolean zip64 = count >= ZIP64_MAGIC_COUNT || cdOffset >= ZIP64_MAGIC || cdSize >= ZIP64_MAGIC;
+    if (zip64) {
+      long zip64EocdOffset = channel.position();
+      ByteBuffer record = ByteBuffer.allocate(56 + 20).order(ByteOrder.LITTLE_ENDIAN);
+      record.putInt(ZIP64_END_OF_CENTRAL_DIR_SIG);
+      record.putLong(44);
+      record.putShort((short) VERSION_ZIP64);
+      record.putShort((short) VERSION_ZIP64);
+      record.putInt(0);
+      record.putInt(0);
+      record.putLong(count);
+      record.putLong(count);
+      record.putLong(cdSize);
+      record.putLong(cdOffset);
+      record.putInt(ZIP64_LOCATOR_SIG);
+      record.putInt(0);
+      record.putLong(zip64EocdOffset);
+      record.putInt(1);
+      writeFully(record.flip());
+    }
+    ByteBuffer eocd = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+    eocd.putInt(END_OF_CENTRAL_DIR_SIG);
+    eocd.putShort((short) 0);
+    eocd.putShort((short) 0);
+    eocd.putShort((short) Math.min(count, ZIP64_MAGIC_COUNT));
+    eocd.putShort((short) Math.min(count, ZIP64_MAGIC_COUNT));
+    eocd.putInt((int) Math.min(cdSize, ZIP64_MAGIC));
+    eocd.putInt((int) Math.min(cdOffset, ZIP64_MAGIC));
+    eocd.putShort((short) 0);
+    writeFully(eocd.flip());
+  }
+
+  private void transferFully(FileChannel source, long position, long count) throws IOException {
+    long transferred = 0;
+    while (transferred < count) {
+      long n = source.transferTo(position + transferred, count - transferred, channel);
+      if (n <= 0) {
+        throw new IOException("Unexpected end of source while copying entry data");
+      }
+      transferred += n;
+    }
+  }
+
+  private void checksumWritten(long offset, long length, HashingEngine.Hasher hasher) throws IOException {
+    byte[] buffer = BufferPool.SHARED.acquire(DEFLATE_BUFFER_SIZE);
+    try {
+      ByteBuffer target = ByteBuffer.wrap(buffer);
+      for (long done = 0; done < length;) {
+        target.clear().limit((int) Math.min(buffer.length, length - done));
+        int n = channel.read(target, offset + done);
+        if (n <= 0) {
+          throw new IOException("Unexpected end of archive while checksumming entry data");
+        }
+        hasher.update(buffer, 0, n);
+        done += n;
+      }
+    } finally {
+      BufferPool.SHARED.release(buffer);
+    }
+  }
+
+  private void writeFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private void writeFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer, position + buffer.position());
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (openEntry != null) {
+      channel.close();
+      throw new ZipException("Archive closed with unfinished entry: " + openEntry.name());
+    }
+    try {
+      long cdOffset = channel.position();
+      for (ZipArchiveReader.Entry entry : centralDirectory) {
+        writeCentralHeader(entry);
+      }
+      writeEndOfCentralDirectory(cdOffset, channel.position() - cdOffset);
+    } finally {
+      channel.close();
+    }
+  }
+}
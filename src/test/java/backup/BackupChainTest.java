@@ -0,0 +1,50 @@
+package test.java.backup;
+
+import main.java.backup.BackupChain;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class BackupChainTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  // Only the latest differential and the incrementals after it are needed
+  @Test
+  public void testRestoreChain() throws IOException {
+    Path backupDir = tempFolder.getRoot().toPath();
+    Path full = create(backupDir, "backup.zip");
+    create(backupDir, "backup_incr_20240101T000000000.zip");
+    create(backupDir, "backup_diff_20240102T000000000.zip");
+    Path diff = create(backupDir, "backup_diff_20240103T000000000.zip");
+    Path incr = create(backupDir, "backup_incr_20240104T000000000.zip");
+
+    assertEquals(List.of(full, diff, incr), BackupChain.restoreChain(backupDir));
+  }
+
+  // A differential removes everything but the full backup and itself
+  @Test
+  public void testRemoveSupersededArchives() throws IOException {
+    Path backupDir = tempFolder.getRoot().toPath();
+    Path full = create(backupDir, "backup.zip");
+    create(backupDir, "backup_incr_20240101T000000000.zip");
+    create(backupDir, "backup_diff_20240102T000000000.zip");
+    Path diff = create(backupDir, "backup_diff_20240103T000000000.zip");
+
+    BackupChain.removeSupersededArchives(backupDir, diff);
+
+    assertEquals(List.of(full, diff), BackupChain.restoreChain(backupDir));
+    assertTrue(BackupChain.incrementalArchives(backupDir).isEmpty());
+  }
+
+  private Path create(Path backupDir, String name) throws IOException {
+    return Files.createFile(backupDir.resolve(name));
+  }
+}
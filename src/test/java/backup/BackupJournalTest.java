@@ -0,0 +1,163 @@
+package test.java.backup;
+
+import main.java.backup.BackupFile;
+import main.java.backup.BackupJournal;
+import main.java.backup.FileStateIndex;
+import main.java.util.ZipArchiveWriter;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+
+public class BackupJournalTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private Path backupDir;
+  private Path sourceFile;
+  private BackupFile file;
+
+  @Before
+  public void setUp() throws Exception {
+    backupDir = tempFolder.newFolder("backup").toPath();
+    sourceFile = tempFolder.newFile("a.txt").toPath();
+    Files.writeString(sourceFile, "hello");
+    file = backupFile(sourceFile);
+  }
+
+  @Test
+  public void testOpen_ReusesRecordedPartition() throws Exception {
+    BackupJournal journal = BackupJournal.open(backupDir, "run");
+    Path archive = writeArchive("temp_1.zip");
+    journal.record(List.of(archive), Map.of("a.txt", FileStateIndex.FileState.of(file).withHash("abc")));
+
+    BackupJournal reopened = BackupJournal.open(backupDir, "run");
+    assertEquals(1, reopened.completedPartitions().size());
+    assertTrue(reopened.isCompleted("a.txt", file));
+    List<BackupJournal.Partition> reusable = reopened.reusablePartitions(Set.of("a.txt"));
+    assertEquals(List.of(archive), reusable.get(0).archives());
+    assertEquals("abc", reusable.get(0).files().get("a.txt").hash());
+    assertTrue(Files.exists(archive));
+  }
+
+  @Test
+  public void testOpen_OtherRunDiscardsJournal() throws Exception {
+    BackupJournal journal = BackupJournal.open(backupDir, "full");
+    Path archive = writeArchive("temp_1.zip");
+    journal.record(List.of(archive),
+        Map.of("a.txt", FileStateIndex.FileState.of(file)));
+
+    BackupJournal reopened = BackupJournal.open(backupDir, "incremental");
+    assertTrue(reopened.completedPartitions().isEmpty());
+    assertFalse(Files.exists(archive));
+  }
+
+  // A record cut short by a crash is ignored, the ones before it are kept
+  @Test
+  public void testOpen_IgnoresTornRecord() throws Exception {
+    BackupJournal journal = BackupJournal.open(backupDir, "run");
+    Path first = writeArchive("temp_1.zip");
+    Path second = writeArchive("temp_2.zip");
+    journal.record(List.of(first), Map.of("a.txt", FileStateIndex.FileState.of(file)));
+    journal.record(List.of(second), Map.of("b.txt", FileStateIndex.FileState.of(file)));
+    Path journalFile = backupDir.resolve(BackupJournal.FILE_NAME);
+    try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+      channel.truncate(Files.size(journalFile) - 3);
+    }
+
+    BackupJournal reopened = BackupJournal.open(backupDir, "run");
+    assertEquals(1, reopened.completedPartitions().size());
+    assertTrue(Files.exists(first));
+    assertFalse(Files.exists(second));
+  }
+
+  @Test
+  public void testOpen_DropsPartitionWithChangedArchive() throws Exception {
+    BackupJournal journal = BackupJournal.open(backupDir, "run");
+    Path archive = writeArchive("temp_1.zip");
+    journal.record(List.of(archive),
+        Map.of("a.txt", FileStateIndex.FileState.of(file)));
+    Files.write(archive, new byte[] { 1 }, StandardOpenOption.APPEND);
+
+    assertTrue(BackupJournal.open(backupDir, "run").completedPartitions().isEmpty());
+  }
+
+  // Same size, but entry data that no longer matches its CRC
+  @Test
+  public void testOpen_DropsPartitionWithCorruptedEntry() throws Exception {
+    BackupJournal journal = BackupJournal.open(backupDir, "run");
+    Path archive = writeArchive("temp_1.zip");
+    journal.record(List.of(archive), Map.of("a.txt", FileStateIndex.FileState.of(file)));
+    byte[] bytes = Files.readAllBytes(archive);
+    int data = new String(bytes, StandardCharsets.ISO_8859_1).indexOf("payload");
+    bytes[data] ^= 1;
+    Files.write(archive, bytes);
+
+    assertTrue(BackupJournal.open(backupDir, "run").completedPartitions().isEmpty());
+    assertFalse(Files.exists(archive));
+  }
+
+  @Test
+  public void testOpen_RemovesUnrecordedTempArchives() throws Exception {
+    Path stray = writeArchive("temp_9.zip");
+    Path other = Files.writeString(backupDir.resolve("backup.zip"), "keep");
+
+    BackupJournal.open(backupDir, "run");
+    assertFalse(Files.exists(stray));
+    assertTrue(Files.exists(other));
+  }
+
+  // A partition with a file that changed since is backed up again from scratch
+  @Test
+  public void testReusablePartitions_ChangedFileDropsPartition() throws Exception {
+    BackupJournal journal = BackupJournal.open(backupDir, "run");
+    Path archive = writeArchive("temp_1.zip");
+    journal.record(List.of(archive),
+        Map.of("a.txt", FileStateIndex.FileState.of(file), "b.txt", FileStateIndex.FileState.of(file)));
+
+    BackupJournal reopened = BackupJournal.open(backupDir, "run");
+    assertTrue(reopened.reusablePartitions(Set.of("a.txt")).isEmpty());
+    assertFalse(Files.exists(archive));
+
+    Files.writeString(sourceFile, "changed content");
+    assertFalse(reopened.isCompleted("a.txt", backupFile(sourceFile)));
+  }
+
+  @Test
+  public void testDelete_RemovesJournal() throws Exception {
+    BackupJournal journal = BackupJournal.open(backupDir, "run");
+    assertTrue(Files.exists(backupDir.resolve(BackupJournal.FILE_NAME)));
+    journal.delete();
+    assertFalse(Files.exists(backupDir.resolve(BackupJournal.FILE_NAME)));
+  }
+
+  private Path writeArchive(String name) throws IOException {
+    Path archive = backupDir.resolve(name);
+    try (ZipArchiveWriter writer = new ZipArchiveWriter(archive)) {
+      byte[] data = ("payload of " + name).getBytes(StandardCharsets.UTF_8);
+      try (OutputStream out = writer.newEntry(name + ".txt", ZipEntry.STORED, 0, 0, data.length, null)) {
+        out.write(data);
+      }
+    }
+    return archive;
+  }
+
+  private static BackupFile backupFile(Path path) throws IOException {
+    BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+    return new BackupFile(path, attrs.size(), attrs.lastModifiedTime().toMillis(), String.valueOf(attrs.fileKey()));
+  }
+}
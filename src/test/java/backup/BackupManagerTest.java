@@ -1,7 +1,9 @@
 package test.java.backup;
 
+import main.java.backup.BackupJournal;
 import main.java.backup.BackupManager;
 import main.java.config.Configuration;
+import main.java.restore.RestoreManager;
 import org.junit.*;
 import org.junit.rules.TemporaryFolder;
 
@@ -10,6 +12,13 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.*;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import org.json.simple.JSONObject;
 
 public class BackupManagerTest {
   private final Configuration config = new Configuration();
@@ -62,6 +71,68 @@ public class BackupManagerTest {
     }
   }
 
+  // Scan and backup overlap; what is restored matches the source
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testBackup_PipelinedRoundTrip() throws Exception {
+    Path srcDir = tempFolder.newFolder("src_pipelined").toPath();
+    Path backupDir = tempFolder.newFolder("backup_pipelined").toPath();
+    Path restoreDir = tempFolder.newFolder("restore_pipelined").toPath();
+    Path keyDir = tempFolder.newFolder("keys_pipelined").toPath();
+    Random random = new Random(11);
+    for (int i = 0; i < 40; i++) {
+      Path file = srcDir.resolve("dir" + i % 4).resolve("file" + i + ".txt");
+      Files.createDirectories(file.getParent());
+      Files.writeString(file, ("line " + i + "\n").repeat(random.nextInt(2000)));
+    }
+    byte[] data = new byte[300_000];
+    random.nextBytes(data);
+    Files.write(srcDir.resolve("random.bin"), data);
+
+    JSONObject json = new JSONObject();
+    json.put("defaultSourceDir", srcDir.toString());
+    json.put("defaultBackupDir", backupDir.toString());
+    json.put("defaultRestoreDir", restoreDir.toString());
+    json.put("enableCompression", true);
+    json.put("enableEncryption", true);
+    json.put("enableIntegrityCheck", true);
+    json.put("hashAlgorithm", "SHA-256");
+    json.put("hashFileDir", keyDir.toString());
+    json.put("aesFileKeyDir", keyDir.toString());
+    json.put("backupIncludePatterns", List.of("all"));
+    json.put("backupExcludePatterns", List.of("none"));
+    json.put("restoreIncludePatterns", List.of("all"));
+    json.put("restoreExcludePatterns", List.of("none"));
+    json.put("enablePipelinedBackup", true);
+    json.put("partitionTargetBytes", 50_000);
+    Path configFile = tempFolder.newFile("config_pipelined.json").toPath();
+    Files.writeString(configFile, json.toJSONString());
+    Configuration pipelinedConfig = new Configuration(configFile.toString());
+
+    BackupManager manager = new BackupManager(pipelinedConfig);
+    manager.setEncryptionPassword("password");
+    manager.backup();
+    assertFalse(Files.exists(backupDir.resolve(BackupJournal.FILE_NAME)));
+    try (Stream<Path> files = Files.list(backupDir)) {
+      assertTrue(files.noneMatch(file -> file.getFileName().toString().startsWith("temp_")));
+    }
+
+    RestoreManager restoreManager = new RestoreManager(pipelinedConfig);
+    restoreManager.setEncryptionPassword("password");
+    restoreManager.restore();
+    assertEquals(readTree(srcDir), readTree(restoreDir));
+  }
+
+  private static Map<String, String> readTree(Path dir) throws IOException {
+    Map<String, String> contents = new TreeMap<>();
+    try (Stream<Path> files = Files.walk(dir)) {
+      for (Path file : files.filter(Files::isRegularFile).toList()) {
+        contents.put(dir.relativize(file).toString(), new String(Files.readAllBytes(file), "ISO-8859-1"));
+      }
+    }
+    return contents;
+  }
+
   // Helper method for debugging
   private String listDirContents(Path dir) throws IOException {
     StringBuilder sb = new StringBuilder();
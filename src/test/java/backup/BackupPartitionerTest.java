@@ -0,0 +1,55 @@
+package test.java.backup;
+
+import main.java.backup.BackupFile;
+import main.java.backup.BackupPartitioner;
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public class BackupPartitionerTest {
+
+  // A file above the target gets its own partition and is scheduled first
+  @Test
+  public void testPartition_OversizedFileIsolated() {
+    List<BackupFile> files = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      files.add(file(Path.of("small" + i), 10));
+    }
+    files.add(file(Path.of("huge"), 1000));
+
+    List<BackupPartitioner.Partition> partitions = new BackupPartitioner(50, 100).partition(files);
+
+    assertEquals(List.of(Path.of("huge")), partitions.get(0).files().stream().map(BackupFile::path).toList());
+    assertEquals(1000, partitions.get(0).bytes());
+    assertEquals(3, partitions.size());
+  }
+
+  // The file count limit closes a partition even if the byte target is not met
+  @Test
+  public void testPartition_MaxFiles() {
+    List<BackupFile> files = new ArrayList<>();
+    for (int i = 0; i < 25; i++) {
+      files.add(file(Path.of("f" + i), 1));
+    }
+
+    List<BackupPartitioner.Partition> partitions = new BackupPartitioner(1000, 10).partition(files);
+
+    assertEquals(3, partitions.size());
+    assertEquals(25, partitions.stream().mapToInt(p -> p.files().size()).sum());
+    assertTrue(partitions.stream().allMatch(p -> p.files().size() <= 10));
+  }
+
+  // No files, no partitions
+  @Test
+  public void testPartition_Empty() {
+    assertTrue(new BackupPartitioner(1000, 10).partition(List.of()).isEmpty());
+  }
+
+  private BackupFile file(Path path, long size) {
+    return new BackupFile(path, size, 0, null);
+  }
+}
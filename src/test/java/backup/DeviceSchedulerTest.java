@@ -0,0 +1,104 @@
+package test.java.backup;
+
+import main.java.backup.DeviceScheduler;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class DeviceSchedulerTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void testDeviceFor_SameStoreSharesDevice() throws Exception {
+    Path first = tempFolder.newFolder("first").toPath();
+    Path second = tempFolder.newFolder("second").toPath();
+    DeviceScheduler scheduler = new DeviceScheduler(2, 8);
+
+    assertSame(scheduler.deviceFor(first), scheduler.deviceFor(second));
+    assertTrue(scheduler.summary().startsWith("Device "));
+  }
+
+  @Test
+  public void testAcquire_BlocksAtLimit() throws Exception {
+    DeviceScheduler.Device device = new DeviceScheduler.Device("test", 2, 8);
+    DeviceScheduler.Device.Slot first = device.acquire(0);
+    DeviceScheduler.Device.Slot second = device.acquire(0);
+    AtomicBoolean acquired = new AtomicBoolean(false);
+    Thread waiter = Thread.ofVirtual().start(() -> {
+      try {
+        DeviceScheduler.Device.Slot third = device.acquire(0);
+        acquired.set(true);
+        third.close();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+
+    Thread.sleep(100);
+    assertFalse(acquired.get());
+    first.close();
+    waiter.join(5000);
+    assertTrue(acquired.get());
+    second.close();
+    assertEquals(0, device.inFlight());
+  }
+
+  // Windows that fill the limit without getting slower raise it one step at a time
+  @Test
+  public void testLimit_GrowsWhileSaturatedAndFast() throws Exception {
+    DeviceScheduler.Device device = new DeviceScheduler.Device("test", 2, 4);
+    for (int i = 0; i < 20; i++) {
+      runConcurrently(device, device.limit(), 5);
+    }
+    assertEquals(4, device.limit());
+  }
+
+  @Test
+  public void testLimit_BacksOffWhenLatencyClimbs() throws Exception {
+    DeviceScheduler.Device device = new DeviceScheduler.Device("test", 8, 8);
+    for (int i = 0; i < 4; i++) {
+      runConcurrently(device, device.limit(), 5);
+    }
+    for (int i = 0; i < 4; i++) {
+      runConcurrently(device, device.limit(), 50);
+    }
+    assertTrue(device.limit() < 8);
+  }
+
+  // A single file at a time is never treated as contention
+  @Test
+  public void testLimit_SerialWindowsNeverBackOff() throws Exception {
+    DeviceScheduler.Device device = new DeviceScheduler.Device("test", 4, 4);
+    for (int i = 0; i < 8; i++) {
+      device.acquire(0).close();
+    }
+    for (int i = 0; i < 8; i++) {
+      DeviceScheduler.Device.Slot slot = device.acquire(0);
+      Thread.sleep(10);
+      slot.close();
+    }
+    assertEquals(4, device.limit());
+  }
+
+  // Holds count slots at once, each for sleepMillis
+  private static void runConcurrently(DeviceScheduler.Device device, int count, long sleepMillis) throws Exception {
+    List<DeviceScheduler.Device.Slot> slots = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      slots.add(device.acquire(0));
+    }
+    if (sleepMillis > 0) {
+      Thread.sleep(sleepMillis);
+    }
+    for (DeviceScheduler.Device.Slot slot : slots) {
+      slot.close();
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package test.java.backup;
+
+import main.java.backup.BackupFile;
+import main.java.backup.FileStateIndex;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+public class FileStateIndexTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  // Saved index loads back with the same states and hashes
+  @Test
+  public void testSaveAndLoad() throws IOException {
+    FileStateIndex index = new FileStateIndex();
+    index.put("a.txt", FileStateIndex.FileState.of(new BackupFile(Path.of("a.txt"), 10, 1000, "(dev=1,ino=2)")));
+    index.put("b.txt", FileStateIndex.FileState.of(new BackupFile(Path.of("b.txt"), 20, 2000, null)));
+    index.applyHashes(Map.of("a.txt", "abcd"));
+
+    Path indexFile = tempFolder.getRoot().toPath().resolve("backup.index");
+    index.save(indexFile);
+    FileStateIndex loaded = FileStateIndex.load(indexFile);
+
+    assertEquals(2, loaded.size());
+    assertEquals(index.get("a.txt"), loaded.get("a.txt"));
+    assertEquals(index.get("b.txt"), loaded.get("b.txt"));
+    assertEquals("abcd", loaded.get("a.txt").hash());
+    assertNull(loaded.get("b.txt").hash());
+  }
+
+  // Any change in size, mtime or file key marks the file as changed
+  @Test
+  public void testMatches() {
+    FileStateIndex.FileState state = FileStateIndex.FileState
+        .of(new BackupFile(Path.of("a.txt"), 10, 1000, "(dev=1,ino=2)"));
+
+    assertTrue(state.matches(new BackupFile(Path.of("a.txt"), 10, 1000, "(dev=1,ino=2)")));
+    assertFalse(state.matches(new BackupFile(Path.of("a.txt"), 11, 1000, "(dev=1,ino=2)")));
+    assertFalse(state.matches(new BackupFile(Path.of("a.txt"), 10, 1001, "(dev=1,ino=2)")));
+    assertFalse(state.matches(new BackupFile(Path.of("a.txt"), 10, 1000, "(dev=1,ino=3)")));
+  }
+
+  @Test
+  public void testNamesMissingFrom() {
+    FileStateIndex previous = new FileStateIndex();
+    previous.put("kept.txt", FileStateIndex.FileState.of(new BackupFile(Path.of("kept.txt"), 1, 1, null)));
+    previous.put("gone.txt", FileStateIndex.FileState.of(new BackupFile(Path.of("gone.txt"), 1, 1, null)));
+    FileStateIndex current = new FileStateIndex();
+    current.put("kept.txt", previous.get("kept.txt"));
+
+    assertEquals(List.of("gone.txt"), previous.namesMissingFrom(current));
+  }
+
+  @Test
+  public void testLoad_MissingFile() throws IOException {
+    assertNull(FileStateIndex.load(tempFolder.getRoot().toPath().resolve("missing.index")));
+  }
+}
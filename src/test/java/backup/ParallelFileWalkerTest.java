@@ -0,0 +1,79 @@
+package test.java.backup;
+
+import main.java.backup.ParallelFileWalker;
+import main.java.util.FileOperationsUtil;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Predicate;
+
+public class ParallelFileWalkerTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  // Finds the same files as the sequential Files.walkFileTree, with the same patterns applied
+  @Test
+  public void testWalk_MatchesSequentialWalk() throws Exception {
+    Path root = tempFolder.newFolder("src").toPath();
+    for (int i = 0; i < 5; i++) {
+      Path dir = Files.createDirectories(root.resolve("d" + i).resolve("nested" + i));
+      Files.writeString(dir.resolve("file" + i + ".txt"), "data " + i);
+      Files.writeString(dir.getParent().resolve("top" + i + ".bin"), "top " + i);
+    }
+    Path skipped = Files.createDirectories(root.resolve("skip"));
+    Files.writeString(skipped.resolve("ignored.txt"), "ignored");
+    Files.createDirectories(root.resolve("empty"));
+    Files.writeString(root.resolve("root.txt"), "root");
+
+    List<String> excludes = List.of("^.*/skip/.*$");
+    Predicate<Path> filter = file -> FileOperationsUtil.matchPattern(file.toString(), List.of("all"))
+        && !FileOperationsUtil.matchPattern(file.toString(), excludes);
+
+    Set<Path> parallel = new ConcurrentSkipListSet<>();
+    new ParallelFileWalker(4).walk(root, filter, file -> parallel.add(file.path()));
+
+    assertEquals(sequentialWalk(root, filter), parallel);
+    assertEquals(11, parallel.size());
+    assertFalse(parallel.contains(skipped.resolve("ignored.txt")));
+  }
+
+  @Test
+  public void testWalk_ReportsSizeAndModifiedTime() throws Exception {
+    Path file = tempFolder.newFile("single.txt").toPath();
+    Files.writeString(file, "12345");
+    Set<Long> sizes = new ConcurrentSkipListSet<>();
+
+    new ParallelFileWalker(0).walk(tempFolder.getRoot().toPath(), path -> true, backupFile -> {
+      sizes.add(backupFile.size());
+      assertEquals(file.toFile().lastModified(), backupFile.lastModified());
+    });
+    assertEquals(Set.of(5L), sizes);
+  }
+
+  private static Set<Path> sequentialWalk(Path root, Predicate<Path> filter) throws IOException {
+    Set<Path> files = new TreeSet<>();
+    Files.walkFileTree(root, new SimpleFileVisitor<>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        if (filter.test(file)) {
+          files.add(file);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return files;
+  }
+}
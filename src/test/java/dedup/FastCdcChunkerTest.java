@@ -0,0 +1,75 @@
+package test.java.dedup;
+
+import main.java.dedup.ChunkStore;
+import main.java.dedup.FastCdcChunker;
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class FastCdcChunkerTest {
+
+  // Chunks must cover the input exactly and respect the size limits
+  @Test
+  public void testChunk_CoversInput() throws IOException {
+    byte[] data = randomBytes(1_000_000, 1);
+    List<byte[]> chunks = chunk(data);
+
+    int total = 0;
+    for (int i = 0; i < chunks.size(); i++) {
+      byte[] chunk = chunks.get(i);
+      assertTrue(chunk.length <= 16 * 1024);
+      if (i < chunks.size() - 1) {
+        assertTrue(chunk.length >= 1024);
+      }
+      for (int j = 0; j < chunk.length; j++) {
+        assertEquals(data[total + j], chunk[j]);
+      }
+      total += chunk.length;
+    }
+    assertEquals(data.length, total);
+  }
+
+  // Inserting bytes at the front only disturbs the chunks around the insertion
+  @Test
+  public void testChunk_ShiftResistant() throws IOException {
+    byte[] data = randomBytes(1_000_000, 2);
+    byte[] shifted = new byte[data.length + 7];
+    System.arraycopy(data, 0, shifted, 7, data.length);
+
+    Set<String> original = hashes(chunk(data));
+    Set<String> afterInsert = hashes(chunk(shifted));
+    afterInsert.retainAll(original);
+
+    assertTrue("Most chunks should be shared", afterInsert.size() > original.size() * 9 / 10);
+  }
+
+  private List<byte[]> chunk(byte[] data) throws IOException {
+    List<byte[]> chunks = new ArrayList<>();
+    new FastCdcChunker(1024, 4 * 1024, 16 * 1024).chunk(new ByteArrayInputStream(data),
+        (buffer, offset, length) -> chunks.add(Arrays.copyOfRange(buffer, offset, offset + length)));
+    return chunks;
+  }
+
+  private Set<String> hashes(List<byte[]> chunks) {
+    Set<String> hashes = new HashSet<>();
+    for (byte[] chunk : chunks) {
+      hashes.add(ChunkStore.hashChunk(chunk, 0, chunk.length));
+    }
+    return hashes;
+  }
+
+  private byte[] randomBytes(int length, long seed) {
+    byte[] data = new byte[length];
+    new Random(seed).nextBytes(data);
+    return data;
+  }
+}
@@ -10,6 +10,16 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.*;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.json.simple.JSONObject;
+
+import main.java.util.HashingEngine;
+import main.java.util.KeyManagementUtil;
 
 public class RestoreManagerTest {
   private final Configuration config = new Configuration();
@@ -97,4 +107,79 @@ public class RestoreManagerTest {
     // Perform the restore
     restoreManager.restore();
   }
+
+  // Files are written to a partial file and moved over the destination once their hash matches
+  @Test
+  public void testRestore_VerifiedFilesReplaceDestination() throws Exception {
+    Path restoreDir = tempFolder.newFolder("restore_verified").toPath();
+    Files.writeString(restoreDir.resolve("file1.txt"), "old content");
+    RestoreManager manager = integrityCheckedRestore(restoreDir, Map.of());
+
+    manager.restore();
+
+    assertEquals("file1", Files.readString(restoreDir.resolve("file1.txt")));
+    assertEquals("file2", Files.readString(restoreDir.resolve("subdir/file2.txt")));
+    assertNoPartialFiles(restoreDir);
+  }
+
+  // A file failing the check never reaches its destination, and its partial file is removed
+  @Test
+  public void testRestore_HashMismatchKeepsDestination() throws Exception {
+    Path restoreDir = tempFolder.newFolder("restore_mismatch").toPath();
+    Files.createDirectories(restoreDir.resolve("subdir"));
+    Files.writeString(restoreDir.resolve("subdir/file2.txt"), "old content");
+    RestoreManager manager = integrityCheckedRestore(restoreDir, Map.of("subdir/file2.txt", "0".repeat(64)));
+
+    manager.restore();
+
+    assertEquals("old content", Files.readString(restoreDir.resolve("subdir/file2.txt")));
+    assertNoPartialFiles(restoreDir);
+  }
+
+  // A backup.zip of two plain entries, with stored hashes (overridden by badHashes) and a key file
+  @SuppressWarnings("unchecked")
+  private RestoreManager integrityCheckedRestore(Path restoreDir, Map<String, String> badHashes)
+      throws Exception {
+    Path backupDir = tempFolder.newFolder("backup_" + restoreDir.getFileName()).toPath();
+    Path keyDir = tempFolder.newFolder("keys_" + restoreDir.getFileName()).toPath();
+    Map<String, String> contents = Map.of("file1.txt", "file1", "subdir/file2.txt", "file2");
+    JSONObject hashes = new JSONObject();
+    try (ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(backupDir.resolve("backup.zip")))) {
+      for (Map.Entry<String, String> file : contents.entrySet()) {
+        byte[] data = file.getValue().getBytes();
+        zos.putNextEntry(new ZipEntry(file.getKey()));
+        zos.write(data);
+        zos.closeEntry();
+        hashes.put(file.getKey(), badHashes.getOrDefault(file.getKey(),
+            HashingEngine.forAlgorithm("SHA-256").hash(data, 0, data.length)));
+      }
+    }
+    Files.writeString(keyDir.resolve("hashes.json"), hashes.toJSONString());
+    KeyManagementUtil.saveKeyToFile(KeyManagementUtil.generateAESKey("password"),
+        keyDir.resolve("aes.key").toString(), "password");
+
+    JSONObject json = new JSONObject();
+    json.put("defaultBackupDir", backupDir.toString());
+    json.put("defaultRestoreDir", restoreDir.toString());
+    json.put("enableCompression", true);
+    json.put("enableEncryption", false);
+    json.put("enableIntegrityCheck", true);
+    json.put("hashAlgorithm", "SHA-256");
+    json.put("hashFileDir", keyDir.toString());
+    json.put("aesFileKeyDir", keyDir.toString());
+    json.put("restoreIncludePatterns", List.of("all"));
+    json.put("restoreExcludePatterns", List.of("none"));
+    Path configFile = tempFolder.newFile("config_" + restoreDir.getFileName() + ".json").toPath();
+    Files.writeString(configFile, json.toJSONString());
+
+    RestoreManager manager = new RestoreManager(new Configuration(configFile.toString()));
+    manager.setEncryptionPassword("password");
+    return manager;
+  }
+
+  private static void assertNoPartialFiles(Path restoreDir) throws IOException {
+    try (Stream<Path> files = Files.walk(restoreDir)) {
+      assertTrue(files.noneMatch(file -> file.getFileName().toString().endsWith(".partial")));
+    }
+  }
 }
@@ -0,0 +1,47 @@
+package test.java.util;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+import main.java.util.BufferPool;
+
+public class BufferPoolTest {
+
+  @Test
+  public void testAcquire_RoundsUpAndReuses() {
+    BufferPool pool = new BufferPool(12, 16, 1024 * 1024);
+    byte[] first = pool.acquire(5000);
+    assertEquals(8192, first.length);
+    pool.release(first);
+
+    assertSame(first, pool.acquire(8000));
+    assertEquals(2, pool.acquires());
+    assertEquals(1, pool.misses());
+  }
+
+  @Test
+  public void testAcquire_OversizedIsNotPooled() {
+    BufferPool pool = new BufferPool(12, 16, 1024 * 1024);
+    byte[] large = pool.acquire(100_000);
+    assertEquals(100_000, large.length);
+    pool.release(large);
+    pool.release(new byte[5000]);
+
+    assertEquals(0, pool.idleBuffers());
+    assertEquals(1, pool.misses());
+  }
+
+  // Each class keeps at most maxIdleBytesPerClass of idle buffers (but at least two)
+  @Test
+  public void testRelease_BoundedPerClass() {
+    BufferPool pool = new BufferPool(12, 16, 16 * 1024);
+    for (int i = 0; i < 10; i++) {
+      pool.release(new byte[4096]);
+      pool.release(new byte[65536]);
+    }
+
+    assertEquals(4 + 2, pool.idleBuffers());
+    assertEquals(4 * 4096 + 2 * 65536, pool.idleBytes());
+  }
+}
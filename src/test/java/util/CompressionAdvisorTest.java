@@ -0,0 +1,83 @@
+package test.java.util;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.rules.TemporaryFolder;
+
+import main.java.backup.BackupFile;
+import main.java.util.CompressionAdvisor;
+
+public class CompressionAdvisorTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void testChooseLevel_StoresIncompressibleData() {
+    byte[] random = new byte[16 * 1024];
+    new Random(42).nextBytes(random);
+    CompressionAdvisor advisor = new CompressionAdvisor(true, true, 0);
+
+    assertEquals(CompressionAdvisor.STORE, advisor.chooseLevel(random, random.length));
+  }
+
+  @Test
+  public void testChooseLevel_CompressesText() {
+    byte[] text = "The quick brown fox jumps over the lazy dog\n".repeat(400).getBytes(StandardCharsets.UTF_8);
+    CompressionAdvisor advisor = new CompressionAdvisor(true, true, 0);
+
+    assertEquals(9, advisor.chooseLevel(text, text.length));
+  }
+
+  @Test
+  public void testChooseLevel_CompressionDisabledOrNotAdaptive() {
+    byte[] random = new byte[4096];
+    new Random(7).nextBytes(random);
+
+    assertEquals(CompressionAdvisor.STORE, new CompressionAdvisor(false, true, 0).chooseLevel(random, random.length));
+    assertEquals(9, new CompressionAdvisor(true, false, 0).chooseLevel(random, random.length));
+  }
+
+  // Compression slower than the target steps the level down
+  @Test
+  public void testRecordCompressed_StepsLevelDown() {
+    byte[] text = "abc".repeat(100).getBytes(StandardCharsets.UTF_8);
+    CompressionAdvisor advisor = new CompressionAdvisor(true, true, 100);
+    int start = advisor.chooseLevel(text, text.length);
+
+    advisor.recordCompressed(64L * 1024 * 1024, 10_000_000_000L);
+
+    assertEquals(start - 1, advisor.chooseLevel(text, text.length));
+  }
+
+  // A few large incompressible files hold most of the bytes; the estimate has
+  // to follow the bytes, not the file count
+  @Test
+  public void testSizeEstimator_FollowsBytesNotFiles() throws Exception {
+    CompressionAdvisor advisor = new CompressionAdvisor(true, true, 0);
+    CompressionAdvisor.SizeEstimator estimator = advisor.newSizeEstimator();
+    long totalBytes = 0;
+    Random random = new Random(3);
+    for (int i = 0; i < 404; i++) {
+      byte[] data = new byte[i < 4 ? 1024 * 1024 : 4096];
+      if (i < 4) {
+        random.nextBytes(data);
+      }
+      Path file = tempFolder.newFile("f" + i).toPath();
+      Files.write(file, data);
+      estimator.offer(new BackupFile(file, data.length, 0, null));
+      totalBytes += data.length;
+    }
+
+    // 4 MB of the 5.6 MB do not compress
+    double ratio = (double) estimator.estimate(totalBytes) / totalBytes;
+    assertEquals(4.0 / 5.6, ratio, 0.2);
+  }
+}
@@ -0,0 +1,137 @@
+package test.java.util;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import main.java.util.BufferPool;
+import main.java.util.CompressingStream;
+import main.java.util.CompressionCodec;
+import main.java.util.DeflateCodec;
+import main.java.util.Lz4Codec;
+
+public class CompressionCodecTest {
+
+  private static byte[] roundTrip(CompressionCodec codec, byte[] data, ByteArrayOutputStream compressed)
+      throws IOException {
+    try (OutputStream out = codec.compress(compressed, 6)) {
+      // Odd write sizes so blocks never line up with the writes
+      for (int off = 0; off < data.length; off += 7777) {
+        out.write(data, off, Math.min(7777, data.length - off));
+      }
+    }
+    try (InputStream in = codec.decompress(new ByteArrayInputStream(compressed.toByteArray()))) {
+      return in.readAllBytes();
+    }
+  }
+
+  @Test
+  public void testRoundTrip_AllCodecs() throws Exception {
+    byte[] random = new byte[300_000];
+    new Random(1).nextBytes(random);
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 40_000; i++) {
+      text.append(i).append(i % 3 == 0 ? " fizz\n" : "\n");
+    }
+    byte[][] inputs = { new byte[0], "a".getBytes(StandardCharsets.UTF_8), random,
+        text.toString().getBytes(StandardCharsets.UTF_8), new byte[200_000] };
+
+    for (String id : new String[] { DeflateCodec.ID, Lz4Codec.ID }) {
+      CompressionCodec codec = CompressionCodec.forId(id);
+      for (byte[] input : inputs) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        assertArrayEquals(id, input, roundTrip(codec, input, compressed));
+      }
+    }
+  }
+
+  @Test
+  public void testLz4_CompressesRepetitiveDataAndBoundsRandomData() throws Exception {
+    CompressionCodec lz4 = CompressionCodec.forId(Lz4Codec.ID);
+    byte[] text = "The quick brown fox jumps over the lazy dog. ".repeat(10_000).getBytes(StandardCharsets.UTF_8);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    roundTrip(lz4, text, compressed);
+    assertTrue(compressed.size() < text.length / 20);
+
+    byte[] random = new byte[200_000];
+    new Random(2).nextBytes(random);
+    compressed = new ByteArrayOutputStream();
+    roundTrip(lz4, random, compressed);
+    // Blocks that do not shrink are stored with a 4-byte header
+    assertTrue(compressed.size() <= random.length + 4 * (random.length / (64 * 1024) + 1));
+  }
+
+  @Test(expected = IOException.class)
+  public void testLz4_CorruptBlockFails() throws Exception {
+    byte[] text = "abcabcabcabd".repeat(1000).getBytes(StandardCharsets.UTF_8);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (OutputStream out = CompressionCodec.forId(Lz4Codec.ID).compress(compressed, 0)) {
+      out.write(text);
+    }
+    byte[] corrupt = compressed.toByteArray();
+    for (int i = 6; i < corrupt.length; i += 3) {
+      corrupt[i] = (byte) 0xff;
+    }
+    try (InputStream in = CompressionCodec.forId(Lz4Codec.ID).decompress(new ByteArrayInputStream(corrupt))) {
+      in.readAllBytes();
+    }
+  }
+
+  // A slow destination does not count as compression time
+  @Test
+  public void testCompressNanos_ExcludesDownstreamWrites() throws Exception {
+    byte[] text = "abcabcabcabd".repeat(50_000).getBytes(StandardCharsets.UTF_8);
+    for (String id : new String[] { DeflateCodec.ID, Lz4Codec.ID }) {
+      OutputStream slow = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+          try {
+            Thread.sleep(20);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      };
+      OutputStream out = CompressionCodec.forId(id).compress(slow, 6);
+      long start = System.nanoTime();
+      try (out) {
+        out.write(text);
+      }
+      long elapsed = System.nanoTime() - start;
+      long compressNanos = ((CompressingStream) out).compressNanos();
+      assertTrue(id + " should report its compress time", compressNanos > 0);
+      assertTrue(id + " should not count the writes", compressNanos < elapsed - 15_000_000);
+    }
+  }
+
+  // Once warmed up, deflate entries take their buffers from the pool
+  @Test
+  public void testDeflate_ReusesPooledBuffers() throws Exception {
+    CompressionCodec deflate = CompressionCodec.forId(DeflateCodec.ID);
+    byte[] text = "abcabcabcabd".repeat(10_000).getBytes(StandardCharsets.UTF_8);
+    roundTrip(deflate, text, new ByteArrayOutputStream());
+
+    long misses = BufferPool.SHARED.misses();
+    long acquires = BufferPool.SHARED.acquires();
+    assertArrayEquals(text, roundTrip(deflate, text, new ByteArrayOutputStream()));
+    assertTrue(BufferPool.SHARED.acquires() >= acquires + 2);
+    assertEquals(misses, BufferPool.SHARED.misses());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testForId_Unknown() {
+    CompressionCodec.forId("zstd");
+  }
+}
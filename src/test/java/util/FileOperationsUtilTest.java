@@ -7,6 +7,8 @@ import java.nio.file.AccessDeniedException;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.List;
+import java.util.function.Predicate;
 
 import main.java.util.FileOperationsUtil;
 import main.java.config.Configuration;
@@ -81,4 +83,17 @@ public class FileOperationsUtilTest {
     Files.writeString(src, "test");
     FileOperationsUtil.copyFile(src, dest);
   }
+
+  @Test
+  public void testCompilePatterns_MatchesLikeMatchPattern() {
+    List<String> patterns = List.of(".txt", "notes.");
+    Predicate<String> matcher = FileOperationsUtil.compilePatterns(patterns);
+    for (String name : List.of("dir\\a.txt", "dir\\notes.md", "dir\\a.md")) {
+      assertEquals(FileOperationsUtil.matchPattern(name, patterns), matcher.test(name));
+    }
+    assertTrue(matcher.test("dir\\notes.md"));
+    assertFalse(matcher.test("dir\\a.md"));
+    assertTrue(FileOperationsUtil.compilePatterns(List.of("all")).test("a.md"));
+    assertFalse(FileOperationsUtil.compilePatterns(List.of("none")).test("a.md"));
+  }
 }
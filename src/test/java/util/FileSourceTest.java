@@ -0,0 +1,70 @@
+package test.java.util;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import main.java.util.FileSource;
+
+public class FileSourceTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void testReadAll_IncludesHead() throws Exception {
+    byte[] data = new byte[200_000];
+    new Random(3).nextBytes(data);
+    Path file = Files.write(tempFolder.newFile("data.bin").toPath(), data);
+
+    try (FileSource source = FileSource.open(file, false)) {
+      assertEquals(65536, source.head().remaining());
+      assertArrayEquals(data, source.readAll());
+    }
+  }
+
+  // A file past the array limit is refused rather than cut short at the first buffer
+  @Test
+  public void testReadAll_RejectsFileOverArrayLimit() throws Exception {
+    Path file = sparseFile(4L * 1024 * 1024 * 1024 + 100);
+
+    try (FileSource source = FileSource.open(file, false)) {
+      source.readAll();
+      fail("Expected IOException");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("too large"));
+    }
+  }
+
+  // The mapped windows of such a file still cover all of it
+  @Test
+  public void testNext_MapsFileOverArrayLimit() throws Exception {
+    long size = 4L * 1024 * 1024 * 1024 + 100;
+    Path file = sparseFile(size);
+
+    try (FileSource source = FileSource.open(file, true)) {
+      long total = source.head().remaining();
+      ByteBuffer window;
+      while ((window = source.next()) != null) {
+        total += window.remaining();
+      }
+      assertEquals(size, total);
+    }
+  }
+
+  private Path sparseFile(long size) throws IOException {
+    Path file = tempFolder.newFile("sparse.bin").toPath();
+    try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+      raf.setLength(size);
+    }
+    return file;
+  }
+}
@@ -0,0 +1,111 @@
+package test.java.util;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import main.java.util.GcmChunkedCipher;
+import main.java.util.GcmDecryptingInputStream;
+import main.java.util.GcmEncryptingOutputStream;
+
+public class GcmChunkedCipherTest {
+  private static final int CHUNK_SIZE = 1024;
+  private static final int HEADER_SIZE = 21;
+  private final SecretKey key = new SecretKeySpec(new byte[32], "AES");
+
+  // Sizes around chunk boundaries, sealed on one thread and on several
+  @Test
+  public void testRoundTrip() throws IOException {
+    for (int size : new int[] { 0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1, 10 * CHUNK_SIZE + 17 }) {
+      byte[] data = randomBytes(size);
+      for (int threads : new int[] { 1, 4 }) {
+        byte[] encrypted = encrypt(data, threads);
+        assertArrayEquals(data, decrypt(encrypted));
+      }
+    }
+  }
+
+  @Test
+  public void testRoundTrip_InMemory() throws IOException {
+    byte[] data = randomBytes(200_000);
+    assertArrayEquals(data, GcmChunkedCipher.decrypt(GcmChunkedCipher.encrypt(data, key), key));
+  }
+
+  // A flipped bit fails the chunk that holds it
+  @Test(expected = IOException.class)
+  public void testTamperedChunkRejected() throws IOException {
+    byte[] encrypted = encrypt(randomBytes(5 * CHUNK_SIZE), 1);
+    encrypted[encrypted.length / 2] ^= 1;
+    decrypt(encrypted);
+  }
+
+  // Dropping whole trailing chunks is detected through the last-chunk flag
+  @Test(expected = IOException.class)
+  public void testTruncationRejected() throws IOException {
+    byte[] encrypted = encrypt(randomBytes(5 * CHUNK_SIZE), 1);
+    int headerAndTwoChunks = encrypted.length - 3 * (CHUNK_SIZE + GcmChunkedCipher.TAG_SIZE);
+    decrypt(Arrays.copyOf(encrypted, headerAndTwoChunks));
+  }
+
+  // Each entry is sealed under its own salt-derived subkey, so chunks do not
+  // open under another entry's header even with the same backup key
+  @Test(expected = IOException.class)
+  public void testChunksBoundToEntrySalt() throws IOException {
+    byte[] data = randomBytes(3 * CHUNK_SIZE);
+    byte[] first = encrypt(data, 1);
+    byte[] second = encrypt(data, 1);
+    System.arraycopy(second, 0, first, 0, HEADER_SIZE);
+    decrypt(first);
+  }
+
+  // Bodies written by the first format (shared key, nonce prefix in the header) still open
+  @Test
+  public void testVersion1BodyStillReadable() throws Exception {
+    byte[] data = randomBytes(2 * CHUNK_SIZE + 5);
+    byte[] prefix = randomBytes(8);
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    body.write(ByteBuffer.allocate(13).put((byte) 1).putInt(CHUNK_SIZE).put(prefix).array());
+    Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+    for (int index = 0, offset = 0; offset < data.length; index++, offset += CHUNK_SIZE) {
+      boolean last = offset + CHUNK_SIZE >= data.length;
+      byte[] nonce = ByteBuffer.allocate(12).put(prefix).putInt(index).array();
+      cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, nonce));
+      cipher.updateAAD(new byte[] { (byte) (last ? 1 : 0) });
+      body.write(cipher.doFinal(data, offset, Math.min(CHUNK_SIZE, data.length - offset)));
+    }
+    assertArrayEquals(data, decrypt(body.toByteArray()));
+  }
+
+  private byte[] encrypt(byte[] data, int threads) throws IOException {
+    ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+    try (GcmEncryptingOutputStream out = new GcmEncryptingOutputStream(encrypted, key, CHUNK_SIZE, threads)) {
+      out.write(data, 0, data.length / 3);
+      out.write(data, data.length / 3, data.length - data.length / 3);
+    }
+    return encrypted.toByteArray();
+  }
+
+  private byte[] decrypt(byte[] encrypted) throws IOException {
+    try (GcmDecryptingInputStream in = new GcmDecryptingInputStream(new ByteArrayInputStream(encrypted), key)) {
+      return in.readAllBytes();
+    }
+  }
+
+  private byte[] randomBytes(int length) {
+    byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    return data;
+  }
+}
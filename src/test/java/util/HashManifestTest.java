@@ -0,0 +1,52 @@
+package test.java.util;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import main.java.util.HashManifest;
+
+public class HashManifestTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  // Every written hash is found again, including names JSON would need to escape
+  @Test
+  public void testWriteAndLookup() throws IOException {
+    Map<String, String> hashes = new HashMap<>();
+    for (int i = 0; i < 1000; i++) {
+      hashes.put("dir" + (i % 7) + "/file" + i + ".txt", String.format("%064x", i));
+    }
+    hashes.put("quote\"and\\backslash.txt", "ab".repeat(32));
+    hashes.put("unicode/é.txt", "cd".repeat(32));
+
+    Path manifestFile = tempFolder.getRoot().toPath().resolve(HashManifest.FILE_NAME);
+    HashManifest.write(manifestFile, hashes);
+    HashManifest manifest = HashManifest.open(manifestFile);
+
+    assertEquals(hashes.size(), manifest.size());
+    for (Map.Entry<String, String> entry : hashes.entrySet()) {
+      assertEquals(entry.getValue(), manifest.get(entry.getKey()));
+    }
+    assertNull(manifest.get("missing.txt"));
+    assertNull(manifest.get("dir0/file0.tx"));
+    assertEquals(hashes, new HashMap<>(manifest));
+  }
+
+  @Test
+  public void testEmptyManifest() throws IOException {
+    Path manifestFile = tempFolder.getRoot().toPath().resolve(HashManifest.FILE_NAME);
+    HashManifest.write(manifestFile, new HashMap<>());
+    HashManifest manifest = HashManifest.open(manifestFile);
+
+    assertEquals(0, manifest.size());
+    assertNull(manifest.get("a.txt"));
+  }
+}
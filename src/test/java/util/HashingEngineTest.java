@@ -0,0 +1,64 @@
+package test.java.util;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+import main.java.util.HashingEngine;
+
+public class HashingEngineTest {
+
+  // Feeding the data in pieces gives the same digest as MessageDigest over all of it
+  @Test
+  public void testHasher_MatchesMessageDigest() throws Exception {
+    byte[] data = "The quick brown fox jumps over the lazy dog".repeat(1000).getBytes(StandardCharsets.UTF_8);
+    String expected = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+
+    for (int run = 0; run < 3; run++) {
+      HashingEngine.Hasher hasher = HashingEngine.forAlgorithm("SHA-256").newHasher();
+      hasher.update(data, 0, 1000);
+      hasher.update(data, 1000, data.length - 1000);
+      assertEquals(expected, hasher.finish());
+    }
+  }
+
+  @Test
+  public void testFastTier() throws Exception {
+    byte[] data = "123456789".getBytes(StandardCharsets.US_ASCII);
+    CRC32C crc = new CRC32C();
+    crc.update(data);
+
+    assertTrue(HashingEngine.isFastTier("CRC32C"));
+    assertEquals(String.format("%08x", crc.getValue()), HashingEngine.forAlgorithm("CRC32C").hash(data, 0, data.length));
+  }
+
+  // One feed gives both the configured digest and the ZIP entry CRC
+  @Test
+  public void testHasher_TracksCrc32() throws Exception {
+    byte[] data = "The quick brown fox jumps over the lazy dog".repeat(100).getBytes(StandardCharsets.UTF_8);
+    CRC32 crc = new CRC32();
+    crc.update(data);
+
+    for (String algorithm : new String[] { "SHA-256", "CRC32C", "CRC32" }) {
+      HashingEngine.Hasher hasher = HashingEngine.forAlgorithm(algorithm).newHasher(true);
+      hasher.update(data, 0, 100);
+      hasher.update(ByteBuffer.wrap(data, 100, data.length - 100));
+      assertEquals(HashingEngine.forAlgorithm(algorithm).hash(data, 0, data.length), hasher.finish());
+      assertEquals(crc.getValue(), hasher.crc32());
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testHasher_FinishedTwice() throws Exception {
+    HashingEngine.Hasher hasher = HashingEngine.forAlgorithm("SHA-256").newHasher();
+    hasher.finish();
+    hasher.finish();
+  }
+}
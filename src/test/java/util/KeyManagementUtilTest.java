@@ -0,0 +1,41 @@
+package test.java.util;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+
+import main.java.util.KeyManagementUtil;
+
+public class KeyManagementUtilTest {
+
+  // Streaming decryption gives the same bytes as the whole-array decryptAES
+  @Test
+  public void testDecryptingStream_MatchesDecryptAES() throws Exception {
+    SecretKey key = KeyManagementUtil.generateAESKey("password");
+    byte[] data = new byte[300_001];
+    new Random(7).nextBytes(data);
+    byte[] encrypted = KeyManagementUtil.encryptAES(data, key);
+
+    try (InputStream in = KeyManagementUtil.decryptingStream(new ByteArrayInputStream(encrypted), key)) {
+      assertArrayEquals(data, in.readAllBytes());
+    }
+    assertArrayEquals(data, KeyManagementUtil.decryptAES(encrypted, key));
+  }
+
+  @Test(expected = IOException.class)
+  public void testDecryptingStream_WrongKeyFails() throws Exception {
+    byte[] encrypted = KeyManagementUtil.encryptAES(new byte[1000], KeyManagementUtil.generateAESKey("password"));
+
+    try (InputStream in = KeyManagementUtil.decryptingStream(new ByteArrayInputStream(encrypted),
+        KeyManagementUtil.generateAESKey("other"))) {
+      in.readAllBytes();
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package test.java.util;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import main.java.util.MemoryBudget;
+
+public class MemoryBudgetTest {
+
+  @Test
+  public void testReserve_ReleasedOnClose() throws Exception {
+    MemoryBudget budget = new MemoryBudget(1000);
+    MemoryBudget.Reservation first = budget.reserve(400);
+    MemoryBudget.Reservation second = budget.reserve(600);
+    assertEquals(1000, budget.reserved());
+    first.close();
+    second.close();
+    assertEquals(0, budget.reserved());
+  }
+
+  @Test
+  public void testReserve_WaitsUntilReleased() throws Exception {
+    MemoryBudget budget = new MemoryBudget(1000);
+    MemoryBudget.Reservation held = budget.reserve(800);
+    CountDownLatch started = new CountDownLatch(1);
+    AtomicBoolean acquired = new AtomicBoolean(false);
+    Thread waiter = Thread.ofVirtual().start(() -> {
+      started.countDown();
+      try {
+        MemoryBudget.Reservation reservation = budget.reserve(500);
+        acquired.set(true);
+        reservation.close();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+
+    started.await();
+    Thread.sleep(100);
+    assertFalse(acquired.get());
+    held.close();
+    assertTrue(waiter.join(Duration.ofSeconds(5)));
+    assertTrue(acquired.get());
+    assertEquals(0, budget.reserved());
+    assertTrue(budget.summary().contains("1 waits"));
+  }
+
+  // A request larger than the budget is cut to it instead of waiting forever
+  @Test
+  public void testReserve_ClampedToCapacity() throws Exception {
+    MemoryBudget budget = new MemoryBudget(1000);
+    MemoryBudget.Reservation reservation = budget.reserve(5000);
+    assertEquals(1000, budget.reserved());
+    reservation.close();
+    assertEquals(0, budget.reserved());
+  }
+
+  // Lasting reservations stop at half the budget and the rest stays usable
+  @Test
+  public void testReserveLasting_LeavesRoomForOthers() throws Exception {
+    MemoryBudget budget = new MemoryBudget(1000);
+    MemoryBudget.Reservation lasting = budget.reserveLasting(400);
+    AtomicBoolean acquired = new AtomicBoolean(false);
+    Thread waiter = Thread.ofVirtual().start(() -> {
+      try {
+        budget.reserveLasting(200).close();
+        acquired.set(true);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    Thread.sleep(100);
+    assertFalse(acquired.get());
+
+    MemoryBudget.Reservation other = budget.reserve(5000);
+    assertEquals(1000, budget.reserved());
+    other.close();
+    lasting.close();
+    assertTrue(waiter.join(Duration.ofSeconds(5)));
+    assertTrue(acquired.get());
+    assertEquals(0, budget.reserved());
+  }
+
+  @Test
+  public void testClose_Idempotent() throws Exception {
+    MemoryBudget budget = new MemoryBudget(1000);
+    MemoryBudget.Reservation reservation = budget.reserve(300);
+    reservation.close();
+    reservation.close();
+    assertEquals(0, budget.reserved());
+    MemoryBudget.Reservation full = budget.reserve(1000);
+    assertEquals(1000, budget.reserved());
+    full.close();
+  }
+
+  @Test
+  public void testReserve_InterruptedWhileWaiting() throws Exception {
+    MemoryBudget budget = new MemoryBudget(100);
+    MemoryBudget.Reservation held = budget.reserve(100);
+    AtomicBoolean interrupted = new AtomicBoolean(false);
+    Thread waiter = Thread.ofVirtual().start(() -> {
+      try {
+        budget.reserve(50).close();
+      } catch (InterruptedException e) {
+        interrupted.set(true);
+      }
+    });
+    Thread.sleep(50);
+    waiter.interrupt();
+    waiter.join(TimeUnit.SECONDS.toMillis(5));
+    assertTrue(interrupted.get());
+    assertEquals(100, budget.reserved());
+    held.close();
+  }
+}
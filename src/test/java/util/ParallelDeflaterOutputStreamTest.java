@@ -0,0 +1,125 @@
+package test.java.util;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import main.java.util.BufferPool;
+import main.java.util.ParallelDeflaterOutputStream;
+
+public class ParallelDeflaterOutputStreamTest {
+
+  // Blocks compressed on separate threads must inflate as one deflate stream
+  @Test
+  public void testRoundTrip_ManyBlocks() throws IOException {
+    byte[] data = new byte[1_000_000];
+    Random random = new Random(42);
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) ('a' + random.nextInt(4));
+    }
+
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    ParallelDeflaterOutputStream out = new ParallelDeflaterOutputStream(compressed, 9, 64 * 1024, 4);
+    out.write(data, 0, 300_000);
+    out.write(data, 300_000, data.length - 300_000);
+    out.close();
+
+    assertEquals(data.length, out.getBytesIn());
+    assertEquals(compressed.size(), out.getBytesOut());
+    assertTrue("Data should compress", compressed.size() < data.length / 2);
+    assertArrayEquals(data, inflate(compressed.toByteArray()));
+  }
+
+  // Blocks, dictionaries and compressed output go back to the pool, so a second
+  // stream allocates nothing new
+  @Test
+  public void testClose_ReleasesPooledBuffers() throws IOException {
+    byte[] data = new byte[600_000];
+    Random random = new Random(3);
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) ('a' + random.nextInt(4));
+    }
+    for (int round = 0; round < 2; round++) {
+      long misses = BufferPool.SHARED.misses();
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      ParallelDeflaterOutputStream out = new ParallelDeflaterOutputStream(compressed, 6, 64 * 1024, 2);
+      out.write(data);
+      out.close();
+      assertArrayEquals(data, inflate(compressed.toByteArray()));
+      if (round == 1) {
+        assertEquals(misses, BufferPool.SHARED.misses());
+      }
+    }
+  }
+
+  // Whole blocks of a direct buffer are compressed in place, mixed with copied writes
+  @Test
+  public void testRoundTrip_ByteBufferWrites() throws IOException {
+    byte[] data = new byte[700_000];
+    Random random = new Random(7);
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) ('a' + random.nextInt(6));
+    }
+    ByteBuffer direct = ByteBuffer.allocateDirect(500_000).put(data, 1000, 500_000).flip();
+
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    ParallelDeflaterOutputStream out = new ParallelDeflaterOutputStream(compressed, 6, 64 * 1024, 4);
+    out.write(data, 0, 1000);
+    out.write(direct);
+    out.write(data, 501_000, data.length - 501_000);
+    out.close();
+
+    assertEquals(0, direct.remaining());
+    assertEquals(data.length, out.getBytesIn());
+    assertArrayEquals(data, inflate(compressed.toByteArray()));
+  }
+
+  // An empty input still produces a terminated deflate stream
+  @Test
+  public void testRoundTrip_Empty() throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    new ParallelDeflaterOutputStream(compressed, 9, 64 * 1024, 2).close();
+    assertEquals(0, inflate(compressed.toByteArray()).length);
+  }
+
+  // Streams open at the same time share the block threads instead of starting their own
+  @Test
+  public void testConcurrentStreams_ShareBlockThreads() throws Exception {
+    byte[] data = new byte[512 * 1024];
+    new Random(3).nextBytes(data);
+    List<ParallelDeflaterOutputStream> streams = new ArrayList<>();
+    List<ByteArrayOutputStream> outputs = new ArrayList<>();
+    for (int i = 0; i < 16; i++) {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      ParallelDeflaterOutputStream out = new ParallelDeflaterOutputStream(compressed, 1, 64 * 1024, 4);
+      out.write(data, 0, data.length - 1000);
+      streams.add(out);
+      outputs.add(compressed);
+    }
+
+    long blockThreads = Thread.getAllStackTraces().keySet().stream()
+        .filter(thread -> thread.getName().startsWith("block-worker-")).count();
+    assertTrue(blockThreads + " block threads", blockThreads <= Runtime.getRuntime().availableProcessors());
+    for (int i = 0; i < streams.size(); i++) {
+      streams.get(i).write(data, data.length - 1000, 1000);
+      streams.get(i).close();
+      assertArrayEquals(data, inflate(outputs.get(i).toByteArray()));
+    }
+  }
+
+  private byte[] inflate(byte[] compressed) throws IOException {
+    try (InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(compressed), new Inflater(true))) {
+      return in.readAllBytes();
+    }
+  }
+}
@@ -0,0 +1,64 @@
+package test.java.util;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import main.java.util.SolidBlock;
+import main.java.util.ZipArchiveReader;
+import main.java.util.ZipArchiveWriter;
+
+public class SolidBlockTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  // The member table survives the central directory, including a partition merge
+  @Test
+  public void testMemberTable_ReadBackFromCentralDirectory() throws Exception {
+    SolidBlock block = new SolidBlock();
+    block.add("a.txt", "alpha".getBytes(StandardCharsets.UTF_8));
+    block.add("dir/b.txt", new byte[0]);
+    block.add("dir/c.txt", "gamma".getBytes(StandardCharsets.UTF_8));
+    Path partition = tempFolder.getRoot().toPath().resolve("temp_1.zip");
+    Path merged = tempFolder.getRoot().toPath().resolve("backup.zip");
+
+    try (ZipArchiveWriter writer = new ZipArchiveWriter(partition)) {
+      try (OutputStream out = writer.newEntry(block.entryName(), ZipEntry.STORED, 0, 0, block.size(), "brf:solid",
+          block.toExtra())) {
+        out.write(block.data());
+      }
+    }
+    try (ZipArchiveWriter writer = new ZipArchiveWriter(merged);
+        ZipArchiveReader reader = new ZipArchiveReader(partition)) {
+      writer.copyEntry(reader, reader.entries().get(0));
+    }
+
+    try (ZipFile zipFile = new ZipFile(merged.toFile())) {
+      ZipEntry entry = zipFile.getEntry(block.entryName());
+      List<SolidBlock.Member> members = SolidBlock.parseMembers(entry.getExtra());
+      assertEquals(block.members(), members);
+      try (InputStream in = zipFile.getInputStream(entry)) {
+        assertEquals("alphagamma", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+      }
+    }
+  }
+
+  @Test
+  public void testFits() {
+    SolidBlock block = new SolidBlock();
+    assertTrue(block.fits("big.bin", 10_000, 4096));
+    block.add("small.txt", new byte[3000]);
+    assertTrue(block.fits("next.txt", 1000, 4096));
+    assertFalse(block.fits("next.txt", 1200, 4096));
+  }
+}
@@ -0,0 +1,61 @@
+package test.java.util;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import main.java.util.TokenBucket;
+
+public class TokenBucketTest {
+
+  @Test
+  public void testAcquire_UnlimitedNeverWaits() throws Exception {
+    TokenBucket bucket = new TokenBucket(0);
+    long start = System.nanoTime();
+    bucket.acquire(Long.MAX_VALUE / 2);
+    assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+    assertEquals(0, bucket.throttledNanos());
+  }
+
+  // A request beyond the bucket still passes, after the time the rate needs for it
+  @Test
+  public void testAcquire_PacesToRate() throws Exception {
+    TokenBucket bucket = new TokenBucket(1000);
+    long start = System.nanoTime();
+    bucket.acquire(300);
+    bucket.acquire(300);
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    assertTrue("took " + elapsedMillis + " ms", elapsedMillis >= 500 && elapsedMillis < 2000);
+    assertTrue(bucket.throttledNanos() >= TimeUnit.MILLISECONDS.toNanos(500));
+  }
+
+  // Idle time refills the bucket, but never past one second of tokens
+  @Test
+  public void testAcquire_BurstCappedAtOneSecond() throws Exception {
+    TokenBucket bucket = new TokenBucket(1000);
+    Thread.sleep(1500);
+    long start = System.nanoTime();
+    bucket.acquire(1000);
+    assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+    bucket.acquire(200);
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+  }
+
+  @Test
+  public void testSetRate_AppliesToLaterRequests() throws Exception {
+    TokenBucket bucket = new TokenBucket(10);
+    bucket.setRate(0);
+    long start = System.nanoTime();
+    bucket.acquire(1_000_000);
+    assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+    assertEquals(0, bucket.rate());
+
+    bucket.setRate(1_000_000);
+    bucket.acquire(100_000);
+    assertTrue(bucket.throttledNanos() > 0);
+    bucket.resetStats();
+    assertEquals(0, bucket.throttledNanos());
+  }
+}
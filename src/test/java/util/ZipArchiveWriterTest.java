@@ -0,0 +1,181 @@
+package test.java.util;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import main.java.util.FileSource;
+import main.java.util.HashingEngine;
+import main.java.util.ZipArchiveReader;
+import main.java.util.ZipArchiveWriter;
+
+public class ZipArchiveWriterTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  // Entries copied from two partitions should read back unchanged
+  @Test
+  public void testCopyEntry_KeepsCompressedData() throws IOException {
+    Path first = tempFolder.getRoot().toPath().resolve("temp_1.zip");
+    Path second = tempFolder.getRoot().toPath().resolve("temp_2.zip");
+    Path merged = tempFolder.getRoot().toPath().resolve("backup.zip");
+    writeZip(first, "file1.txt", "file1 ".repeat(1000));
+    writeZip(second, "subdir/file2.txt", "file2");
+
+    try (ZipArchiveWriter writer = new ZipArchiveWriter(merged)) {
+      for (Path partition : new Path[] { first, second }) {
+        try (ZipArchiveReader reader = new ZipArchiveReader(partition)) {
+          for (ZipArchiveReader.Entry entry : reader.entries()) {
+            writer.copyEntry(reader, entry);
+          }
+        }
+      }
+    }
+
+    try (ZipFile zipFile = new ZipFile(merged.toFile())) {
+      assertEquals(2, zipFile.size());
+      assertEquals("file1 ".repeat(1000), read(zipFile, "file1.txt"));
+      assertEquals("file2", read(zipFile, "subdir/file2.txt"));
+      assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("file1.txt").getMethod());
+    }
+  }
+
+  // Streamed entries get their CRC, sizes and comment filled in on close
+  @Test
+  public void testNewEntry_StoredAndDeflated() throws IOException {
+    Path archive = tempFolder.getRoot().toPath().resolve("streamed.zip");
+    try (ZipArchiveWriter writer = new ZipArchiveWriter(archive)) {
+      try (OutputStream out = writer.newEntry("stored.bin", ZipEntry.STORED, 0, 0, 5, "brf:enc=gcm")) {
+        out.write("12345".getBytes());
+      }
+      try (OutputStream out = writer.newEntry("deflated.txt", ZipEntry.DEFLATED, 9, 0, 6000, null)) {
+        out.write("abcdef".repeat(1000).getBytes());
+      }
+    }
+
+    try (ZipFile zipFile = new ZipFile(archive.toFile())) {
+      assertEquals("12345", read(zipFile, "stored.bin"));
+      assertEquals("brf:enc=gcm", zipFile.getEntry("stored.bin").getComment());
+      assertEquals(ZipEntry.STORED, zipFile.getEntry("stored.bin").getMethod());
+      assertEquals("abcdef".repeat(1000), read(zipFile, "deflated.txt"));
+      assertTrue(zipFile.getEntry("deflated.txt").getCompressedSize() < 6000);
+    }
+  }
+
+  // An empty archive is still a valid ZIP file
+  @Test
+  public void testClose_NoEntries() throws IOException {
+    Path merged = tempFolder.getRoot().toPath().resolve("empty.zip");
+    new ZipArchiveWriter(merged).close();
+    try (ZipArchiveReader reader = new ZipArchiveReader(merged)) {
+      assertTrue(reader.entries().isEmpty());
+    }
+  }
+
+  // The head is written from the heap and the rest transferred; CRC and hash
+  // cover both
+  @Test
+  public void testTransferStoredEntry() throws Exception {
+    Path source = tempFolder.getRoot().toPath().resolve("media.bin");
+    byte[] data = new byte[300_000];
+    new Random(5).nextBytes(data);
+    Files.write(source, data);
+    Path archive = tempFolder.getRoot().toPath().resolve("stored.zip");
+
+    HashingEngine.Hasher hasher = HashingEngine.forAlgorithm("SHA-256").newHasher(true);
+    try (ZipArchiveWriter writer = new ZipArchiveWriter(archive)) {
+      assertEquals(data.length, writer.transferStoredEntry("media.bin", source, 0, hasher));
+    }
+
+    assertEquals(HashingEngine.forAlgorithm("SHA-256").hash(data, 0, data.length), hasher.finish());
+    // ZipInputStream checks the CRC of STORED entries
+    try (ZipInputStream in = new ZipInputStream(Files.newInputStream(archive))) {
+      ZipEntry entry = in.getNextEntry();
+      assertEquals(ZipEntry.STORED, entry.getMethod());
+      assertArrayEquals(data, in.readAllBytes());
+    }
+  }
+
+  // A mapped head is a whole window; the file past it is still transferred
+  @Test
+  public void testTransferStoredEntry_PastMappedHead() throws Exception {
+    Path source = tempFolder.getRoot().toPath().resolve("large.bin");
+    byte[] data = new byte[64 * 1024 * 1024 + 1000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (i * 31 + (i >> 12));
+    }
+    Files.write(source, data);
+    Path archive = tempFolder.getRoot().toPath().resolve("large.zip");
+
+    HashingEngine.Hasher hasher = HashingEngine.forAlgorithm("SHA-256").newHasher(true);
+    try (ZipArchiveWriter writer = new ZipArchiveWriter(archive);
+        FileSource in = FileSource.open(source, true)) {
+      assertEquals(data.length, writer.transferStoredEntry("large.bin", in, 0, hasher));
+    }
+
+    assertEquals(HashingEngine.forAlgorithm("SHA-256").hash(data, 0, data.length), hasher.finish());
+    try (ZipInputStream in = new ZipInputStream(Files.newInputStream(archive))) {
+      in.getNextEntry();
+      assertArrayEquals(data, in.readAllBytes());
+    }
+  }
+
+  // Both deflated and stored entries are read back and checked against their CRC
+  @Test
+  public void testCheckCrc_DetectsCorruptedData() throws IOException {
+    Path deflated = tempFolder.getRoot().toPath().resolve("deflated.zip");
+    writeZip(deflated, "file1.txt", "file1 ".repeat(1000));
+    Path stored = tempFolder.getRoot().toPath().resolve("stored.zip");
+    try (ZipArchiveWriter writer = new ZipArchiveWriter(stored)) {
+      try (OutputStream out = writer.newEntry("file2.txt", ZipEntry.STORED, 0, 0, 100, null)) {
+        out.write("x".repeat(100).getBytes());
+      }
+    }
+
+    for (Path archive : new Path[] { deflated, stored }) {
+      long dataOffset;
+      try (ZipArchiveReader reader = new ZipArchiveReader(archive)) {
+        ZipArchiveReader.Entry entry = reader.entries().get(0);
+        assertTrue(reader.checkCrc(entry));
+        dataOffset = reader.dataOffset(entry);
+      }
+      try (FileChannel channel = FileChannel.open(archive, StandardOpenOption.WRITE)) {
+        channel.write(ByteBuffer.wrap(new byte[] { 0x55 }), dataOffset + 5);
+      }
+      try (ZipArchiveReader reader = new ZipArchiveReader(archive)) {
+        assertFalse(reader.checkCrc(reader.entries().get(0)));
+      }
+    }
+  }
+
+  private void writeZip(Path zip, String name, String content) throws IOException {
+    try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zip.toFile()))) {
+      zos.putNextEntry(new ZipEntry(name));
+      zos.write(content.getBytes());
+      zos.closeEntry();
+    }
+  }
+
+  private String read(ZipFile zipFile, String name) throws IOException {
+    try (InputStream in = zipFile.getInputStream(zipFile.getEntry(name))) {
+      return new String(in.readAllBytes());
+    }
+  }
+}